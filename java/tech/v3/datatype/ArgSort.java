@@ -0,0 +1,307 @@
+package tech.v3.datatype;
+
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+
+
+/**
+ * Stable index sorts.  Primitive keys are sorted by an LSD radix sort of their
+ * order-preserving unsigned bit patterns; passes in which every key shares the same
+ * digit are skipped so narrow key ranges take few passes.  Short key arrays are merge
+ * sorted on the same keys so every size orders values identically.  Everything else is sorted
+ * by a merge sort whose sorted runs and merges are both split across threads.
+ *
+ * Radix sorts of more than parallelMinElems keys count and scatter each pass in
+ * parallel over contiguous chunks, scattering chunks in order so the sort remains
+ * stable.
+ */
+public final class ArgSort {
+  public static final int RADIX_BITS = 11;
+  public static final int RADIX = 1 << RADIX_BITS;
+  public static final int RADIX_MASK = RADIX - 1;
+  /** Fewer keys than this are merge sorted by key as the radix counts would dominate. */
+  public static final int MIN_RADIX_ELEMS = 1024;
+  /** NaN handling for float keys. */
+  public static final int NAN_FIRST = 0;
+  public static final int NAN_LAST = 1;
+  public static final int NAN_EXCEPTION = 2;
+
+  /** Stable index sort of keys compared as unsigned 32 bit integers. */
+  public static int[] radixSortUnsigned(int[] keys, long parallelMinElems) {
+    final int n = keys.length;
+    if (n < MIN_RADIX_ELEMS) {
+      final int[] idx = iota(n);
+      IntArrays.mergeSort(idx, (l, r) -> Integer.compareUnsigned(keys[l], keys[r]));
+      return idx;
+    }
+    final int nc = ParallelChunks.nChunks(n, parallelMinElems);
+    int[] srcKeys = keys;
+    int[] dstKeys = new int[n];
+    int[] srcIdx = null;
+    int[] dstIdx = new int[n];
+    final int[][] counts = new int[nc][RADIX];
+    for (int shift = 0; shift < 32; shift += RADIX_BITS) {
+      final int fshift = shift;
+      final int[] sk = srcKeys;
+      ParallelChunks.forEachChunk(n, nc, (chunk, sidx, eidx) -> {
+	  final int[] cc = counts[chunk];
+	  java.util.Arrays.fill(cc, 0);
+	  for (int idx = sidx; idx < eidx; ++idx)
+	    ++cc[(sk[idx] >>> fshift) & RADIX_MASK];
+	});
+      if (!toOffsets(counts, n))
+	continue;
+      final int[] si = srcIdx;
+      final int[] dk = dstKeys;
+      final int[] di = dstIdx;
+      ParallelChunks.forEachChunk(n, nc, (chunk, sidx, eidx) -> {
+	  final int[] cc = counts[chunk];
+	  for (int idx = sidx; idx < eidx; ++idx) {
+	    final int k = sk[idx];
+	    final int pos = cc[(k >>> fshift) & RADIX_MASK]++;
+	    dk[pos] = k;
+	    di[pos] = si == null ? idx : si[idx];
+	  }
+	});
+      //The caller's keys are never written to
+      final int[] tk = srcKeys == keys ? new int[n] : srcKeys;
+      srcKeys = dstKeys;
+      dstKeys = tk;
+      final int[] ti = srcIdx == null ? new int[n] : srcIdx;
+      srcIdx = dstIdx;
+      dstIdx = ti;
+    }
+    return srcIdx == null ? iota(n) : srcIdx;
+  }
+  /** Stable index sort of keys compared as unsigned 64 bit integers. */
+  public static int[] radixSortUnsigned(long[] keys, long parallelMinElems) {
+    final int n = keys.length;
+    if (n < MIN_RADIX_ELEMS) {
+      final int[] idx = iota(n);
+      IntArrays.mergeSort(idx, (l, r) -> Long.compareUnsigned(keys[l], keys[r]));
+      return idx;
+    }
+    final int nc = ParallelChunks.nChunks(n, parallelMinElems);
+    long[] srcKeys = keys;
+    long[] dstKeys = new long[n];
+    int[] srcIdx = null;
+    int[] dstIdx = new int[n];
+    final int[][] counts = new int[nc][RADIX];
+    for (int shift = 0; shift < 64; shift += RADIX_BITS) {
+      final int fshift = shift;
+      final long[] sk = srcKeys;
+      ParallelChunks.forEachChunk(n, nc, (chunk, sidx, eidx) -> {
+	  final int[] cc = counts[chunk];
+	  java.util.Arrays.fill(cc, 0);
+	  for (int idx = sidx; idx < eidx; ++idx)
+	    ++cc[(int)(sk[idx] >>> fshift) & RADIX_MASK];
+	});
+      if (!toOffsets(counts, n))
+	continue;
+      final int[] si = srcIdx;
+      final long[] dk = dstKeys;
+      final int[] di = dstIdx;
+      ParallelChunks.forEachChunk(n, nc, (chunk, sidx, eidx) -> {
+	  final int[] cc = counts[chunk];
+	  for (int idx = sidx; idx < eidx; ++idx) {
+	    final long k = sk[idx];
+	    final int pos = cc[(int)(k >>> fshift) & RADIX_MASK]++;
+	    dk[pos] = k;
+	    di[pos] = si == null ? idx : si[idx];
+	  }
+	});
+      final long[] tk = srcKeys == keys ? new long[n] : srcKeys;
+      srcKeys = dstKeys;
+      dstKeys = tk;
+      final int[] ti = srcIdx == null ? new int[n] : srcIdx;
+      srcIdx = dstIdx;
+      dstIdx = ti;
+    }
+    return srcIdx == null ? iota(n) : srcIdx;
+  }
+  /**
+   * Convert per-chunk digit counts into per-chunk scatter offsets, digit-major so
+   * earlier chunks precede later ones within a digit.  Returns false when every key
+   * has the same digit and the pass can be skipped.
+   */
+  static boolean toOffsets(int[][] counts, int n) {
+    final int nc = counts.length;
+    int pos = 0;
+    for (int digit = 0; digit < RADIX; ++digit) {
+      int total = 0;
+      for (int chunk = 0; chunk < nc; ++chunk)
+	total += counts[chunk][digit];
+      if (total == n)
+	return false;
+      for (int chunk = 0; chunk < nc; ++chunk) {
+	final int c = counts[chunk][digit];
+	counts[chunk][digit] = pos;
+	pos += c;
+      }
+    }
+    return true;
+  }
+  static int[] iota(int n) {
+    final int[] rv = new int[n];
+    for (int idx = 0; idx < n; ++idx)
+      rv[idx] = idx;
+    return rv;
+  }
+
+  /** Order preserving unsigned key of a signed integer. */
+  public static int intKey(int v, boolean descending) {
+    final int k = v ^ Integer.MIN_VALUE;
+    return descending ? ~k : k;
+  }
+  public static long longKey(long v, boolean descending) {
+    final long k = v ^ Long.MIN_VALUE;
+    return descending ? ~k : k;
+  }
+  /**
+   * Order preserving unsigned key of a float.  -0.0 and 0.0 share a key and NaN sorts
+   * first or last regardless of direction - no non-NaN float maps to the all zero or
+   * all one keys.
+   */
+  public static int floatKey(float v, boolean descending, int nanStrategy) {
+    if (Float.isNaN(v)) {
+      if (nanStrategy == NAN_EXCEPTION)
+	throw new RuntimeException("##NaN value detected");
+      return nanStrategy == NAN_FIRST ? 0 : -1;
+    }
+    final int bits = Float.floatToRawIntBits(v == 0.0f ? 0.0f : v);
+    final int k = bits ^ ((bits >> 31) | Integer.MIN_VALUE);
+    return descending ? ~k : k;
+  }
+  public static long doubleKey(double v, boolean descending, int nanStrategy) {
+    if (Double.isNaN(v)) {
+      if (nanStrategy == NAN_EXCEPTION)
+	throw new RuntimeException("##NaN value detected");
+      return nanStrategy == NAN_FIRST ? 0L : -1L;
+    }
+    final long bits = Double.doubleToRawLongBits(v == 0.0 ? 0.0 : v);
+    final long k = bits ^ ((bits >> 63) | Long.MIN_VALUE);
+    return descending ? ~k : k;
+  }
+  public static int[] argsortInts(Buffer values, boolean descending, long parallelMinElems) {
+    final int n = Math.toIntExact(values.lsize());
+    final int[] keys = new int[n];
+    final int nc = ParallelChunks.nChunks(n, parallelMinElems);
+    ParallelChunks.forEachChunk(n, nc, (chunk, sidx, eidx) -> {
+	for (int idx = sidx; idx < eidx; ++idx)
+	  keys[idx] = intKey((int)values.readLong(idx), descending);
+      });
+    return radixSortUnsigned(keys, parallelMinElems);
+  }
+  public static int[] argsortLongs(Buffer values, boolean descending, long parallelMinElems) {
+    final int n = Math.toIntExact(values.lsize());
+    final long[] keys = new long[n];
+    final int nc = ParallelChunks.nChunks(n, parallelMinElems);
+    ParallelChunks.forEachChunk(n, nc, (chunk, sidx, eidx) -> {
+	for (int idx = sidx; idx < eidx; ++idx)
+	  keys[idx] = longKey(values.readLong(idx), descending);
+      });
+    return radixSortUnsigned(keys, parallelMinElems);
+  }
+  public static int[] argsortFloats(Buffer values, boolean descending, int nanStrategy,
+				    long parallelMinElems) {
+    final int n = Math.toIntExact(values.lsize());
+    final int[] keys = new int[n];
+    final int nc = ParallelChunks.nChunks(n, parallelMinElems);
+    ParallelChunks.forEachChunk(n, nc, (chunk, sidx, eidx) -> {
+	for (int idx = sidx; idx < eidx; ++idx)
+	  keys[idx] = floatKey((float)values.readDouble(idx), descending, nanStrategy);
+      });
+    return radixSortUnsigned(keys, parallelMinElems);
+  }
+  public static int[] argsortDoubles(Buffer values, boolean descending, int nanStrategy,
+				     long parallelMinElems) {
+    final int n = Math.toIntExact(values.lsize());
+    final long[] keys = new long[n];
+    final int nc = ParallelChunks.nChunks(n, parallelMinElems);
+    ParallelChunks.forEachChunk(n, nc, (chunk, sidx, eidx) -> {
+	for (int idx = sidx; idx < eidx; ++idx)
+	  keys[idx] = doubleKey(values.readDouble(idx), descending, nanStrategy);
+      });
+    return radixSortUnsigned(keys, parallelMinElems);
+  }
+
+  /**
+   * Number of elements taken from the run a[aS,aS+aLen) within the first k outputs of
+   * a stable merge with the run starting at bS.
+   */
+  static int coRank(int[] src, int aS, int aLen, int bS, int bLen, int k, IntComparator comp) {
+    int lo = Math.max(0, k - bLen);
+    int hi = Math.min(k, aLen);
+    while (lo < hi) {
+      final int i = (lo + hi) >>> 1;
+      final int j = k - i;
+      if (j > 0 && comp.compare(src[aS + i], src[bS + j - 1]) <= 0)
+	lo = i + 1;
+      else
+	hi = i;
+    }
+    return lo;
+  }
+  static void merge(int[] src, int aS, int aE, int bS, int bE, int[] dst, int dS,
+		    IntComparator comp) {
+    int a = aS;
+    int b = bS;
+    int d = dS;
+    while (a < aE && b < bE)
+      dst[d++] = comp.compare(src[b], src[a]) < 0 ? src[b++] : src[a++];
+    while (a < aE)
+      dst[d++] = src[a++];
+    while (b < bE)
+      dst[d++] = src[b++];
+  }
+  /**
+   * Stable sort of data with comp.  Runs are merge sorted in parallel and each round
+   * of merges is split into equal sized pieces by co-ranking so the final merges are
+   * parallel as well.
+   */
+  public static void parallelMergeSort(int[] data, IntComparator comp, long parallelMinElems) {
+    final int n = data.length;
+    final int nc = ParallelChunks.nChunks(n, parallelMinElems);
+    if (nc == 1) {
+      IntArrays.mergeSort(data, comp);
+      return;
+    }
+    final int runLen = (int)(((long)n + nc - 1) / nc);
+    ParallelChunks.forEachTask(nc, chunk -> {
+	final long s = (long)chunk * runLen;
+	if (s < n)
+	  IntArrays.mergeSort(data, (int)s, (int)Math.min(n, s + runLen), comp);
+      });
+    int[] src = data;
+    int[] dst = new int[n];
+    final int pieceLen = Math.max(16384, runLen);
+    //widths and offsets are longs as doubling a run past half of the array overflows
+    for (long width = runLen; width < n; width *= 2) {
+      final long fwidth = width;
+      final int nPairs = (int)((n + 2 * width - 1) / (2 * width));
+      final int piecesPerPair = (int)Math.max(1, Math.min(n, 2 * width) / pieceLen);
+      final int[] fsrc = src;
+      final int[] fdst = dst;
+      ParallelChunks.forEachTask(nPairs * piecesPerPair, task -> {
+	  final int pair = task / piecesPerPair;
+	  final int piece = task % piecesPerPair;
+	  final int aS = (int)(pair * 2 * fwidth);
+	  final int aE = (int)Math.min(n, aS + fwidth);
+	  final int bE = (int)Math.min(n, aE + fwidth);
+	  final int total = bE - aS;
+	  final int k0 = (int)(((long)piece * total) / piecesPerPair);
+	  final int k1 = (int)(((long)(piece + 1) * total) / piecesPerPair);
+	  final int aLen = aE - aS;
+	  final int bLen = bE - aE;
+	  final int i0 = coRank(fsrc, aS, aLen, aE, bLen, k0, comp);
+	  final int i1 = coRank(fsrc, aS, aLen, aE, bLen, k1, comp);
+	  merge(fsrc, aS + i0, aS + i1, aE + (k0 - i0), aE + (k1 - i1), fdst, aS + k0, comp);
+	});
+      src = fdst;
+      dst = fsrc;
+    }
+    if (src != data)
+      System.arraycopy(src, 0, data, 0, n);
+  }
+}
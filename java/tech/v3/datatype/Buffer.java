@@ -46,6 +46,48 @@ public interface Buffer extends DatatypeBase, IMutList<Object>
   default void writeLong(long idx, long val) { writeObject(idx,val); }
   default void writeDouble(long idx, double val) { writeDouble(idx,val); }
   default void writeObject(long idx, Object val) { throw new RuntimeException("Unimplemented"); }
+  /**
+   * Block read of len elements starting at srcIdx into dst starting at off.  Buffers
+   * backed by arrays or native memory override these to copy whole blocks so
+   * algorithms can process data in cache-sized chunks without a virtual call per
+   * element.
+   */
+  default void readDoubles(long srcIdx, double[] dst, int off, int len) {
+    for(int idx = 0; idx < len; ++idx)
+      dst[off+idx] = readDouble(srcIdx+idx);
+  }
+  default void readFloats(long srcIdx, float[] dst, int off, int len) {
+    for(int idx = 0; idx < len; ++idx)
+      dst[off+idx] = (float)readDouble(srcIdx+idx);
+  }
+  default void readLongs(long srcIdx, long[] dst, int off, int len) {
+    for(int idx = 0; idx < len; ++idx)
+      dst[off+idx] = readLong(srcIdx+idx);
+  }
+  default void readInts(long srcIdx, int[] dst, int off, int len) {
+    for(int idx = 0; idx < len; ++idx)
+      dst[off+idx] = RT.intCast(readLong(srcIdx+idx));
+  }
+  /**
+   * Block write of len elements from src starting at off into this buffer starting at
+   * dstIdx.
+   */
+  default void writeDoubles(long dstIdx, double[] src, int off, int len) {
+    for(int idx = 0; idx < len; ++idx)
+      writeDouble(dstIdx+idx, src[off+idx]);
+  }
+  default void writeFloats(long dstIdx, float[] src, int off, int len) {
+    for(int idx = 0; idx < len; ++idx)
+      writeDouble(dstIdx+idx, src[off+idx]);
+  }
+  default void writeLongs(long dstIdx, long[] src, int off, int len) {
+    for(int idx = 0; idx < len; ++idx)
+      writeLong(dstIdx+idx, src[off+idx]);
+  }
+  default void writeInts(long dstIdx, int[] src, int off, int len) {
+    for(int idx = 0; idx < len; ++idx)
+      writeLong(dstIdx+idx, src[off+idx]);
+  }
 
   public static class SubBuffer implements Buffer {
     public final Buffer list;
@@ -70,6 +112,38 @@ public interface Buffer extends DatatypeBase, IMutList<Object>
     public void writeLong(long idx, long val) { list.writeLong(idx+sidx,val); }
     public void writeDouble(long idx, double val) { list.writeDouble(idx+sidx,val); }
     public void writeObject(long idx, Object val) { list.writeObject(idx+sidx,val); }
+    public void readDoubles(long srcIdx, double[] dst, int off, int len) {
+      ChunkedList.checkIndexRange(0, nElems, srcIdx, srcIdx+len);
+      list.readDoubles(srcIdx+sidx, dst, off, len);
+    }
+    public void readFloats(long srcIdx, float[] dst, int off, int len) {
+      ChunkedList.checkIndexRange(0, nElems, srcIdx, srcIdx+len);
+      list.readFloats(srcIdx+sidx, dst, off, len);
+    }
+    public void readLongs(long srcIdx, long[] dst, int off, int len) {
+      ChunkedList.checkIndexRange(0, nElems, srcIdx, srcIdx+len);
+      list.readLongs(srcIdx+sidx, dst, off, len);
+    }
+    public void readInts(long srcIdx, int[] dst, int off, int len) {
+      ChunkedList.checkIndexRange(0, nElems, srcIdx, srcIdx+len);
+      list.readInts(srcIdx+sidx, dst, off, len);
+    }
+    public void writeDoubles(long dstIdx, double[] src, int off, int len) {
+      ChunkedList.checkIndexRange(0, nElems, dstIdx, dstIdx+len);
+      list.writeDoubles(dstIdx+sidx, src, off, len);
+    }
+    public void writeFloats(long dstIdx, float[] src, int off, int len) {
+      ChunkedList.checkIndexRange(0, nElems, dstIdx, dstIdx+len);
+      list.writeFloats(dstIdx+sidx, src, off, len);
+    }
+    public void writeLongs(long dstIdx, long[] src, int off, int len) {
+      ChunkedList.checkIndexRange(0, nElems, dstIdx, dstIdx+len);
+      list.writeLongs(dstIdx+sidx, src, off, len);
+    }
+    public void writeInts(long dstIdx, int[] src, int off, int len) {
+      ChunkedList.checkIndexRange(0, nElems, dstIdx, dstIdx+len);
+      list.writeInts(dstIdx+sidx, src, off, len);
+    }
     public void accumPlusLong(long idx, long val) {
       list.accumPlusLong(idx+sidx, val);
     }
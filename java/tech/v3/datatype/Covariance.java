@@ -0,0 +1,141 @@
+package tech.v3.datatype;
+
+
+import java.util.Arrays;
+
+
+/**
+ * Covariance and correlation matrices of many equal length columns.  Columns are
+ * centered once and the cross products are accumulated over tiles of columns and rows
+ * so each tile of column data is reused from cache by every column pair in the tile.
+ * Tiles are processed in parallel.
+ */
+public final class Covariance {
+  public static final int BLOCK_COLS = 16;
+  public static final int BLOCK_ROWS = 2048;
+
+  /** Subtract the mean from each column in place returning the means. */
+  public static double[] center(double[][] columns) {
+    final double[] means = new double[columns.length];
+    ParallelChunks.forEachTask(columns.length, cidx -> {
+	final double[] col = columns[cidx];
+	final int n = col.length;
+	double sum = 0.0;
+	for (int idx = 0; idx < n; ++idx)
+	  sum += col[idx];
+	double mean = sum / n;
+	//Second pass correction for accumulated rounding error in the mean
+	double corr = 0.0;
+	for (int idx = 0; idx < n; ++idx)
+	  corr += col[idx] - mean;
+	mean += corr / n;
+	for (int idx = 0; idx < n; ++idx)
+	  col[idx] -= mean;
+	means[cidx] = mean;
+      });
+    return means;
+  }
+  /**
+   * Replace each column in place with the 1-based ranks of its values, tied values
+   * receiving the average of their ranks.  Throws on NaN.
+   */
+  public static void rank(double[][] columns) {
+    ParallelChunks.forEachTask(columns.length, cidx -> {
+	final double[] col = columns[cidx];
+	final double[] sorted = col.clone();
+	Arrays.sort(sorted);
+	final int n = sorted.length;
+	if (n > 0 && Double.isNaN(sorted[n-1]))
+	  throw new IllegalArgumentException("NaN in column " + cidx + " cannot be ranked");
+	for (int idx = 0; idx < n; ++idx) {
+	  final double v = col[idx];
+	  //Ties occupy sorted[lo,hi) so their average 1-based rank is (lo + 1 + hi) / 2
+	  final int lo = firstIndexOf(sorted, v, true);
+	  final int hi = firstIndexOf(sorted, v, false);
+	  col[idx] = (lo + 1 + hi) / 2.0;
+	}
+      });
+  }
+  /** First index whose value is >= v when inclusive, > v otherwise. */
+  static int firstIndexOf(double[] sorted, double v, boolean inclusive) {
+    int lo = 0;
+    int hi = sorted.length;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      final double sv = sorted[mid];
+      if (inclusive ? sv < v : sv <= v)
+	lo = mid + 1;
+      else
+	hi = mid;
+    }
+    return lo;
+  }
+  /**
+   * Sample covariance matrix, divided by n-1, of centered columns.  Only the upper
+   * triangle is computed and then mirrored.
+   */
+  public static double[][] covariance(double[][] centered) {
+    final int nCols = centered.length;
+    final int nRows = nCols == 0 ? 0 : centered[0].length;
+    for (int cidx = 0; cidx < nCols; ++cidx)
+      if (centered[cidx].length != nRows)
+	throw new IllegalArgumentException("Column " + cidx + " length " + centered[cidx].length
+					   + " does not match column 0 length " + nRows);
+    final double[][] rv = new double[nCols][nCols];
+    final int nBlocks = (nCols + BLOCK_COLS - 1) / BLOCK_COLS;
+    //Upper triangle of tile pairs, row-major
+    final int nTiles = nBlocks * (nBlocks + 1) / 2;
+    final int[] tileRows = new int[nTiles];
+    final int[] tileCols = new int[nTiles];
+    int tidx = 0;
+    for (int bi = 0; bi < nBlocks; ++bi) {
+      for (int bj = bi; bj < nBlocks; ++bj) {
+	tileRows[tidx] = bi;
+	tileCols[tidx] = bj;
+	++tidx;
+      }
+    }
+    ParallelChunks.forEachTask(nTiles, tile -> {
+	final int is = tileRows[tile] * BLOCK_COLS;
+	final int ie = Math.min(nCols, is + BLOCK_COLS);
+	final int js = tileCols[tile] * BLOCK_COLS;
+	final int je = Math.min(nCols, js + BLOCK_COLS);
+	final double[] sums = new double[BLOCK_COLS * BLOCK_COLS];
+	for (int rs = 0; rs < nRows; rs += BLOCK_ROWS) {
+	  final int re = Math.min(nRows, rs + BLOCK_ROWS);
+	  for (int i = is; i < ie; ++i) {
+	    final double[] ci = centered[i];
+	    for (int j = Math.max(i, js); j < je; ++j) {
+	      final double[] cj = centered[j];
+	      double sum = 0.0;
+	      for (int r = rs; r < re; ++r)
+		sum += ci[r] * cj[r];
+	      sums[(i - is) * BLOCK_COLS + (j - js)] += sum;
+	    }
+	  }
+	}
+	final double denom = nRows - 1;
+	for (int i = is; i < ie; ++i) {
+	  for (int j = Math.max(i, js); j < je; ++j) {
+	    final double v = sums[(i - is) * BLOCK_COLS + (j - js)] / denom;
+	    rv[i][j] = v;
+	    rv[j][i] = v;
+	  }
+	}
+      });
+    return rv;
+  }
+  /** Convert a covariance matrix into a correlation matrix in place. */
+  public static double[][] correlation(double[][] cov) {
+    final int n = cov.length;
+    final double[] sds = new double[n];
+    for (int idx = 0; idx < n; ++idx)
+      sds[idx] = Math.sqrt(cov[idx][idx]);
+    for (int i = 0; i < n; ++i) {
+      final double[] row = cov[i];
+      for (int j = 0; j < n; ++j)
+	row[j] = i == j && sds[i] != 0.0 ? 1.0 : row[j] / (sds[i] * sds[j]);
+    }
+    return cov;
+  }
+}
@@ -108,4 +108,81 @@ public class DoubleConsumers
 	  Sum.nElemsKwd, nElems });
     }
   }
+
+  /**
+   * Single pass, mergeable accumulation of the sum, min, max, mean and the second
+   * through fourth central moment sums.  Values are folded in with the updates of
+   * Welford and Terriberry and partitions are combined with the pairwise formulas of
+   * Chan and Pebay so the result does not depend on a previously computed mean.
+   */
+  public static final class WelfordMoments implements Reducible, DoubleConsumer, IDeref
+  {
+    public static final Keyword meanKwd = Keyword.intern(null, "mean");
+    public final MinMaxSum minMaxSum;
+    public double mean;
+    public double m2;
+    public double m3;
+    public double m4;
+    public WelfordMoments(MinMaxSum _minMaxSum, double _mean, double _m2, double _m3,
+			  double _m4) {
+      minMaxSum = _minMaxSum;
+      mean = _mean;
+      m2 = _m2;
+      m3 = _m3;
+      m4 = _m4;
+    }
+    public WelfordMoments() {
+      this(new MinMaxSum(), 0.0, 0.0, 0.0, 0.0);
+    }
+    public long nElems() { return minMaxSum.sum.nElems; }
+    public void accept(double val) {
+      final double n1 = nElems();
+      minMaxSum.accept(val);
+      final double n = n1 + 1.0;
+      final double delta = val - mean;
+      final double deltaN = delta / n;
+      final double deltaN2 = deltaN * deltaN;
+      final double term1 = delta * deltaN * n1;
+      mean += deltaN;
+      m4 += term1 * deltaN2 * (n*n - 3.0*n + 3.0) + 6.0 * deltaN2 * m2 - 4.0 * deltaN * m3;
+      m3 += term1 * deltaN * (n - 2.0) - 3.0 * deltaN * m2;
+      m2 += term1;
+    }
+    public Reducible reduce(Reducible _other) {
+      final WelfordMoments other = (WelfordMoments)_other;
+      if (nElems() == 0)
+	return other;
+      if (other.nElems() == 0)
+	return this;
+      final double na = nElems();
+      final double nb = other.nElems();
+      final double n = na + nb;
+      final double delta = other.mean - mean;
+      final double delta2 = delta * delta;
+      final double nab = na * nb;
+      final double rm2 = m2 + other.m2 + delta2 * nab / n;
+      final double rm3 = m3 + other.m3
+	+ delta * delta2 * nab * (na - nb) / (n * n)
+	+ 3.0 * delta * (na * other.m2 - nb * m2) / n;
+      final double rm4 = m4 + other.m4
+	+ delta2 * delta2 * nab * (na*na - nab + nb*nb) / (n * n * n)
+	+ 6.0 * delta2 * (na*na * other.m2 + nb*nb * m2) / (n * n)
+	+ 4.0 * delta * (na * other.m3 - nb * m3) / n;
+      return new WelfordMoments((MinMaxSum)minMaxSum.reduce(other.minMaxSum),
+				mean + delta * nb / n, rm2, rm3, rm4);
+    }
+    public Object deref() {
+      final double sum = minMaxSum.sum.computeFinalSum();
+      final long n = nElems();
+      return new PersistentArrayMap(new Object[] {
+	  Sum.sumKwd, sum,
+	  Sum.nElemsKwd, n,
+	  MinMaxSum.minKwd, minMaxSum.getMin(),
+	  MinMaxSum.maxKwd, minMaxSum.getMax(),
+	  meanKwd, sum / n,
+	  Moments.m2Kwd, m2,
+	  Moments.m3Kwd, m3,
+	  Moments.m4Kwd, m4 });
+    }
+  }
 }
@@ -0,0 +1,93 @@
+package tech.v3.datatype;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+
+
+/**
+ * Reader that counts element reads of a lazy source buffer and, once more than
+ * readThreshold elements have been read, replaces the source with the result of
+ * materializeFn.  Guards downstream algorithms that read their input many times -
+ * sorts, percentiles, joins - from recomputing a lazy reader on every pass.
+ *
+ * The read count is deliberately unsynchronized; concurrent readers may undercount
+ * slightly which only delays materialization.
+ */
+public final class MaterializingBuffer implements Buffer {
+  public static final AtomicLong nWrapped = new AtomicLong();
+  public static final AtomicLong nMaterialized = new AtomicLong();
+  public static final AtomicLong nElemsMaterialized = new AtomicLong();
+
+  public final Buffer src;
+  public final IFn materializeFn;
+  public final long readThreshold;
+  final IPersistentMap meta;
+  long nReads;
+  volatile Buffer materialized;
+
+  public MaterializingBuffer(Buffer _src, IFn _materializeFn, long _readThreshold,
+			     IPersistentMap _meta) {
+    src = _src;
+    materializeFn = _materializeFn;
+    readThreshold = _readThreshold;
+    meta = _meta;
+    nWrapped.incrementAndGet();
+  }
+  MaterializingBuffer(MaterializingBuffer other, IPersistentMap _meta) {
+    src = other.src;
+    materializeFn = other.materializeFn;
+    readThreshold = other.readThreshold;
+    meta = _meta;
+    nReads = other.nReads;
+    materialized = other.materialized;
+  }
+  final synchronized Buffer materialize() {
+    Buffer rv = materialized;
+    if (rv == null) {
+      rv = (Buffer)materializeFn.invoke(src);
+      materialized = rv;
+      nMaterialized.incrementAndGet();
+      nElemsMaterialized.addAndGet(src.lsize());
+    }
+    return rv;
+  }
+  /** Buffer to service a read of nElems elements from. */
+  final Buffer target(long nElems) {
+    final Buffer rv = materialized;
+    if (rv != null)
+      return rv;
+    final long nr = nReads + nElems;
+    nReads = nr;
+    return nr > readThreshold ? materialize() : src;
+  }
+  public boolean isMaterialized() { return materialized != null; }
+  public long readCount() { return nReads; }
+
+  public Object elemwiseDatatype() { return src.elemwiseDatatype(); }
+  public long lsize() { return src.lsize(); }
+  public boolean allowsRead() { return true; }
+  public boolean allowsWrite() { return false; }
+  public byte readByte(long idx) { return target(1).readByte(idx); }
+  public long readLong(long idx) { return target(1).readLong(idx); }
+  public double readDouble(long idx) { return target(1).readDouble(idx); }
+  public Object readObject(long idx) { return target(1).readObject(idx); }
+  public void readDoubles(long srcIdx, double[] dst, int off, int len) {
+    target(len).readDoubles(srcIdx, dst, off, len);
+  }
+  public void readFloats(long srcIdx, float[] dst, int off, int len) {
+    target(len).readFloats(srcIdx, dst, off, len);
+  }
+  public void readLongs(long srcIdx, long[] dst, int off, int len) {
+    target(len).readLongs(srcIdx, dst, off, len);
+  }
+  public void readInts(long srcIdx, int[] dst, int off, int len) {
+    target(len).readInts(srcIdx, dst, off, len);
+  }
+  public Object reduce(IFn rfn, Object init) {
+    return target(lsize()).reduce(rfn, init);
+  }
+  public IPersistentMap meta() { return meta; }
+  public Buffer withMeta(IPersistentMap m) { return new MaterializingBuffer(this, m); }
+}
@@ -16,6 +16,8 @@ import java.util.Collection;
 import java.util.Random;
 import ham_fisted.IMutList;
 import ham_fisted.ArrayLists;
+import ham_fisted.ArraySection;
+import ham_fisted.ChunkedList;
 import ham_fisted.Transformables;
 import ham_fisted.ParallelOptions;
 import clojure.lang.IObj;
@@ -37,6 +39,11 @@ public class MutListBuffer implements Buffer, Cloneable {
   public final boolean supportsWrite;
   public final Keyword elemwiseDatatype;
 
+  static final Keyword float64 = Keyword.intern(null, "float64");
+  static final Keyword float32 = Keyword.intern(null, "float32");
+  static final Keyword int64 = Keyword.intern(null, "int64");
+  static final Keyword int32 = Keyword.intern(null, "int32");
+
   public MutListBuffer(IMutList _data, boolean _supportsWrite, Keyword ewiseDt) {
     data = _data;
     supportsWrite = _supportsWrite;
@@ -78,6 +85,73 @@ public class MutListBuffer implements Buffer, Cloneable {
   public void writeDouble(long idx, double val) { data.setDouble((int)idx, val); }
   @SuppressWarnings("unchecked")
   public void writeObject(long idx, Object val) { data.set((int)idx, val); }
+  /**
+   * Backing array section when data is an array of exactly dtype so block reads and
+   * writes can use System/arraycopy - null otherwise.
+   */
+  final ArraySection arraySection(Keyword dtype, long idx, int len) {
+    if (elemwiseDatatype == dtype && data instanceof ArrayLists.ArrayOwner) {
+      ChunkedList.checkIndexRange(0, data.size(), idx, idx + len);
+      return ((ArrayLists.ArrayOwner)data).getArraySection();
+    }
+    return null;
+  }
+  public void readDoubles(long srcIdx, double[] dst, int off, int len) {
+    final ArraySection s = arraySection(float64, srcIdx, len);
+    if (s != null)
+      System.arraycopy(s.array, s.sidx + (int)srcIdx, dst, off, len);
+    else
+      Buffer.super.readDoubles(srcIdx, dst, off, len);
+  }
+  public void readFloats(long srcIdx, float[] dst, int off, int len) {
+    final ArraySection s = arraySection(float32, srcIdx, len);
+    if (s != null)
+      System.arraycopy(s.array, s.sidx + (int)srcIdx, dst, off, len);
+    else
+      Buffer.super.readFloats(srcIdx, dst, off, len);
+  }
+  public void readLongs(long srcIdx, long[] dst, int off, int len) {
+    final ArraySection s = arraySection(int64, srcIdx, len);
+    if (s != null)
+      System.arraycopy(s.array, s.sidx + (int)srcIdx, dst, off, len);
+    else
+      Buffer.super.readLongs(srcIdx, dst, off, len);
+  }
+  public void readInts(long srcIdx, int[] dst, int off, int len) {
+    final ArraySection s = arraySection(int32, srcIdx, len);
+    if (s != null)
+      System.arraycopy(s.array, s.sidx + (int)srcIdx, dst, off, len);
+    else
+      Buffer.super.readInts(srcIdx, dst, off, len);
+  }
+  public void writeDoubles(long dstIdx, double[] src, int off, int len) {
+    final ArraySection s = arraySection(float64, dstIdx, len);
+    if (s != null)
+      System.arraycopy(src, off, s.array, s.sidx + (int)dstIdx, len);
+    else
+      Buffer.super.writeDoubles(dstIdx, src, off, len);
+  }
+  public void writeFloats(long dstIdx, float[] src, int off, int len) {
+    final ArraySection s = arraySection(float32, dstIdx, len);
+    if (s != null)
+      System.arraycopy(src, off, s.array, s.sidx + (int)dstIdx, len);
+    else
+      Buffer.super.writeFloats(dstIdx, src, off, len);
+  }
+  public void writeLongs(long dstIdx, long[] src, int off, int len) {
+    final ArraySection s = arraySection(int64, dstIdx, len);
+    if (s != null)
+      System.arraycopy(src, off, s.array, s.sidx + (int)dstIdx, len);
+    else
+      Buffer.super.writeLongs(dstIdx, src, off, len);
+  }
+  public void writeInts(long dstIdx, int[] src, int off, int len) {
+    final ArraySection s = arraySection(int32, dstIdx, len);
+    if (s != null)
+      System.arraycopy(src, off, s.array, s.sidx + (int)dstIdx, len);
+    else
+      Buffer.super.writeInts(dstIdx, src, off, len);
+  }
   public Object get(int idx) { return data.get(idx); }
   @SuppressWarnings("unchecked")
   public Object set(int idx, Object val) { return data.set(idx, val); }
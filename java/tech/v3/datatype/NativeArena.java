@@ -0,0 +1,239 @@
+package tech.v3.datatype;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import sun.misc.Unsafe;
+import clojure.lang.Keyword;
+
+
+/**
+ * Size-class arena allocator for short-lived native memory.  Small requests are
+ * rounded up to a power-of-two size class and carved out of large slabs by a
+ * per-thread bump pointer.  Blocks handed back via free are kept in per-thread free
+ * lists and reused by later allocations of the same class.  Each per-thread list holds
+ * at most MAX_LOCAL_FREE blocks; beyond that half of it spills to a list shared by all
+ * threads, which threads with an empty list draw from before carving new blocks, so
+ * blocks freed on one thread and allocated on another do not accumulate.  Requests above
+ * maxClassSize go straight to Unsafe but are still owned by the arena.  Closing the
+ * arena releases every slab and large allocation at once - any address handed out by
+ * the arena is invalid after close.
+ */
+public final class NativeArena implements AutoCloseable {
+  public static final int MIN_CLASS_SHIFT = 4;
+  public static final long DEFAULT_SLAB_SIZE = 1L << 20;
+  public static final long DEFAULT_MAX_CLASS_SIZE = 1L << 16;
+  public static final Keyword trackType = Keyword.intern(null, "arena");
+  /** Blocks per size class a thread keeps before spilling to the shared lists. */
+  public static final int MAX_LOCAL_FREE = 256;
+
+  static final class ThreadCache {
+    long slabPos;
+    long slabEnd;
+    final long[][] freeLists;
+    final int[] freeCounts;
+    ThreadCache(int nClasses) {
+      freeLists = new long[nClasses][];
+      freeCounts = new int[nClasses];
+    }
+  }
+
+  public final long slabSize;
+  public final long maxClassSize;
+  final int nClasses;
+  final ThreadLocal<ThreadCache> cache;
+  //All slabs, large allocations, shared free lists and thread caches are guarded by
+  //this.
+  final ArrayList<Long> slabs = new ArrayList<Long>();
+  final HashMap<Long,Long> largeAllocs = new HashMap<Long,Long>();
+  final ArrayList<ThreadCache> caches = new ArrayList<ThreadCache>();
+  final long[][] sharedLists;
+  final int[] sharedCounts;
+  //Read without the lock so allocations skip it while nothing has spilled.
+  volatile long sharedBlocks;
+  long largeBytes;
+  volatile boolean closed;
+
+  public static int sizeClass(long nBytes) {
+    if (nBytes <= (1L << MIN_CLASS_SHIFT))
+      return 0;
+    return (64 - Long.numberOfLeadingZeros(nBytes - 1)) - MIN_CLASS_SHIFT;
+  }
+  public static long classSize(int sizeClass) {
+    return 1L << (sizeClass + MIN_CLASS_SHIFT);
+  }
+
+  public NativeArena(long _slabSize, long _maxClassSize) {
+    if (_maxClassSize < (1L << MIN_CLASS_SHIFT))
+      throw new IllegalArgumentException("Max class size must be at least "
+					 + (1L << MIN_CLASS_SHIFT) + " bytes");
+    maxClassSize = classSize(sizeClass(_maxClassSize));
+    if (_slabSize < maxClassSize)
+      throw new IllegalArgumentException("Slab size (" + _slabSize
+					 + ") must be >= max class size ("
+					 + maxClassSize + ")");
+    slabSize = _slabSize;
+    nClasses = sizeClass(maxClassSize) + 1;
+    sharedLists = new long[nClasses][];
+    sharedCounts = new int[nClasses];
+    cache = ThreadLocal.withInitial(this::newThreadCache);
+  }
+  public NativeArena() { this(DEFAULT_SLAB_SIZE, DEFAULT_MAX_CLASS_SIZE); }
+
+  final void checkOpen() {
+    if (closed)
+      throw new IllegalStateException("Native arena is closed");
+  }
+  final synchronized ThreadCache newThreadCache() {
+    final ThreadCache tc = new ThreadCache(nClasses);
+    caches.add(tc);
+    return tc;
+  }
+  /** Move up to MAX_LOCAL_FREE/2 shared blocks of cls onto tc's list. */
+  final synchronized int refill(ThreadCache tc, int cls) {
+    final int avail = sharedCounts[cls];
+    if (avail == 0)
+      return 0;
+    final int n = Math.min(avail, MAX_LOCAL_FREE / 2);
+    if (tc.freeLists[cls] == null)
+      tc.freeLists[cls] = new long[MAX_LOCAL_FREE];
+    System.arraycopy(sharedLists[cls], avail - n, tc.freeLists[cls], 0, n);
+    sharedCounts[cls] = avail - n;
+    sharedBlocks -= n;
+    return n;
+  }
+  /** Move the oldest half of tc's full list for cls to the shared list. */
+  final synchronized void spill(ThreadCache tc, int cls) {
+    final int n = MAX_LOCAL_FREE / 2;
+    final long[] flist = tc.freeLists[cls];
+    final int cnt = sharedCounts[cls];
+    long[] shared = sharedLists[cls];
+    if (shared == null || cnt + n > shared.length) {
+      final long[] newList = new long[Math.max(MAX_LOCAL_FREE, (cnt + n) * 2)];
+      if (shared != null)
+	System.arraycopy(shared, 0, newList, 0, cnt);
+      shared = newList;
+      sharedLists[cls] = shared;
+    }
+    System.arraycopy(flist, 0, shared, cnt, n);
+    System.arraycopy(flist, n, flist, 0, MAX_LOCAL_FREE - n);
+    sharedCounts[cls] = cnt + n;
+    sharedBlocks += n;
+    tc.freeCounts[cls] = MAX_LOCAL_FREE - n;
+  }
+  final synchronized long newSlab() {
+    checkOpen();
+    long addr = UnsafeUtil.unsafe.allocateMemory(slabSize);
+    NativeMemoryTracker.recordAlloc(addr, slabSize, trackType);
+    slabs.add(addr);
+    return addr;
+  }
+  final synchronized long allocateLarge(long nBytes) {
+    checkOpen();
+    long addr = UnsafeUtil.unsafe.allocateMemory(nBytes);
+    NativeMemoryTracker.recordAlloc(addr, nBytes, trackType);
+    largeAllocs.put(addr, nBytes);
+    largeBytes += nBytes;
+    return addr;
+  }
+  final synchronized void freeLarge(long addr) {
+    Long nBytes = largeAllocs.remove(addr);
+    if (nBytes == null)
+      throw new IllegalArgumentException(String.format("Address 0x%016X was not allocated by this arena", addr));
+    largeBytes -= nBytes;
+    NativeMemoryTracker.recordFree(addr, nBytes, trackType);
+    UnsafeUtil.unsafe.freeMemory(addr);
+  }
+  /**
+   * Allocate nBytes of uninitialized memory.  Small allocations are aligned to at
+   * least 16 bytes.
+   */
+  public long allocate(long nBytes) {
+    checkOpen();
+    if (nBytes > maxClassSize)
+      return allocateLarge(nBytes);
+    final int cls = sizeClass(nBytes);
+    final ThreadCache tc = cache.get();
+    int cnt = tc.freeCounts[cls];
+    if (cnt == 0 && sharedBlocks > 0)
+      cnt = refill(tc, cls);
+    if (cnt > 0) {
+      tc.freeCounts[cls] = cnt - 1;
+      return tc.freeLists[cls][cnt - 1];
+    }
+    final long csize = classSize(cls);
+    if (tc.slabPos + csize > tc.slabEnd) {
+      tc.slabPos = newSlab();
+      tc.slabEnd = tc.slabPos + slabSize;
+    }
+    final long rv = tc.slabPos;
+    tc.slabPos += csize;
+    return rv;
+  }
+  /**
+   * Return a block to the arena.  nBytes must be the size passed to allocate.  Small
+   * blocks go onto the calling thread's free list for their size class.
+   */
+  public void free(long addr, long nBytes) {
+    if (closed || addr == 0)
+      return;
+    if (nBytes > maxClassSize) {
+      freeLarge(addr);
+      return;
+    }
+    final int cls = sizeClass(nBytes);
+    final ThreadCache tc = cache.get();
+    if (tc.freeLists[cls] == null)
+      tc.freeLists[cls] = new long[MAX_LOCAL_FREE];
+    if (tc.freeCounts[cls] == MAX_LOCAL_FREE)
+      spill(tc, cls);
+    final int cnt = tc.freeCounts[cls];
+    tc.freeLists[cls][cnt] = addr;
+    tc.freeCounts[cls] = cnt + 1;
+  }
+  public boolean isClosed() { return closed; }
+  /**
+   * Bytes of native memory currently reserved by the arena in slabs and large
+   * allocations.
+   */
+  public synchronized long reservedBytes() {
+    return (slabs.size() * slabSize) + largeBytes;
+  }
+  public synchronized long slabCount() { return slabs.size(); }
+  /**
+   * Release all memory owned by the arena.  Safe to call multiple times.  Thread caches
+   * are emptied as well - threads other than the caller keep a ThreadLocal entry for
+   * the arena until it is collected so it must not hold on to the free lists.
+   */
+  public synchronized void close() {
+    if (closed)
+      return;
+    closed = true;
+    for (ThreadCache tc : caches) {
+      tc.slabPos = 0;
+      tc.slabEnd = 0;
+      java.util.Arrays.fill(tc.freeLists, null);
+      java.util.Arrays.fill(tc.freeCounts, 0);
+    }
+    caches.clear();
+    cache.remove();
+    java.util.Arrays.fill(sharedLists, null);
+    java.util.Arrays.fill(sharedCounts, 0);
+    sharedBlocks = 0;
+    final Unsafe us = UnsafeUtil.unsafe;
+    final int ns = slabs.size();
+    for (int idx = 0; idx < ns; ++idx) {
+      final long addr = slabs.get(idx);
+      NativeMemoryTracker.recordFree(addr, slabSize, trackType);
+      us.freeMemory(addr);
+    }
+    slabs.clear();
+    for (Map.Entry<Long,Long> entry : largeAllocs.entrySet()) {
+      NativeMemoryTracker.recordFree(entry.getKey(), entry.getValue(), trackType);
+      us.freeMemory(entry.getKey());
+    }
+    largeAllocs.clear();
+    largeBytes = 0;
+  }
+}
@@ -0,0 +1,152 @@
+package tech.v3.datatype;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import clojure.lang.Keyword;
+
+
+/**
+ * Process-wide accounting of native memory allocated through dtype-next - malloc,
+ * arena slabs and mmapped files.  By default only atomic counters are kept so an
+ * allocation costs a handful of atomic adds.  With detailed tracking on every live
+ * allocation is also kept in a table keyed by address for leak reports and, when an
+ * allocation site sampling interval is set, every Nth allocation captures the stack
+ * trace of the allocating thread so leak reports can attribute memory to code.
+ * Allocations made while detailed tracking is off never appear in the table.
+ *
+ * Tracking can be disabled for the life of the process with the system property
+ * tech.v3.datatype.native-memory-tracking=false and detailed tracking enabled from
+ * startup with tech.v3.datatype.native-memory-tracking=detailed.
+ */
+public final class NativeMemoryTracker {
+  public static final boolean enabled =
+    !"false".equals(System.getProperty("tech.v3.datatype.native-memory-tracking"));
+  public static final Keyword untrackedType = Keyword.intern(null, "untracked");
+  static volatile boolean detailed =
+    "detailed".equals(System.getProperty("tech.v3.datatype.native-memory-tracking"));
+
+  public static final class Allocation {
+    public final long address;
+    public final long nBytes;
+    public final Object trackType;
+    public final long timestampMs;
+    public final StackTraceElement[] site;
+    public Allocation(long _address, long _nBytes, Object _trackType, long _timestampMs,
+		      StackTraceElement[] _site) {
+      address = _address;
+      nBytes = _nBytes;
+      trackType = _trackType;
+      timestampMs = _timestampMs;
+      site = _site;
+    }
+  }
+
+  public static final class TypeStats {
+    public final AtomicLong liveCount = new AtomicLong();
+    public final AtomicLong liveBytes = new AtomicLong();
+    public final AtomicLong nAllocations = new AtomicLong();
+  }
+
+  static final AtomicLong liveBytes = new AtomicLong();
+  static final AtomicLong peakBytes = new AtomicLong();
+  static final AtomicLong nAllocations = new AtomicLong();
+  static final AtomicLong nFrees = new AtomicLong();
+  static final AtomicLong sampleCounter = new AtomicLong();
+  static volatile long sampleInterval = 0;
+  static final ConcurrentHashMap<Long,Allocation> live = new ConcurrentHashMap<Long,Allocation>();
+  static final ConcurrentHashMap<Object,TypeStats> byType = new ConcurrentHashMap<Object,TypeStats>();
+
+  private NativeMemoryTracker() {}
+
+  static TypeStats typeStats(Object trackType) {
+    TypeStats rv = byType.get(trackType);
+    if (rv == null) {
+      byType.putIfAbsent(trackType, new TypeStats());
+      rv = byType.get(trackType);
+    }
+    return rv;
+  }
+
+  public static void recordAlloc(long address, long nBytes, Object trackType) {
+    if (!enabled || address == 0)
+      return;
+    if (trackType == null)
+      trackType = untrackedType;
+    if (detailed) {
+      final long interval = sampleInterval;
+      final StackTraceElement[] site =
+	(interval > 0 && (sampleCounter.incrementAndGet() % interval) == 0)
+	? Thread.currentThread().getStackTrace() : null;
+      live.put(address, new Allocation(address, nBytes, trackType,
+				       System.currentTimeMillis(), site));
+    }
+    final TypeStats ts = typeStats(trackType);
+    ts.liveCount.incrementAndGet();
+    ts.liveBytes.addAndGet(nBytes);
+    ts.nAllocations.incrementAndGet();
+    nAllocations.incrementAndGet();
+    final long curLive = liveBytes.addAndGet(nBytes);
+    long curPeak = peakBytes.get();
+    while (curLive > curPeak && !peakBytes.compareAndSet(curPeak, curLive))
+      curPeak = peakBytes.get();
+  }
+  static void decrement(long nBytes, Object trackType) {
+    final TypeStats ts = typeStats(trackType == null ? untrackedType : trackType);
+    ts.liveCount.decrementAndGet();
+    ts.liveBytes.addAndGet(-nBytes);
+    nFrees.incrementAndGet();
+    liveBytes.addAndGet(-nBytes);
+  }
+  /**
+   * Record that an allocation recorded with the same size and track type was
+   * released.  Must be called exactly once per allocation.
+   */
+  public static void recordFree(long address, long nBytes, Object trackType) {
+    if (!enabled || address == 0)
+      return;
+    if (!live.isEmpty())
+      live.remove(address);
+    decrement(nBytes, trackType);
+  }
+  /**
+   * Record a release by address alone.  Only allocations in the detailed tracking
+   * table can be found this way; other addresses are ignored, as are repeated calls.
+   */
+  public static void recordFree(long address) {
+    if (!enabled || address == 0)
+      return;
+    final Allocation alloc = live.remove(address);
+    if (alloc != null)
+      decrement(alloc.nBytes, alloc.trackType);
+  }
+  /**
+   * Keep a table of every live allocation for leak reports.  Allocations made while
+   * detailed tracking is off are counted but never reported.
+   */
+  public static void setDetailed(boolean _detailed) { detailed = _detailed; }
+  public static boolean detailed() { return detailed; }
+  /**
+   * Capture the allocation site of every Nth allocation.  0 disables sampling.
+   */
+  public static void setSampleInterval(long interval) {
+    if (interval < 0)
+      throw new IllegalArgumentException("Sample interval must be >= 0");
+    sampleInterval = interval;
+  }
+  public static long sampleInterval() { return sampleInterval; }
+  public static long liveBytes() { return liveBytes.get(); }
+  public static long peakBytes() { return peakBytes.get(); }
+  public static long nAllocations() { return nAllocations.get(); }
+  public static long nFrees() { return nFrees.get(); }
+  public static long liveCount() { return nAllocations.get() - nFrees.get(); }
+  /** Reset peak bytes to the current live byte count. */
+  public static void resetPeak() { peakBytes.set(liveBytes.get()); }
+  public static Map<Object,TypeStats> typeStats() { return byType; }
+  public static List<Allocation> liveAllocations() {
+    return new ArrayList<Allocation>(live.values());
+  }
+}
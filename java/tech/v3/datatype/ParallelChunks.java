@@ -0,0 +1,52 @@
+package tech.v3.datatype;
+
+
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+
+/**
+ * Contiguous chunking shared by the parallel primitive kernels.  A range of n
+ * elements is split into nChunks(n, parallelMinElems) chunks of near equal length;
+ * a single chunk runs on the calling thread.
+ */
+public final class ParallelChunks {
+  /** Chunks are not split below this many elements. */
+  public static final int MIN_CHUNK_ELEMS = 16384;
+
+  public interface ChunkConsumer {
+    void accept(int chunk, int sidx, int eidx);
+  }
+
+  /**
+   * Number of contiguous chunks to split n elements into.  Inputs of at least
+   * parallelMinElems elements are always split at least in two so lowering the
+   * threshold always enables the parallel path.
+   */
+  public static int nChunks(int n, long parallelMinElems) {
+    if (n < parallelMinElems || n < 2)
+      return 1;
+    return Math.max(2, Math.min(4 * Runtime.getRuntime().availableProcessors(),
+				n / MIN_CHUNK_ELEMS));
+  }
+  public static int chunkStart(int chunk, int n, int nChunks) {
+    return (int)(((long)chunk * n) / nChunks);
+  }
+  /** Call f with the bounds of each of the nChunks chunks of [0,n). */
+  public static void forEachChunk(int n, int nChunks, ChunkConsumer f) {
+    if (nChunks == 1) {
+      f.accept(0, 0, n);
+      return;
+    }
+    IntStream.range(0, nChunks).parallel().forEach(chunk ->
+      f.accept(chunk, chunkStart(chunk, n, nChunks), chunkStart(chunk+1, n, nChunks)));
+  }
+  /** Call f with each task index in [0,nTasks), in parallel when there is more than one. */
+  public static void forEachTask(int nTasks, IntConsumer f) {
+    if (nTasks == 1) {
+      f.accept(0);
+      return;
+    }
+    IntStream.range(0, nTasks).parallel().forEach(f);
+  }
+}
@@ -0,0 +1,351 @@
+package tech.v3.datatype;
+
+
+/**
+ * Group the indexes of a buffer by its long or double values without boxing.
+ *
+ * Each contiguous chunk of the buffer is grouped into its own open-addressing table
+ * recording, per element, its chunk-local group.  Chunk tables are then merged in
+ * parallel by radix partitioning on the high bits of the key hash - every partition
+ * owns a disjoint set of keys so partitions merge independently, visiting chunks in
+ * order.  Finally indexes are scattered into a single int array holding each group's
+ * indexes contiguously and in ascending order.  Groups are ordered by the first index
+ * at which their key appears.
+ *
+ * Double keys compare by value with all NaN values in a single group and -0.0 grouped
+ * with 0.0.
+ *
+ * Integer keys known to lie in a small range are instead grouped by counting sort -
+ * one pass counts each key per chunk and a second scatters indexes to their key's
+ * slice.  No hashing is involved and the only state is a count array per chunk.
+ */
+public final class PrimitiveGroupBy {
+  /** Largest key range {@link #isDense} accepts. */
+  public static final int DENSE_MAX_KEYS = 65536;
+  /** Bound on the total size of the per-chunk count arrays of a counting sort. */
+  public static final int DENSE_COUNT_BUDGET = 1 << 24;
+  /** Groups in order of first appearance. */
+  public static final class Result {
+    /** Key of each group - raw long bits for double keys. */
+    public final long[] keys;
+    /** Group g's indexes are indexes[starts[g]] up to indexes[ends[g]]. */
+    public final int[] starts;
+    public final int[] ends;
+    public final int[] indexes;
+    public Result(long[] keys, int[] starts, int[] ends, int[] indexes) {
+      this.keys = keys;
+      this.starts = starts;
+      this.ends = ends;
+      this.indexes = indexes;
+    }
+    public int size() { return keys.length; }
+  }
+
+  static long hash(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  static int[] grow(int[] data, int len) {
+    return len < data.length ? data : java.util.Arrays.copyOf(data, data.length * 2);
+  }
+
+  /** Open-addressing table from key to a dense group id in order of insertion. */
+  static final class LongTable {
+    long[] slotKeys = new long[16];
+    int[] slotGroups;
+    long[] groupKeys = new long[8];
+    int nGroups;
+    LongTable() {
+      slotGroups = new int[16];
+      java.util.Arrays.fill(slotGroups, -1);
+    }
+    /** Group id of key, a new id when key was not present. */
+    int findOrAdd(long key, long h) {
+      int mask = slotKeys.length - 1;
+      int slot = (int)h & mask;
+      while (true) {
+	final int g = slotGroups[slot];
+	if (g == -1)
+	  break;
+	if (slotKeys[slot] == key)
+	  return g;
+	slot = (slot + 1) & mask;
+      }
+      final int g = nGroups++;
+      if (g == groupKeys.length)
+	groupKeys = java.util.Arrays.copyOf(groupKeys, g * 2);
+      groupKeys[g] = key;
+      slotKeys[slot] = key;
+      slotGroups[slot] = g;
+      if (nGroups * 2 > slotKeys.length)
+	rehash();
+      return g;
+    }
+    void rehash() {
+      final int cap = slotKeys.length * 2;
+      final int mask = cap - 1;
+      slotKeys = new long[cap];
+      slotGroups = new int[cap];
+      java.util.Arrays.fill(slotGroups, -1);
+      for (int g = 0; g < nGroups; ++g) {
+	final long key = groupKeys[g];
+	int slot = (int)hash(key) & mask;
+	while (slotGroups[slot] != -1)
+	  slot = (slot + 1) & mask;
+	slotKeys[slot] = key;
+	slotGroups[slot] = g;
+      }
+    }
+  }
+
+  /** Grouping of one chunk. */
+  static final class Chunk {
+    final LongTable table = new LongTable();
+    int[] counts = new int[8];
+    int[] firsts = new int[8];
+    /** Chunk groups ordered by hash partition. */
+    int[] byPartition;
+    int[] partitionOffsets;
+    /** Partition-local merged group of each chunk group. */
+    int[] merged;
+    /** Position of each chunk group's first index within its merged group. */
+    int[] rel;
+  }
+
+  static int partition(long h, int partitionBits) {
+    return partitionBits == 0 ? 0 : (int)(h >>> (64 - partitionBits));
+  }
+
+  static long key(Buffer values, long idx, boolean doubleKeys) {
+    if (doubleKeys) {
+      final double v = values.readDouble(idx);
+      return Double.doubleToLongBits(v == 0.0 ? 0.0 : v);
+    }
+    return values.readLong(idx);
+  }
+
+  public static Result groupBy(Buffer values, boolean doubleKeys, long parallelMinElems) {
+    final int n = Math.toIntExact(values.lsize());
+    final int nc = ParallelChunks.nChunks(n, parallelMinElems);
+    final int partitionBits = nc == 1 ? 0 :
+      Math.min(8, 33 - Integer.numberOfLeadingZeros(4 * nc - 1));
+    final int nParts = 1 << partitionBits;
+    final int[] groupOf = new int[n];
+    final Chunk[] chunks = new Chunk[nc];
+    ParallelChunks.forEachChunk(n, nc, (c, sidx, eidx) -> {
+	final Chunk chunk = new Chunk();
+	final LongTable table = chunk.table;
+	for (int idx = sidx; idx < eidx; ++idx) {
+	  final long k = key(values, idx, doubleKeys);
+	  final int ng = table.nGroups;
+	  final int g = table.findOrAdd(k, hash(k));
+	  if (g == ng) {
+	    chunk.counts = grow(chunk.counts, g);
+	    chunk.firsts = grow(chunk.firsts, g);
+	    chunk.firsts[g] = idx;
+	  }
+	  ++chunk.counts[g];
+	  groupOf[idx] = g;
+	}
+	final int ng = table.nGroups;
+	final int[] parts = new int[ng];
+	final int[] offsets = new int[nParts + 1];
+	for (int g = 0; g < ng; ++g) {
+	  parts[g] = partition(hash(table.groupKeys[g]), partitionBits);
+	  ++offsets[parts[g] + 1];
+	}
+	for (int p = 0; p < nParts; ++p)
+	  offsets[p+1] += offsets[p];
+	final int[] cursor = java.util.Arrays.copyOf(offsets, nParts);
+	final int[] byPartition = new int[ng];
+	for (int g = 0; g < ng; ++g)
+	  byPartition[cursor[parts[g]]++] = g;
+	chunk.byPartition = byPartition;
+	chunk.partitionOffsets = offsets;
+	chunk.merged = new int[ng];
+	chunk.rel = new int[ng];
+	chunks[c] = chunk;
+      });
+    //Merge chunk groups - partitions hold disjoint keys
+    final LongTable[] partTables = new LongTable[nParts];
+    final int[][] partCounts = new int[nParts][];
+    final int[][] partFirsts = new int[nParts][];
+    ParallelChunks.forEachTask(nParts, p -> {
+	final LongTable table = new LongTable();
+	int[] counts = new int[8];
+	int[] firsts = new int[8];
+	for (Chunk chunk : chunks) {
+	  for (int i = chunk.partitionOffsets[p]; i < chunk.partitionOffsets[p+1]; ++i) {
+	    final int g = chunk.byPartition[i];
+	    final long k = chunk.table.groupKeys[g];
+	    final int ng = table.nGroups;
+	    final int mg = table.findOrAdd(k, hash(k));
+	    //chunks are visited in order so a new group's first index is this chunk's
+	    if (mg == ng) {
+	      counts = grow(counts, mg);
+	      firsts = grow(firsts, mg);
+	      firsts[mg] = chunk.firsts[g];
+	    }
+	    chunk.merged[g] = mg;
+	    chunk.rel[g] = counts[mg];
+	    counts[mg] += chunk.counts[g];
+	  }
+	}
+	partTables[p] = table;
+	partCounts[p] = counts;
+	partFirsts[p] = firsts;
+      });
+    final int[] partOffsets = new int[nParts + 1];
+    for (int p = 0; p < nParts; ++p)
+      partOffsets[p+1] = partOffsets[p] + partTables[p].nGroups;
+    final int nGroups = partOffsets[nParts];
+    final long[] keys = new long[nGroups];
+    final int[] counts = new int[nGroups];
+    final int[] firsts = new int[nGroups];
+    for (int p = 0; p < nParts; ++p) {
+      final int ng = partTables[p].nGroups;
+      System.arraycopy(partTables[p].groupKeys, 0, keys, partOffsets[p], ng);
+      System.arraycopy(partCounts[p], 0, counts, partOffsets[p], ng);
+      System.arraycopy(partFirsts[p], 0, firsts, partOffsets[p], ng);
+    }
+    //First indexes are distinct so this orders groups by first appearance
+    final int[] order = ArgSort.radixSortUnsigned(firsts, parallelMinElems);
+    final long[] orderedKeys = new long[nGroups];
+    final int[] groupStarts = new int[nGroups];
+    final int[] groupEnds = new int[nGroups];
+    final int[] starts = new int[nGroups];
+    int pos = 0;
+    for (int r = 0; r < nGroups; ++r) {
+      final int g = order[r];
+      orderedKeys[r] = keys[g];
+      starts[g] = pos;
+      groupStarts[r] = pos;
+      pos += counts[g];
+      groupEnds[r] = pos;
+    }
+    final int[] indexes = new int[n];
+    ParallelChunks.forEachChunk(n, nc, (c, sidx, eidx) -> {
+	final Chunk chunk = chunks[c];
+	final int ng = chunk.table.nGroups;
+	final int[] cursor = new int[ng];
+	for (int g = 0; g < ng; ++g) {
+	  final int p = partition(hash(chunk.table.groupKeys[g]), partitionBits);
+	  cursor[g] = starts[partOffsets[p] + chunk.merged[g]] + chunk.rel[g];
+	}
+	for (int idx = sidx; idx < eidx; ++idx)
+	  indexes[cursor[groupOf[idx]]++] = idx;
+      });
+    return new Result(orderedKeys, groupStarts, groupEnds, indexes);
+  }
+  /** [min, max] of values read as longs.  Empty buffers return [Long.MAX_VALUE, Long.MIN_VALUE]. */
+  public static long[] minMax(Buffer values, long parallelMinElems) {
+    final int n = Math.toIntExact(values.lsize());
+    final int nc = ParallelChunks.nChunks(n, parallelMinElems);
+    final long[][] results = new long[nc][];
+    ParallelChunks.forEachChunk(n, nc, (c, sidx, eidx) -> {
+	long min = Long.MAX_VALUE;
+	long max = Long.MIN_VALUE;
+	for (int idx = sidx; idx < eidx; ++idx) {
+	  final long v = values.readLong(idx);
+	  min = Math.min(min, v);
+	  max = Math.max(max, v);
+	}
+	results[c] = new long[] { min, max };
+      });
+    final long[] rv = { Long.MAX_VALUE, Long.MIN_VALUE };
+    for (long[] r : results) {
+      rv[0] = Math.min(rv[0], r[0]);
+      rv[1] = Math.max(rv[1], r[1]);
+    }
+    return rv;
+  }
+
+  /**
+   * True when keys in [minKey, maxKey] are better grouped by counting sort than by
+   * hashing n values.
+   */
+  public static boolean isDense(long minKey, long maxKey, long n) {
+    if (maxKey < minKey)
+      return false;
+    final long range = maxKey - minKey + 1;
+    //range overflowed
+    if (range <= 0)
+      return false;
+    return range <= DENSE_MAX_KEYS && range <= Math.max(1024, 2 * n);
+  }
+
+  /** Group integer keys all within [minKey, maxKey] by counting sort. */
+  public static Result groupByRange(Buffer values, long minKey, long maxKey,
+				    long parallelMinElems) {
+    final int n = Math.toIntExact(values.lsize());
+    final long lrange = maxKey - minKey + 1;
+    if (maxKey < minKey || lrange <= 0 || lrange > Integer.MAX_VALUE - 8)
+      throw new RuntimeException(String.format("Invalid key range [%d, %d]",
+						minKey, maxKey));
+    final int range = (int)lrange;
+    final int nc = Math.max(1, Math.min(ParallelChunks.nChunks(n, parallelMinElems),
+					DENSE_COUNT_BUDGET / range));
+    final int[] slots = new int[n];
+    final int[][] counts = new int[nc][];
+    ParallelChunks.forEachChunk(n, nc, (c, sidx, eidx) -> {
+	final int[] cc = new int[range];
+	for (int idx = sidx; idx < eidx; ++idx) {
+	  final long v = values.readLong(idx);
+	  final long k = v - minKey;
+	  if (k < 0 || k >= range)
+	    throw new RuntimeException(String.format("Key %d is outside of key range [%d, %d]",
+						      v, minKey, maxKey));
+	  slots[idx] = (int)k;
+	  ++cc[(int)k];
+	}
+	counts[c] = cc;
+      });
+    //Convert counts to scatter positions, key-major so each key's indexes ascend
+    final int[] keyStarts = new int[range + 1];
+    int nGroups = 0;
+    int pos = 0;
+    for (int k = 0; k < range; ++k) {
+      keyStarts[k] = pos;
+      for (int c = 0; c < nc; ++c) {
+	final int ct = counts[c][k];
+	counts[c][k] = pos;
+	pos += ct;
+      }
+      if (pos != keyStarts[k])
+	++nGroups;
+    }
+    keyStarts[range] = pos;
+    final int[] indexes = new int[n];
+    ParallelChunks.forEachChunk(n, nc, (c, sidx, eidx) -> {
+	final int[] cc = counts[c];
+	for (int idx = sidx; idx < eidx; ++idx)
+	  indexes[cc[slots[idx]]++] = idx;
+      });
+    final int[] groupKeys = new int[nGroups];
+    final int[] firsts = new int[nGroups];
+    int g = 0;
+    for (int k = 0; k < range; ++k) {
+      if (keyStarts[k+1] != keyStarts[k]) {
+	groupKeys[g] = k;
+	firsts[g] = indexes[keyStarts[k]];
+	++g;
+      }
+    }
+    final int[] order = ArgSort.radixSortUnsigned(firsts, parallelMinElems);
+    final long[] keys = new long[nGroups];
+    final int[] starts = new int[nGroups];
+    final int[] ends = new int[nGroups];
+    for (int r = 0; r < nGroups; ++r) {
+      final int k = groupKeys[order[r]];
+      keys[r] = minKey + k;
+      starts[r] = keyStarts[k];
+      ends[r] = keyStarts[k+1];
+    }
+    return new Result(keys, starts, ends, indexes);
+  }
+}
@@ -0,0 +1,388 @@
+package tech.v3.datatype;
+
+
+import java.util.Arrays;
+import java.util.function.IntToDoubleFunction;
+import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+
+
+/**
+ * Exact order statistics in expected O(n) by introselect.  Several order statistics
+ * are found in one call by partitioning once and descending only into the sides that
+ * still contain requested ranks.  Partitions larger than parallelMinElems are
+ * partitioned in parallel through a scratch array and the two sides of a partition
+ * are selected concurrently when both contain requested ranks.
+ *
+ * percentiles reproduces the estimation types of commons-math's Percentile including
+ * its default removal of NaN values.
+ */
+public final class QuickSelect {
+  static final int INSERTION_SORT_LEN = 24;
+
+  /**
+   * Move NaN values to the end of data[sidx,eidx) returning the index of the first
+   * NaN.
+   */
+  public static int partitionNaN(double[] data, int sidx, int eidx) {
+    int hi = eidx;
+    for (int idx = sidx; idx < hi; ++idx) {
+      final double v = data[idx];
+      if (Double.isNaN(v)) {
+	--hi;
+	data[idx] = data[hi];
+	data[hi] = v;
+	--idx;
+      }
+    }
+    return hi;
+  }
+  static void insertionSort(double[] data, int sidx, int eidx) {
+    for (int idx = sidx + 1; idx < eidx; ++idx) {
+      final double v = data[idx];
+      int j = idx - 1;
+      while (j >= sidx && data[j] > v) {
+	data[j+1] = data[j];
+	--j;
+      }
+      data[j+1] = v;
+    }
+  }
+  static double median3(double a, double b, double c) {
+    return a < b
+      ? (b < c ? b : (a < c ? c : a))
+      : (a < c ? a : (b < c ? c : b));
+  }
+  static double choosePivot(double[] data, int sidx, int eidx) {
+    final int n = eidx - sidx;
+    final int mid = sidx + (n >>> 1);
+    final int last = eidx - 1;
+    if (n < 1024)
+      return median3(data[sidx], data[mid], data[last]);
+    //Ninther for large ranges
+    final int step = n >>> 3;
+    return median3(median3(data[sidx], data[sidx + step], data[sidx + 2*step]),
+		   median3(data[mid - step], data[mid], data[mid + step]),
+		   median3(data[last - 2*step], data[last - step], data[last]));
+  }
+  /**
+   * Three way partition of data[sidx,eidx) around pivot.  Returns the packed start
+   * and end of the range equal to the pivot.
+   */
+  static long partition(double[] data, int sidx, int eidx, double pivot) {
+    int lt = sidx;
+    int idx = sidx;
+    int gt = eidx;
+    while (idx < gt) {
+      final double v = data[idx];
+      if (v < pivot) {
+	data[idx] = data[lt];
+	data[lt] = v;
+	++lt;
+	++idx;
+      } else if (v > pivot) {
+	--gt;
+	data[idx] = data[gt];
+	data[gt] = v;
+      } else {
+	++idx;
+      }
+    }
+    return (((long)lt) << 32) | (gt & 0xFFFFFFFFL);
+  }
+  /**
+   * Three way partition of data[sidx,eidx) in parallel by counting and scattering
+   * contiguous chunks into scratch.
+   */
+  static long parallelPartition(double[] data, double[] scratch, int sidx, int eidx,
+				double pivot) {
+    final int n = eidx - sidx;
+    //Callers only partition in parallel past their threshold
+    final int nc = ParallelChunks.nChunks(n, 0);
+    final int[] ltCounts = new int[nc];
+    final int[] eqCounts = new int[nc];
+    ParallelChunks.forEachChunk(n, nc, (chunk, cs, ce) -> {
+	int nlt = 0;
+	int neq = 0;
+	for (int idx = sidx + cs; idx < sidx + ce; ++idx) {
+	  final double v = data[idx];
+	  if (v < pivot) ++nlt;
+	  else if (v == pivot) ++neq;
+	}
+	ltCounts[chunk] = nlt;
+	eqCounts[chunk] = neq;
+      });
+    int totalLt = 0;
+    int totalEq = 0;
+    for (int chunk = 0; chunk < nc; ++chunk) {
+      totalLt += ltCounts[chunk];
+      totalEq += eqCounts[chunk];
+    }
+    //Per-chunk write offsets for each of the three regions
+    final int[] ltOffs = new int[nc];
+    final int[] eqOffs = new int[nc];
+    final int[] gtOffs = new int[nc];
+    int lto = sidx;
+    int eqo = sidx + totalLt;
+    int gto = sidx + totalLt + totalEq;
+    for (int chunk = 0; chunk < nc; ++chunk) {
+      final int clen = ParallelChunks.chunkStart(chunk+1, n, nc)
+	- ParallelChunks.chunkStart(chunk, n, nc);
+      ltOffs[chunk] = lto;
+      eqOffs[chunk] = eqo;
+      gtOffs[chunk] = gto;
+      lto += ltCounts[chunk];
+      eqo += eqCounts[chunk];
+      gto += clen - ltCounts[chunk] - eqCounts[chunk];
+    }
+    ParallelChunks.forEachChunk(n, nc, (chunk, cs, ce) -> {
+	int lo = ltOffs[chunk];
+	int eo = eqOffs[chunk];
+	int go = gtOffs[chunk];
+	for (int idx = sidx + cs; idx < sidx + ce; ++idx) {
+	  final double v = data[idx];
+	  if (v < pivot) scratch[lo++] = v;
+	  else if (v == pivot) scratch[eo++] = v;
+	  else scratch[go++] = v;
+	}
+      });
+    ParallelChunks.forEachChunk(n, nc, (chunk, cs, ce) ->
+      System.arraycopy(scratch, sidx + cs, data, sidx + cs, ce - cs));
+    final int lt = sidx + totalLt;
+    return (((long)lt) << 32) | ((lt + totalEq) & 0xFFFFFFFFL);
+  }
+  /** First index in ks[kStart,kEnd) whose value is >= val. */
+  static int lowerBound(int[] ks, int kStart, int kEnd, int val) {
+    while (kStart < kEnd) {
+      final int mid = (kStart + kEnd) >>> 1;
+      if (ks[mid] < val)
+	kStart = mid + 1;
+      else
+	kEnd = mid;
+    }
+    return kStart;
+  }
+  static void selectRange(double[] data, double[] scratch, int sidx, int eidx,
+			  int[] ks, int kStart, int kEnd, int depth,
+			  long parallelMinElems) {
+    while (kStart < kEnd) {
+      final int n = eidx - sidx;
+      if (n <= INSERTION_SORT_LEN) {
+	insertionSort(data, sidx, eidx);
+	return;
+      }
+      //Introselect - too many unbalanced partitions so fall back to n log n.
+      if (depth == 0) {
+	Arrays.sort(data, sidx, eidx);
+	return;
+      }
+      --depth;
+      final double pivot = choosePivot(data, sidx, eidx);
+      final boolean parallel = scratch != null && n >= parallelMinElems;
+      final long eqRange = parallel
+	? parallelPartition(data, scratch, sidx, eidx, pivot)
+	: partition(data, sidx, eidx, pivot);
+      final int lt = (int)(eqRange >>> 32);
+      final int gt = (int)eqRange;
+      final int kLt = lowerBound(ks, kStart, kEnd, lt);
+      final int kGt = lowerBound(ks, kLt, kEnd, gt);
+      final boolean left = kLt > kStart;
+      final boolean right = kEnd > kGt;
+      if (left && right && parallel) {
+	selectBoth(data, scratch, sidx, lt, gt, eidx, ks, kStart, kLt, kGt, kEnd, depth,
+		   parallelMinElems);
+	return;
+      }
+      if (left && right) {
+	//Recurse into the smaller side and loop on the larger
+	if (lt - sidx < eidx - gt) {
+	  selectRange(data, scratch, sidx, lt, ks, kStart, kLt, depth, parallelMinElems);
+	  sidx = gt;
+	  kStart = kGt;
+	} else {
+	  selectRange(data, scratch, gt, eidx, ks, kGt, kEnd, depth, parallelMinElems);
+	  eidx = lt;
+	  kEnd = kLt;
+	}
+      } else if (left) {
+	eidx = lt;
+	kEnd = kLt;
+      } else if (right) {
+	sidx = gt;
+	kStart = kGt;
+      } else {
+	return;
+      }
+    }
+  }
+  /** Select within both sides of a partition concurrently. */
+  static void selectBoth(double[] data, double[] scratch, int sidx, int lt, int gt, int eidx,
+			 int[] ks, int kStart, int kLt, int kGt, int kEnd, int depth,
+			 long parallelMinElems) {
+    ParallelChunks.forEachTask(2, side -> {
+	if (side == 0)
+	  selectRange(data, scratch, sidx, lt, ks, kStart, kLt, depth, parallelMinElems);
+	else
+	  selectRange(data, scratch, gt, eidx, ks, kGt, kEnd, depth, parallelMinElems);
+      });
+  }
+  /**
+   * Rearrange data[sidx,eidx) so that data[sidx + k] holds the value it would hold if
+   * the range were sorted for each k in ranks.  The range must not contain NaN.
+   * Partitions of at least parallelMinElems elements are processed in parallel;
+   * pass Long.MAX_VALUE to stay on the calling thread.
+   */
+  public static void select(double[] data, int sidx, int eidx, int[] ranks,
+			    long parallelMinElems) {
+    final int n = eidx - sidx;
+    if (n <= 1 || ranks.length == 0)
+      return;
+    final int[] ks = new int[ranks.length];
+    for (int idx = 0; idx < ks.length; ++idx) {
+      final int k = ranks[idx];
+      if (k < 0 || k >= n)
+	throw new IndexOutOfBoundsException("Rank " + k + " out of range [0," + n + ")");
+      ks[idx] = sidx + k;
+    }
+    Arrays.sort(ks);
+    final int depth = 2 * (32 - Integer.numberOfLeadingZeros(n));
+    final double[] scratch = n >= parallelMinElems ? new double[eidx] : null;
+    selectRange(data, scratch, sidx, eidx, ks, 0, ks.length, depth, parallelMinElems);
+  }
+  /**
+   * Values of the given ranks of data[off,off+len) were it sorted with NaN ordered
+   * after all other values.  data is reordered in place.
+   */
+  public static double[] orderStatistics(double[] data, int off, int len, int[] ranks,
+					 long parallelMinElems) {
+    final int nValid = partitionNaN(data, off, off + len) - off;
+    final int[] validRanks = new int[ranks.length];
+    int nValidRanks = 0;
+    for (int rank : ranks)
+      if (rank < nValid)
+	validRanks[nValidRanks++] = rank;
+    select(data, off, off + nValid, Arrays.copyOf(validRanks, nValidRanks),
+	   parallelMinElems);
+    final double[] rv = new double[ranks.length];
+    for (int idx = 0; idx < ranks.length; ++idx)
+      rv[idx] = rankValue(data, off, nValid, ranks[idx]);
+    return rv;
+  }
+
+  /** Position, in commons-math's 1-based convention, of quantile p in (0,1]. */
+  static double index(Percentile.EstimationType type, double p, int n) {
+    double minLimit;
+    double maxLimit;
+    switch (type) {
+    case R_1:
+      return p == 0.0 ? 0.0 : n * p + 0.5;
+    case R_2:
+      return p == 1.0 ? n : (p == 0.0 ? 0.0 : n * p + 0.5);
+    case R_3:
+      return p <= 0.5 / n ? 0.0 : Math.rint(n * p);
+    case R_4:
+      return p < 1.0 / n ? 0.0 : (p == 1.0 ? n : n * p);
+    case R_5:
+      minLimit = 0.5 / n;
+      maxLimit = (n - 0.5) / n;
+      return p < minLimit ? 0.0 : (p >= maxLimit ? n : n * p + 0.5);
+    case R_6:
+      minLimit = 1.0 / (n + 1);
+      maxLimit = 1.0 * n / (n + 1);
+      return p < minLimit ? 0.0 : (p >= maxLimit ? n : (n + 1) * p);
+    case R_7:
+      return p == 0.0 ? 0.0 : (p == 1.0 ? n : 1.0 + (n - 1) * p);
+    case R_8:
+      minLimit = 2.0 * (1.0 / 3.0) / (n + 1.0 / 3.0);
+      maxLimit = (n - 1.0 / 3.0) / (n + 1.0 / 3.0);
+      return p < minLimit ? 0.0 : (p >= maxLimit ? n : (n + 1.0 / 3.0) * p + 1.0 / 3.0);
+    case R_9:
+      minLimit = (5.0 / 8.0) / (n + 0.25);
+      maxLimit = (n - 3.0 / 8.0) / (n + 0.25);
+      return p < minLimit ? 0.0 : (p >= maxLimit ? n : (n + 0.25) * p + 3.0 / 8.0);
+    default:
+      return p == 0.0 ? 0.0 : (p == 1.0 ? n : p * (n + 1));
+    }
+  }
+  /**
+   * Positions interpolated between order statistics to produce the estimate.  The
+   * estimate is the mean of the interpolated values.
+   */
+  static double[] positions(Percentile.EstimationType type, double p, int n) {
+    final double pos = index(type, p, n);
+    switch (type) {
+    case R_1:
+      return new double[] { Math.ceil(pos - 0.5) };
+    case R_2:
+      return new double[] { Math.ceil(pos - 0.5), Math.floor(pos + 0.5) };
+    default:
+      return new double[] { pos };
+    }
+  }
+  static int lowerRank(double pos, int n) {
+    return pos < 1.0 ? 0 : (pos >= n ? n - 1 : (int)Math.floor(pos) - 1);
+  }
+  static int upperRank(double pos, int n) {
+    return pos < 1.0 ? 0 : (pos >= n ? n - 1 : (int)Math.floor(pos));
+  }
+  static double rankValue(double[] data, int sidx, int nValid, int rank) {
+    return rank < nValid ? data[sidx + rank] : Double.NaN;
+  }
+  /**
+   * Percentile p in (0,1] of n values given a function from a 0-based rank to the
+   * value of that rank.
+   */
+  public static double estimate(Percentile.EstimationType type, double p, int n,
+				IntToDoubleFunction rankValue) {
+    final double[] posv = positions(type, p, n);
+    double sum = 0.0;
+    for (double pos : posv) {
+      final double lower = rankValue.applyAsDouble(lowerRank(pos, n));
+      if (pos < 1.0 || pos >= n) {
+	sum += lower;
+      } else {
+	final double upper = rankValue.applyAsDouble(upperRank(pos, n));
+	sum += lower + (pos - Math.floor(pos)) * (upper - lower);
+      }
+    }
+    return sum / posv.length;
+  }
+  /**
+   * Exact percentiles of data[off,off+len), percentages in (0,100], with the
+   * semantics of commons-math's Percentile for the given estimation type.  NaN values
+   * are removed first as Percentile's default NaNStrategy.REMOVED does.  data is
+   * reordered in place.
+   */
+  public static double[] percentiles(double[] data, int off, int len, double[] percentages,
+				     Percentile.EstimationType type, long parallelMinElems) {
+    final int np = percentages.length;
+    for (int idx = 0; idx < np; ++idx) {
+      final double p = percentages[idx];
+      if (!(p > 0.0 && p <= 100.0))
+	throw new IllegalArgumentException("Percentile must be in (0,100]: " + p);
+    }
+    final double[] rv = new double[np];
+    final int n = partitionNaN(data, off, off + len) - off;
+    if (n == 0) {
+      Arrays.fill(rv, Double.NaN);
+      return rv;
+    }
+    if (n == 1) {
+      Arrays.fill(rv, data[off]);
+      return rv;
+    }
+    final int[] ranks = new int[np * 4];
+    int nRanks = 0;
+    for (int idx = 0; idx < np; ++idx) {
+      final double[] posv = positions(type, percentages[idx] / 100.0, n);
+      for (double pos : posv) {
+	ranks[nRanks++] = lowerRank(pos, n);
+	ranks[nRanks++] = upperRank(pos, n);
+      }
+    }
+    select(data, off, off + n, Arrays.copyOf(ranks, nRanks), parallelMinElems);
+    final IntToDoubleFunction rankFn = rank -> data[off + rank];
+    for (int idx = 0; idx < np; ++idx)
+      rv[idx] = estimate(type, percentages[idx] / 100.0, n, rankFn);
+    return rv;
+  }
+}
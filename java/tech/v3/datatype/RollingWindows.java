@@ -0,0 +1,470 @@
+package tech.v3.datatype;
+
+
+import java.util.function.Supplier;
+import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+
+/**
+ * Incremental reductions over sliding windows.
+ *
+ * Windows are ranges [start, end) whose starts and ends never decrease from one
+ * window to the next.  Rather than reducing each window from scratch a Reducer is
+ * updated with the values entering and leaving the window so a reduction over n windows
+ * costs O(n) updates in total regardless of window size.
+ *
+ * Window positions may fall off either end of the data in which case they read the
+ * left or right pad value.  NaN values are skipped, throw or are passed to the reducer
+ * depending on the nan strategy and reducers reduce windows containing NaN to NaN.
+ */
+public final class RollingWindows {
+  public static final int NAN_KEEP = 0;
+  public static final int NAN_REMOVE = 1;
+  public static final int NAN_EXCEPTION = 2;
+
+  /** Source data read with padding. */
+  public static final class Padded {
+    public final Buffer data;
+    public final long nElems;
+    public final double leftPad;
+    public final double rightPad;
+    public Padded(Buffer data, double leftPad, double rightPad) {
+      this.data = data;
+      this.nElems = data.lsize();
+      this.leftPad = leftPad;
+      this.rightPad = rightPad;
+    }
+    public double get(long idx) {
+      if (idx < 0) return leftPad;
+      if (idx >= nElems) return rightPad;
+      return data.readDouble(idx);
+    }
+  }
+
+  /** Window bounds of the window at each index. */
+  public interface Bounds {
+    long start(long idx);
+    long end(long idx);
+  }
+
+  /** Windows of a fixed size starting offset positions from their index. */
+  public static final class FixedBounds implements Bounds {
+    public final long windowSize;
+    public final long offset;
+    public FixedBounds(long windowSize, long offset) {
+      this.windowSize = windowSize;
+      this.offset = offset;
+    }
+    public long start(long idx) { return idx + offset; }
+    public long end(long idx) { return idx + offset + windowSize; }
+  }
+
+  /** Explicit window bounds. */
+  public static final class RangeBounds implements Bounds {
+    public final long[] starts;
+    public final long[] ends;
+    public RangeBounds(long[] starts, long[] ends) {
+      for (int idx = 1; idx < starts.length; ++idx)
+	if (starts[idx] < starts[idx-1] || ends[idx] < ends[idx-1])
+	  throw new RuntimeException("Window starts and ends must not decrease - window "
+				     + idx + " is [" + starts[idx] + ", " + ends[idx]
+				     + ") after [" + starts[idx-1] + ", " + ends[idx-1] + ")");
+      this.starts = starts;
+      this.ends = ends;
+    }
+    public long start(long idx) { return starts[(int)idx]; }
+    public long end(long idx) { return ends[(int)idx]; }
+    public int size() { return starts.length; }
+  }
+
+  public interface Reducer {
+    void add(long pos, double v);
+    /** Values are removed in the order they were added. */
+    void remove(long pos, double v);
+    double value();
+    void clear();
+    /**
+     * Number of updates after which the reducer is rebuilt from the current window
+     * to bound accumulated floating point error, 0 for never.
+     */
+    default long rebuildInterval() { return 0; }
+  }
+
+  public static final int SUM = 0;
+  public static final int MEAN = 1;
+  public static final int VARIANCE = 2;
+  public static final int STANDARD_DEVIATION = 3;
+
+  /**
+   * Running sum and moments.  Variance is updated with Welford's algorithm run forward
+   * for added values and backward for removed ones and is the sample variance.  Moments
+   * are taken relative to the first value added after a clear to limit cancellation
+   * when the variance is small relative to the mean.
+   */
+  public static final class Moments implements Reducer {
+    public final int stat;
+    long count;
+    long nanCount;
+    double sum;
+    double shift = Double.NaN;
+    double mean;
+    double m2;
+    public Moments(int stat) { this.stat = stat; }
+    public void add(long pos, double v) {
+      if (Double.isNaN(v)) {
+	++nanCount;
+	return;
+      }
+      if (Double.isNaN(shift))
+	shift = v;
+      ++count;
+      sum += v;
+      final double x = v - shift;
+      final double d = x - mean;
+      mean += d / count;
+      m2 += d * (x - mean);
+    }
+    public void remove(long pos, double v) {
+      if (Double.isNaN(v)) {
+	--nanCount;
+	return;
+      }
+      --count;
+      if (count == 0) {
+	sum = 0.0;
+	mean = 0.0;
+	m2 = 0.0;
+	return;
+      }
+      sum -= v;
+      final double x = v - shift;
+      final double d = x - mean;
+      mean -= d / count;
+      m2 -= d * (x - mean);
+    }
+    public double value() {
+      if (nanCount > 0 || count == 0)
+	return stat == SUM && nanCount == 0 ? 0.0 : Double.NaN;
+      switch (stat) {
+      case SUM: return sum;
+      case MEAN: return sum / count;
+      case VARIANCE: return count == 1 ? 0.0 : Math.max(0.0, m2) / (count - 1);
+      default: return count == 1 ? 0.0 : Math.sqrt(Math.max(0.0, m2) / (count - 1));
+      }
+    }
+    public void clear() {
+      count = 0;
+      nanCount = 0;
+      sum = 0.0;
+      shift = Double.NaN;
+      mean = 0.0;
+      m2 = 0.0;
+    }
+    public long rebuildInterval() { return 1024; }
+  }
+
+  /**
+   * Running min or max via a monotonic deque of window positions - each position is
+   * pushed and popped at most once.
+   */
+  public static final class Extreme implements Reducer {
+    public final boolean max;
+    long[] positions = new long[16];
+    double[] values = new double[16];
+    int head;
+    int size;
+    long nanCount;
+    public Extreme(boolean max) { this.max = max; }
+    int slot(int idx) { return (head + idx) & (positions.length - 1); }
+    void grow() {
+      final int cap = positions.length;
+      final long[] np = new long[cap * 2];
+      final double[] nv = new double[cap * 2];
+      for (int idx = 0; idx < size; ++idx) {
+	np[idx] = positions[slot(idx)];
+	nv[idx] = values[slot(idx)];
+      }
+      positions = np;
+      values = nv;
+      head = 0;
+    }
+    public void add(long pos, double v) {
+      if (Double.isNaN(v)) {
+	++nanCount;
+	return;
+      }
+      //pop dominated values from the back
+      while (size > 0) {
+	final double back = values[slot(size - 1)];
+	if (max ? back <= v : back >= v)
+	  --size;
+	else
+	  break;
+      }
+      if (size == positions.length)
+	grow();
+      final int s = slot(size);
+      positions[s] = pos;
+      values[s] = v;
+      ++size;
+    }
+    public void remove(long pos, double v) {
+      if (Double.isNaN(v)) {
+	--nanCount;
+	return;
+      }
+      if (size > 0 && positions[head] == pos) {
+	head = (head + 1) & (positions.length - 1);
+	--size;
+      }
+    }
+    public double value() {
+      return nanCount > 0 || size == 0 ? Double.NaN : values[head];
+    }
+    public void clear() {
+      head = 0;
+      size = 0;
+      nanCount = 0;
+    }
+  }
+
+  /**
+   * Running percentile via an order statistic treap keyed by (value, position) - adds,
+   * removes and rank lookups are O(log w) expected.  The percentile is estimated as
+   * commons-math's Percentile would for the window's values or, with a null estimation
+   * type, is the value at rank floor(n*p) as the median of descriptive-statistics is.
+   */
+  public static final class Quantile implements Reducer {
+    public final double p;
+    public final Percentile.EstimationType type;
+    double[] keys = new double[16];
+    long[] positions = new long[16];
+    int[] lefts = new int[16];
+    int[] rights = new int[16];
+    int[] sizes = new int[16];
+    int[] prios = new int[16];
+    int root = -1;
+    int nNodes;
+    int freeHead = -1;
+    long nanCount;
+    int seed = 0x2545F491;
+    //results of split
+    int splitL;
+    int splitR;
+    final java.util.function.IntToDoubleFunction rankFn = this::rankValue;
+    /** p is a percentage in (0,100], type may be null to select by rank. */
+    public Quantile(double p, Percentile.EstimationType type) {
+      if (!(p > 0.0 && p <= 100.0))
+	throw new IllegalArgumentException("Percentile must be in (0,100]: " + p);
+      this.p = p / 100.0;
+      this.type = type;
+    }
+    static boolean less(double lv, long lp, double rv, long rp) {
+      return lv < rv || (lv == rv && lp < rp);
+    }
+    int size(int t) { return t < 0 ? 0 : sizes[t]; }
+    void update(int t) { sizes[t] = 1 + size(lefts[t]) + size(rights[t]); }
+    int alloc(double v, long pos) {
+      int t;
+      if (freeHead >= 0) {
+	t = freeHead;
+	freeHead = lefts[t];
+      } else {
+	t = nNodes++;
+	if (t == keys.length) {
+	  final int cap = t * 2;
+	  keys = java.util.Arrays.copyOf(keys, cap);
+	  positions = java.util.Arrays.copyOf(positions, cap);
+	  lefts = java.util.Arrays.copyOf(lefts, cap);
+	  rights = java.util.Arrays.copyOf(rights, cap);
+	  sizes = java.util.Arrays.copyOf(sizes, cap);
+	  prios = java.util.Arrays.copyOf(prios, cap);
+	}
+      }
+      //xorshift priorities
+      seed ^= seed << 13;
+      seed ^= seed >>> 17;
+      seed ^= seed << 5;
+      keys[t] = v;
+      positions[t] = pos;
+      lefts[t] = -1;
+      rights[t] = -1;
+      sizes[t] = 1;
+      prios[t] = seed;
+      return t;
+    }
+    /**
+     * Split t into nodes less than (v,pos), or less than or equal to when inclusive, in
+     * splitL and the remainder in splitR.
+     */
+    void split(int t, double v, long pos, boolean inclusive) {
+      if (t < 0) {
+	splitL = -1;
+	splitR = -1;
+	return;
+      }
+      final boolean goesLeft = inclusive
+	? !less(v, pos, keys[t], positions[t])
+	: less(keys[t], positions[t], v, pos);
+      if (goesLeft) {
+	split(rights[t], v, pos, inclusive);
+	rights[t] = splitL;
+	update(t);
+	splitL = t;
+      } else {
+	split(lefts[t], v, pos, inclusive);
+	lefts[t] = splitR;
+	update(t);
+	splitR = t;
+      }
+    }
+    /** Merge treaps where every node of a precedes every node of b. */
+    int merge(int a, int b) {
+      if (a < 0) return b;
+      if (b < 0) return a;
+      if (prios[a] > prios[b]) {
+	rights[a] = merge(rights[a], b);
+	update(a);
+	return a;
+      }
+      lefts[b] = merge(a, lefts[b]);
+      update(b);
+      return b;
+    }
+    public double rankValue(int rank) {
+      int t = root;
+      while (true) {
+	final int ls = size(lefts[t]);
+	if (rank < ls) {
+	  t = lefts[t];
+	} else if (rank == ls) {
+	  return keys[t];
+	} else {
+	  rank -= ls + 1;
+	  t = rights[t];
+	}
+      }
+    }
+    public void add(long pos, double v) {
+      if (Double.isNaN(v)) {
+	++nanCount;
+	return;
+      }
+      final int node = alloc(v, pos);
+      split(root, v, pos, false);
+      final int r = splitR;
+      root = merge(merge(splitL, node), r);
+    }
+    public void remove(long pos, double v) {
+      if (Double.isNaN(v)) {
+	--nanCount;
+	return;
+      }
+      split(root, v, pos, false);
+      final int l = splitL;
+      split(splitR, v, pos, true);
+      final int node = splitL;
+      if (node >= 0) {
+	lefts[node] = freeHead;
+	freeHead = node;
+      }
+      root = merge(l, splitR);
+    }
+    public double value() {
+      final int n = size(root);
+      if (nanCount > 0 || n == 0)
+	return Double.NaN;
+      if (type == null)
+	return rankValue(Math.min(n - 1, (int)(n * p)));
+      return QuickSelect.estimate(type, p, n, rankFn);
+    }
+    public void clear() {
+      root = -1;
+      nNodes = 0;
+      freeHead = -1;
+      nanCount = 0;
+    }
+  }
+
+  /** True when v should not be passed to the reducer. */
+  static boolean skip(double v, int nanStrategy) {
+    if (Double.isNaN(v) && nanStrategy != NAN_KEEP) {
+      if (nanStrategy == NAN_EXCEPTION)
+	throw new RuntimeException("NaN detected in rolling window data");
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Reduce the windows at indexes [sidx, eidx) writing each result to
+   * out[outOff + idx - sidx].  The reducer is cleared first.
+   */
+  public static void reduce(Padded data, Bounds bounds, long sidx, long eidx,
+			    Reducer r, int nanStrategy, double[] out, int outOff) {
+    r.clear();
+    if (sidx >= eidx)
+      return;
+    final long interval = r.rebuildInterval();
+    long curStart = bounds.start(sidx);
+    long curEnd = curStart;
+    long nUpdates = 0;
+    for (long idx = sidx; idx < eidx; ++idx) {
+      final long s = bounds.start(idx);
+      final long e = Math.max(s, bounds.end(idx));
+      if (s >= curEnd) {
+	//disjoint from the previous window
+	r.clear();
+	curStart = s;
+	curEnd = s;
+      }
+      nUpdates += (e - curEnd) + (s - curStart);
+      for (; curEnd < e; ++curEnd) {
+	final double v = data.get(curEnd);
+	if (!skip(v, nanStrategy))
+	  r.add(curEnd, v);
+      }
+      for (; curStart < s; ++curStart) {
+	final double v = data.get(curStart);
+	if (!skip(v, nanStrategy))
+	  r.remove(curStart, v);
+      }
+      //Rebuilding costs the window length so rebuilds are amortized O(1) per update
+      if (interval > 0) {
+	if (nUpdates > Math.max(interval, e - s)) {
+	  r.clear();
+	  for (long pos = s; pos < e; ++pos) {
+	    final double v = data.get(pos);
+	    if (!skip(v, nanStrategy))
+	      r.add(pos, v);
+	  }
+	  nUpdates = 0;
+	}
+      }
+      out[outOff + (int)(idx - sidx)] = r.value();
+    }
+  }
+
+  /**
+   * Reduce the windows at indexes [0, nWindows) into out splitting the windows into
+   * contiguous chunks reduced on the fork-join pool, each with its own reducer.  Every
+   * chunk starts by reading the whole of its first window so chunks are kept at least
+   * as long as the longest window to bound the overlapping work.
+   */
+  public static void parallelReduce(Padded data, Bounds bounds, int nWindows,
+				    Supplier<Reducer> reducers, int nanStrategy, double[] out,
+				    long parallelMinElems) {
+    int nc = ParallelChunks.nChunks(nWindows, parallelMinElems);
+    if (nc > 1) {
+      long maxLen = 1;
+      if (bounds instanceof FixedBounds) {
+	maxLen = Math.max(1, ((FixedBounds)bounds).windowSize);
+      } else {
+	for (int idx = 0; idx < nWindows; ++idx)
+	  maxLen = Math.max(maxLen, bounds.end(idx) - bounds.start(idx));
+      }
+      nc = (int)Math.max(1, Math.min(nc, nWindows / maxLen));
+    }
+    ParallelChunks.forEachChunk(nWindows, nc, (chunk, s, e) ->
+      reduce(data, bounds, s, e, reducers.get(), nanStrategy, out, s));
+  }
+}
@@ -0,0 +1,296 @@
+package tech.v3.datatype;
+
+
+import java.nio.ByteBuffer;
+import java.util.function.DoubleConsumer;
+import ham_fisted.Reducible;
+import clojure.lang.IDeref;
+
+
+/**
+ * Merging t-digest (Dunning and Ertl) for approximate quantiles of streams of
+ * doubles.  Values are buffered and periodically merged into a sorted list of weighted
+ * centroids whose sizes are bounded by the arcsine scale function so quantiles near
+ * the tails are more accurate than those near the median.  Memory is bounded by
+ * compression - a compression of 100 keeps at most a few hundred centroids and gives
+ * quantile estimates typically within a fraction of a percent in rank.
+ *
+ * Digests are mergeable which makes them usable as parallel reducers and they can be
+ * serialized with toBytes and restored with fromBytes.  NaN values are ignored.
+ *
+ * A digest is not thread-safe.  Besides add, every read that needs the centroids -
+ * quantile, centroidCount, toBytes and merge, on either side - first merges the
+ * buffered values into them and so mutates the digest.  Share a digest between
+ * threads only under external synchronization; parallel reductions instead give each
+ * thread its own digest and merge them once the threads are done.
+ */
+public final class TDigest implements Reducible, DoubleConsumer, IDeref
+{
+  public static final int SERIAL_VERSION = 1;
+  public static final double DEFAULT_COMPRESSION = 100.0;
+
+  public final double compression;
+  double[] means;
+  double[] weights;
+  int nCentroids;
+  final double[] bufMeans;
+  final double[] bufWeights;
+  int nBuffered;
+  double totalWeight;
+  double min = Double.POSITIVE_INFINITY;
+  double max = Double.NEGATIVE_INFINITY;
+
+  public TDigest(double _compression) {
+    if (!(_compression >= 10.0))
+      throw new IllegalArgumentException("Compression must be >= 10: " + _compression);
+    compression = _compression;
+    final int maxCentroids = (int)Math.ceil(compression) + 8;
+    means = new double[maxCentroids];
+    weights = new double[maxCentroids];
+    final int bufSize = 5 * maxCentroids;
+    bufMeans = new double[bufSize];
+    bufWeights = new double[bufSize];
+  }
+  public TDigest() { this(DEFAULT_COMPRESSION); }
+
+  public void accept(double val) {
+    if (!Double.isNaN(val))
+      add(val, 1.0);
+  }
+  public void add(double mean, double weight) {
+    if (nBuffered == bufMeans.length)
+      compress();
+    bufMeans[nBuffered] = mean;
+    bufWeights[nBuffered] = weight;
+    ++nBuffered;
+    totalWeight += weight;
+    min = Math.min(min, mean);
+    max = Math.max(max, mean);
+  }
+  public double totalWeight() { return totalWeight; }
+  public double min() { return totalWeight == 0.0 ? Double.NaN : min; }
+  public double max() { return totalWeight == 0.0 ? Double.NaN : max; }
+  public int centroidCount() { compress(); return nCentroids; }
+
+  static final void swap(double[] data, int a, int b) {
+    final double tmp = data[a];
+    data[a] = data[b];
+    data[b] = tmp;
+  }
+  /** Sort parallel arrays of means and weights by mean. */
+  static void sortByMean(double[] m, double[] w, int sidx, int eidx) {
+    while (eidx - sidx > 16) {
+      final int mid = (sidx + eidx) >>> 1;
+      final int last = eidx - 1;
+      if (m[mid] < m[sidx]) { swap(m, mid, sidx); swap(w, mid, sidx); }
+      if (m[last] < m[sidx]) { swap(m, last, sidx); swap(w, last, sidx); }
+      if (m[last] < m[mid]) { swap(m, last, mid); swap(w, last, mid); }
+      final double pivot = m[mid];
+      int lo = sidx;
+      int hi = last;
+      while (lo <= hi) {
+	while (m[lo] < pivot) ++lo;
+	while (m[hi] > pivot) --hi;
+	if (lo <= hi) {
+	  swap(m, lo, hi);
+	  swap(w, lo, hi);
+	  ++lo;
+	  --hi;
+	}
+      }
+      //Recurse into the smaller side to bound stack depth
+      if (hi - sidx < eidx - lo) {
+	sortByMean(m, w, sidx, hi + 1);
+	sidx = lo;
+      } else {
+	sortByMean(m, w, lo, eidx);
+	eidx = hi + 1;
+      }
+    }
+    for (int idx = sidx + 1; idx < eidx; ++idx) {
+      final double mv = m[idx];
+      final double wv = w[idx];
+      int j = idx - 1;
+      while (j >= sidx && m[j] > mv) {
+	m[j+1] = m[j];
+	w[j+1] = w[j];
+	--j;
+      }
+      m[j+1] = mv;
+      w[j+1] = wv;
+    }
+  }
+  final double scaleK(double q) {
+    return compression * Math.asin(2.0 * q - 1.0) / (2.0 * Math.PI);
+  }
+  /** Largest quantile a centroid starting at quantile q0 may extend to. */
+  final double quantileLimit(double q0) {
+    final double k = scaleK(q0) + 1.0;
+    if (k >= compression / 4.0)
+      return 1.0;
+    return (Math.sin(k * 2.0 * Math.PI / compression) + 1.0) / 2.0;
+  }
+  /** Merge buffered values into the centroid list. */
+  public void compress() {
+    if (nBuffered == 0)
+      return;
+    sortByMean(bufMeans, bufWeights, 0, nBuffered);
+    final int nTotal = nCentroids + nBuffered;
+    final double[] newMeans = new double[Math.max(means.length, 1)];
+    final double[] newWeights = new double[newMeans.length];
+    final double total = totalWeight;
+    int nNew = 0;
+    int ci = 0;
+    int bi = 0;
+    double curMean = 0.0;
+    double curWeight = 0.0;
+    double wSoFar = 0.0;
+    double qLimit = 0.0;
+    for (int idx = 0; idx < nTotal; ++idx) {
+      double m, w;
+      if (bi == nBuffered || (ci < nCentroids && means[ci] <= bufMeans[bi])) {
+	m = means[ci];
+	w = weights[ci];
+	++ci;
+      } else {
+	m = bufMeans[bi];
+	w = bufWeights[bi];
+	++bi;
+      }
+      if (curWeight == 0.0) {
+	curMean = m;
+	curWeight = w;
+	qLimit = quantileLimit(wSoFar / total);
+      } else if ((wSoFar + curWeight + w) / total <= qLimit || nNew == newMeans.length - 1) {
+	curWeight += w;
+	curMean += (m - curMean) * w / curWeight;
+      } else {
+	newMeans[nNew] = curMean;
+	newWeights[nNew] = curWeight;
+	++nNew;
+	wSoFar += curWeight;
+	curMean = m;
+	curWeight = w;
+	qLimit = quantileLimit(wSoFar / total);
+      }
+    }
+    if (curWeight > 0.0) {
+      newMeans[nNew] = curMean;
+      newWeights[nNew] = curWeight;
+      ++nNew;
+    }
+    means = newMeans;
+    weights = newWeights;
+    nCentroids = nNew;
+    nBuffered = 0;
+  }
+  /**
+   * Approximate value at quantile q in [0,1].  NaN if the digest is empty.  Compresses
+   * any buffered values first - see the class notes on thread safety.
+   */
+  public double quantile(double q) {
+    if (q < 0.0 || q > 1.0)
+      throw new IllegalArgumentException("Quantile must be in [0,1]: " + q);
+    compress();
+    if (nCentroids == 0)
+      return Double.NaN;
+    if (q == 0.0)
+      return min;
+    if (q == 1.0)
+      return max;
+    if (nCentroids == 1)
+      return means[0];
+    final double index = q * totalWeight;
+    final double firstHalf = weights[0] / 2.0;
+    if (index < firstHalf)
+      return min + (means[0] - min) * index / firstHalf;
+    double wSoFar = firstHalf;
+    for (int idx = 0; idx < nCentroids - 1; ++idx) {
+      final double dw = (weights[idx] + weights[idx+1]) / 2.0;
+      if (wSoFar + dw > index) {
+	final double z1 = index - wSoFar;
+	final double z2 = wSoFar + dw - index;
+	return (means[idx] * z2 + means[idx+1] * z1) / dw;
+      }
+      wSoFar += dw;
+    }
+    final double lastHalf = weights[nCentroids-1] / 2.0;
+    final double z1 = index - (totalWeight - lastHalf);
+    return means[nCentroids-1] + (max - means[nCentroids-1]) * z1 / lastHalf;
+  }
+  /** New digest containing the data of both this and other. */
+  public TDigest merge(TDigest other) {
+    final TDigest rv = new TDigest(Math.max(compression, other.compression));
+    rv.addAll(this);
+    rv.addAll(other);
+    return rv;
+  }
+  void addAll(TDigest other) {
+    other.compress();
+    for (int idx = 0; idx < other.nCentroids; ++idx)
+      add(other.means[idx], other.weights[idx]);
+    if (other.totalWeight > 0.0) {
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+    }
+  }
+  public Reducible reduce(Reducible other) {
+    return merge((TDigest)other);
+  }
+  public Object deref() { return this; }
+
+  public byte[] toBytes() {
+    compress();
+    final ByteBuffer bb = ByteBuffer.allocate(4 + 8*4 + 4 + 16*nCentroids);
+    bb.putInt(SERIAL_VERSION);
+    bb.putDouble(compression);
+    bb.putDouble(totalWeight);
+    bb.putDouble(min);
+    bb.putDouble(max);
+    bb.putInt(nCentroids);
+    for (int idx = 0; idx < nCentroids; ++idx) {
+      bb.putDouble(means[idx]);
+      bb.putDouble(weights[idx]);
+    }
+    return bb.array();
+  }
+  static final int HEADER_BYTES = 4 + 8*4 + 4;
+  /**
+   * Restore a digest written by toBytes.  Throws IllegalArgumentException if data is
+   * truncated, has trailing bytes or holds invalid weights.
+   */
+  public static TDigest fromBytes(byte[] data) {
+    if (data.length < HEADER_BYTES)
+      throw new IllegalArgumentException("Truncated t-digest: " + data.length + " bytes");
+    final ByteBuffer bb = ByteBuffer.wrap(data);
+    final int version = bb.getInt();
+    if (version != SERIAL_VERSION)
+      throw new IllegalArgumentException("Unrecognized t-digest version: " + version);
+    final TDigest rv = new TDigest(bb.getDouble());
+    final double total = bb.getDouble();
+    final double dmin = bb.getDouble();
+    final double dmax = bb.getDouble();
+    final int n = bb.getInt();
+    if (n < 0 || data.length != HEADER_BYTES + 16L * n)
+      throw new IllegalArgumentException("T-digest of " + data.length
+					 + " bytes cannot hold " + n + " centroids");
+    if (!(total >= 0.0) || Double.isInfinite(total))
+      throw new IllegalArgumentException("Invalid t-digest total weight: " + total);
+    if (n > rv.means.length) {
+      rv.means = new double[n];
+      rv.weights = new double[n];
+    }
+    for (int idx = 0; idx < n; ++idx) {
+      rv.means[idx] = bb.getDouble();
+      final double w = bb.getDouble();
+      if (!(w > 0.0) || Double.isInfinite(w))
+	throw new IllegalArgumentException("Invalid t-digest centroid weight: " + w);
+      rv.weights[idx] = w;
+    }
+    rv.nCentroids = n;
+    rv.totalWeight = total;
+    rv.min = dmin;
+    rv.max = dmax;
+    return rv;
+  }
+}
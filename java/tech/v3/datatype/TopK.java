@@ -0,0 +1,298 @@
+package tech.v3.datatype;
+
+
+import java.util.function.IntToLongFunction;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+
+
+/**
+ * Indexes of the k smallest values in index order.  Ties are broken by index so the
+ * result matches the first k indexes of a stable argsort.
+ *
+ * Primitive values are compared by the order-preserving unsigned keys of
+ * {@link ArgSort}.  Small k is found with bounded max-heaps, one per contiguous
+ * partition of the data, whose contents are then merged into a final heap.  When k is a
+ * sizeable fraction of the data the heaps degenerate so instead every key is computed
+ * and the k smallest are partitioned to the front by quickselect.  Either way the k
+ * selected indexes are finally sorted by their keys.
+ */
+public final class TopK {
+  /** k above n / LARGE_K_RATIO uses selection rather than heaps. */
+  public static final int LARGE_K_RATIO = 32;
+
+  static boolean less(long lk, int li, long rk, int ri) {
+    final int c = Long.compareUnsigned(lk, rk);
+    return c < 0 || (c == 0 && li < ri);
+  }
+
+  /** Bounded max-heap of the k smallest (key, index) pairs offered. */
+  static final class KeyHeap {
+    final long[] keys;
+    final int[] idx;
+    int size;
+    KeyHeap(int k) {
+      keys = new long[k];
+      idx = new int[k];
+    }
+    void offer(long k, int i) {
+      if (size < keys.length) {
+	int pos = size++;
+	while (pos > 0) {
+	  final int parent = (pos - 1) >>> 1;
+	  if (!less(keys[parent], idx[parent], k, i))
+	    break;
+	  keys[pos] = keys[parent];
+	  idx[pos] = idx[parent];
+	  pos = parent;
+	}
+	keys[pos] = k;
+	idx[pos] = i;
+      } else if (less(k, i, keys[0], idx[0])) {
+	int pos = 0;
+	while (true) {
+	  int child = 2 * pos + 1;
+	  if (child >= size)
+	    break;
+	  if (child + 1 < size && less(keys[child], idx[child], keys[child+1], idx[child+1]))
+	    ++child;
+	  if (!less(k, i, keys[child], idx[child]))
+	    break;
+	  keys[pos] = keys[child];
+	  idx[pos] = idx[child];
+	  pos = child;
+	}
+	keys[pos] = k;
+	idx[pos] = i;
+      }
+    }
+  }
+
+  /** Bounded max-heap of the k smallest indexes by comp, ties broken by index. */
+  static final class IndexHeap {
+    final int[] idx;
+    final IntComparator comp;
+    int size;
+    IndexHeap(int k, IntComparator comp) {
+      idx = new int[k];
+      this.comp = comp;
+    }
+    boolean less(int l, int r) {
+      final int c = comp.compare(l, r);
+      return c < 0 || (c == 0 && l < r);
+    }
+    void offer(int i) {
+      if (size < idx.length) {
+	int pos = size++;
+	while (pos > 0) {
+	  final int parent = (pos - 1) >>> 1;
+	  if (!less(idx[parent], i))
+	    break;
+	  idx[pos] = idx[parent];
+	  pos = parent;
+	}
+	idx[pos] = i;
+      } else if (less(i, idx[0])) {
+	int pos = 0;
+	while (true) {
+	  int child = 2 * pos + 1;
+	  if (child >= size)
+	    break;
+	  if (child + 1 < size && less(idx[child], idx[child+1]))
+	    ++child;
+	  if (!less(i, idx[child]))
+	    break;
+	  idx[pos] = idx[child];
+	  pos = child;
+	}
+	idx[pos] = i;
+      }
+    }
+  }
+
+  static void swap(long[] keys, int[] idx, int l, int r) {
+    final long tk = keys[l]; keys[l] = keys[r]; keys[r] = tk;
+    final int ti = idx[l]; idx[l] = idx[r]; idx[r] = ti;
+  }
+  static void siftDown(long[] keys, int[] idx, int lo, int pos, int n) {
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= n)
+	return;
+      if (child + 1 < n && less(keys[lo+child], idx[lo+child],
+				keys[lo+child+1], idx[lo+child+1]))
+	++child;
+      if (!less(keys[lo+pos], idx[lo+pos], keys[lo+child], idx[lo+child]))
+	return;
+      swap(keys, idx, lo + pos, lo + child);
+      pos = child;
+    }
+  }
+  /** In place heap sort of the pairs in [lo,hi]. */
+  static void heapSort(long[] keys, int[] idx, int lo, int hi) {
+    final int n = hi - lo + 1;
+    for (int pos = n / 2 - 1; pos >= 0; --pos)
+      siftDown(keys, idx, lo, pos, n);
+    for (int end = n - 1; end > 0; --end) {
+      swap(keys, idx, lo, lo + end);
+      siftDown(keys, idx, lo, 0, end);
+    }
+  }
+
+  /**
+   * Partition keys/idx so the k smallest pairs occupy [0,k).  Pairs are distinct as
+   * indexes are distinct so a plain Hoare partition suffices.  Like
+   * {@link QuickSelect} this is an introselect - after too many unbalanced partitions
+   * the remaining range is heap sorted so adversarial keys cannot make it quadratic.
+   */
+  static void select(long[] keys, int[] idx, int k) {
+    final int rank = k - 1;
+    int lo = 0;
+    int hi = keys.length - 1;
+    int depth = 2 * (32 - Integer.numberOfLeadingZeros(keys.length));
+    while (lo < hi) {
+      if (depth-- == 0) {
+	heapSort(keys, idx, lo, hi);
+	return;
+      }
+      final int mid = (lo + hi) >>> 1;
+      //median of three
+      int p = mid;
+      if (less(keys[lo], idx[lo], keys[mid], idx[mid])) {
+	if (less(keys[hi], idx[hi], keys[lo], idx[lo])) p = lo;
+	else if (less(keys[hi], idx[hi], keys[mid], idx[mid])) p = hi;
+      } else {
+	if (less(keys[lo], idx[lo], keys[hi], idx[hi])) p = lo;
+	else if (less(keys[mid], idx[mid], keys[hi], idx[hi])) p = hi;
+      }
+      final long pk = keys[p];
+      final int pi = idx[p];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+	while (less(keys[i], idx[i], pk, pi)) ++i;
+	while (less(pk, pi, keys[j], idx[j])) --j;
+	if (i <= j) {
+	  swap(keys, idx, i, j);
+	  ++i;
+	  --j;
+	}
+      }
+      if (rank <= j)
+	hi = j;
+      else if (rank >= i)
+	lo = i;
+      else
+	return;
+    }
+  }
+
+  /** Sort selected indexes by key, ties by index. */
+  static int[] order(int[] selected, IntToLongFunction keyFn, long parallelMinElems) {
+    final int k = selected.length;
+    java.util.Arrays.sort(selected);
+    final long[] keys = new long[k];
+    for (int idx = 0; idx < k; ++idx)
+      keys[idx] = keyFn.applyAsLong(selected[idx]);
+    final int[] perm = ArgSort.radixSortUnsigned(keys, parallelMinElems);
+    final int[] rv = new int[k];
+    for (int idx = 0; idx < k; ++idx)
+      rv[idx] = selected[perm[idx]];
+    return rv;
+  }
+
+  /**
+   * Indexes of the k smallest unsigned keys of [0,n) in ascending key order, ties in
+   * index order.
+   */
+  public static int[] topK(int n, int k, IntToLongFunction keyFn, long parallelMinElems) {
+    k = Math.max(0, Math.min(n, k));
+    if (k == 0)
+      return new int[0];
+    final int nc = ParallelChunks.nChunks(n, parallelMinElems);
+    final int fk = k;
+    if ((long)k * LARGE_K_RATIO > n) {
+      final long[] keys = new long[n];
+      final int[] idx = new int[n];
+      ParallelChunks.forEachChunk(n, nc, (chunk, s, e) -> {
+	  for (int i = s; i < e; ++i) {
+	    keys[i] = keyFn.applyAsLong(i);
+	    idx[i] = i;
+	  }
+	});
+      select(keys, idx, k);
+      return order(java.util.Arrays.copyOf(idx, k), keyFn, parallelMinElems);
+    }
+    final KeyHeap[] heaps = new KeyHeap[nc];
+    ParallelChunks.forEachChunk(n, nc, (chunk, s, e) -> {
+	final KeyHeap heap = new KeyHeap(Math.min(fk, e - s));
+	for (int i = s; i < e; ++i)
+	  heap.offer(keyFn.applyAsLong(i), i);
+	heaps[chunk] = heap;
+      });
+    KeyHeap merged = heaps[0];
+    if (nc > 1) {
+      merged = new KeyHeap(k);
+      for (KeyHeap heap : heaps)
+	for (int i = 0; i < heap.size; ++i)
+	  merged.offer(heap.keys[i], heap.idx[i]);
+    }
+    return order(java.util.Arrays.copyOf(merged.idx, merged.size), keyFn, parallelMinElems);
+  }
+
+  /**
+   * Indexes of the k smallest values of [0,n) by comp in ascending order, ties in
+   * index order.
+   */
+  public static int[] topK(int n, int k, IntComparator comp, long parallelMinElems) {
+    k = Math.max(0, Math.min(n, k));
+    if (k == 0)
+      return new int[0];
+    final int nc = ParallelChunks.nChunks(n, parallelMinElems);
+    final int fk = k;
+    final IndexHeap[] heaps = new IndexHeap[nc];
+    ParallelChunks.forEachChunk(n, nc, (chunk, s, e) -> {
+	final IndexHeap heap = new IndexHeap(Math.min(fk, e - s), comp);
+	for (int i = s; i < e; ++i)
+	  heap.offer(i);
+	heaps[chunk] = heap;
+      });
+    IndexHeap merged = heaps[0];
+    if (nc > 1) {
+      merged = new IndexHeap(k, comp);
+      for (IndexHeap heap : heaps)
+	for (int i = 0; i < heap.size; ++i)
+	  merged.offer(heap.idx[i]);
+    }
+    final int[] rv = java.util.Arrays.copyOf(merged.idx, merged.size);
+    java.util.Arrays.sort(rv);
+    IntArrays.mergeSort(rv, comp);
+    return rv;
+  }
+
+  public static int[] topKInts(Buffer values, int k, boolean descending,
+			       long parallelMinElems) {
+    return topK(Math.toIntExact(values.lsize()), k,
+		i -> Integer.toUnsignedLong(ArgSort.intKey((int)values.readLong(i), descending)),
+		parallelMinElems);
+  }
+  public static int[] topKLongs(Buffer values, int k, boolean descending,
+				long parallelMinElems) {
+    return topK(Math.toIntExact(values.lsize()), k,
+		i -> ArgSort.longKey(values.readLong(i), descending),
+		parallelMinElems);
+  }
+  public static int[] topKFloats(Buffer values, int k, boolean descending, int nanStrategy,
+				 long parallelMinElems) {
+    return topK(Math.toIntExact(values.lsize()), k,
+		i -> Integer.toUnsignedLong(ArgSort.floatKey((float)values.readDouble(i),
+							     descending, nanStrategy)),
+		parallelMinElems);
+  }
+  public static int[] topKDoubles(Buffer values, int k, boolean descending, int nanStrategy,
+				  long parallelMinElems) {
+    return topK(Math.toIntExact(values.lsize()), k,
+		i -> ArgSort.doubleKey(values.readDouble(i), descending, nanStrategy),
+		parallelMinElems);
+  }
+}
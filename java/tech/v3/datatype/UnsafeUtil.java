@@ -64,6 +64,42 @@ public class UnsafeUtil {
     return dest;
   }
 
+  /**
+   * Copy nElems elements of elemWidth bytes reversing the byte order of each element.
+   * src and dst follow Unsafe addressing - null base objects mean absolute addresses,
+   * otherwise offsets are relative to the base object e.g. a primitive array.
+   */
+  public static void copySwapMemory(Object src, long srcOff, Object dst, long dstOff,
+				    long nElems, int elemWidth) {
+    final Unsafe us = unsafe;
+    switch(elemWidth) {
+    case 1:
+      us.copyMemory(src, srcOff, dst, dstOff, nElems);
+      break;
+    case 2:
+      for(long idx = 0; idx < nElems; ++idx) {
+	final long boff = idx * 2;
+	us.putShort(dst, dstOff + boff, Short.reverseBytes(us.getShort(src, srcOff + boff)));
+      }
+      break;
+    case 4:
+      for(long idx = 0; idx < nElems; ++idx) {
+	final long boff = idx * 4;
+	us.putInt(dst, dstOff + boff, Integer.reverseBytes(us.getInt(src, srcOff + boff)));
+      }
+      break;
+    case 8:
+      for(long idx = 0; idx < nElems; ++idx) {
+	final long boff = idx * 8;
+	us.putLong(dst, dstOff + boff, Long.reverseBytes(us.getLong(src, srcOff + boff)));
+      }
+      break;
+    default:
+      throw new IllegalArgumentException("Unsupported element width for byte swapping: "
+					 + elemWidth);
+    }
+  }
+
   public static String addrToString(final long addr, final int len) {
     Unsafe us = getUnsafe();
     if(addr == 0 || len == 0)
@@ -125,6 +125,15 @@ public class DType {
   static final IFn indexedMapReduceFn = requiringResolve("tech.v3.parallel.for",
 							 "indexed-map-reduce");
 
+  static final IFn nativeMemoryStatsFn = requiringResolve("tech.v3.datatype.native-buffer",
+							   "native-memory-stats");
+  static final IFn nativeMemoryLeakReportFn = requiringResolve("tech.v3.datatype.native-buffer",
+								"native-memory-leak-report");
+  static final IFn setAllocationSamplingFn = requiringResolve("tech.v3.datatype.native-buffer",
+							       "set-allocation-sampling!");
+  static final IFn setDetailedTrackingFn = requiringResolve("tech.v3.datatype.native-buffer",
+							     "set-detailed-native-memory-tracking!");
+
   static final IFn toBitmapFn = requiringResolve("tech.v3.datatype.bitmap", "->bitmap");
   static final IFn mapFactoryFn = requiringResolve("tech.v3.datatype", "map-factory");
 
@@ -554,4 +563,39 @@ public class DType {
   public static IFn mapFactory(List keys) {
     return (IFn)mapFactoryFn.invoke(keys);
   }
+  /**
+   * <p>Snapshot of the native memory allocated via malloc, native arenas and mmap.  Keys
+   * are ':live-bytes', ':live-count', ':peak-bytes', ':n-allocations', ':n-frees',
+   * ':sample-interval', ':detailed?' and ':by-track-type' - a map of resource track type to
+   * live count, live bytes and total allocation count.</p>
+   */
+  public static Map nativeMemoryStats() {
+    return (Map)call(nativeMemoryStatsFn);
+  }
+  /**
+   * Keep a record of every live native allocation for the leak report.  Off by default
+   * as it costs a map insertion per allocation.
+   */
+  public static void setDetailedNativeMemoryTracking(boolean detailed) {
+    call(setDetailedTrackingFn, detailed);
+  }
+  /**
+   * Return the native allocations made while detailed tracking was on that have not
+   * been released, largest first.  Each entry is a map of ':address', ':n-bytes',
+   * ':track-type', ':age-ms' and, if the allocation was sampled, ':site' - a list of
+   * stack frame strings.
+   *
+   * @param options May be null.  ':min-age-ms', ':track-types' and ':sampled-only?' filter
+   * the report.
+   */
+  public static List nativeMemoryLeakReport(Map options) {
+    return (List)call(nativeMemoryLeakReportFn, options);
+  }
+  /**
+   * Capture the allocation site of every nth native allocation for the leak report.  0
+   * disables sampling.  Only applies while detailed tracking is on.
+   */
+  public static void setAllocationSampling(long interval) {
+    call(setAllocationSamplingFn, interval);
+  }
 }
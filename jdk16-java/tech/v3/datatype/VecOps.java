@@ -2,6 +2,9 @@ package tech.v3.datatype;
 
 
 import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
 import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 import jdk.incubator.vector.VectorMask;
@@ -203,4 +206,574 @@ public final class VecOps
     }
     return retval;
   }
+
+  //NaN-aware kernels below skip NaN values to match the default :remove nan strategy
+  //of the scalar reductions.  Float data is widened and accumulated in double space,
+  //int data is widened and accumulated in long space.
+
+  public static double nanSum(double[] data, int off, int len) {
+    VectorSpecies<Double> species = DoubleVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    DoubleVector vsum = DoubleVector.zero(species);
+    DoubleVector vcomp = DoubleVector.zero(species);
+    for (int idx = 0; idx < nVec; ++idx) {
+      DoubleVector v = DoubleVector.fromArray(species, data, off + idx * vecLen);
+      v = v.blend(0.0, v.test(VectorOperators.IS_NAN));
+      DoubleVector y = v.sub(vcomp);
+      DoubleVector t = vsum.add(y);
+      vcomp = t.sub(vsum).sub(y);
+      vsum = t;
+    }
+    double sum = 0.0;
+    double comp = 0.0;
+    for (int idx = 0; idx < vecLen; ++idx) {
+      double y = vsum.lane(idx) - vcomp.lane(idx) - comp;
+      double t = sum + y;
+      comp = (t - sum) - y;
+      sum = t;
+    }
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx) {
+      double v = data[idx];
+      if (!Double.isNaN(v)) {
+	double y = v - comp;
+	double t = sum + y;
+	comp = (t - sum) - y;
+	sum = t;
+      }
+    }
+    return sum;
+  }
+
+  public static double nanSum(float[] data, int off, int len) {
+    VectorSpecies<Float> fspecies = FloatVector.SPECIES_PREFERRED;
+    VectorSpecies<Double> dspecies = DoubleVector.SPECIES_PREFERRED;
+    int vecLen = fspecies.length();
+    int nParts = vecLen / dspecies.length();
+    int nVec = len / vecLen;
+    DoubleVector vsum = DoubleVector.zero(dspecies);
+    DoubleVector vcomp = DoubleVector.zero(dspecies);
+    for (int idx = 0; idx < nVec; ++idx) {
+      FloatVector fv = FloatVector.fromArray(fspecies, data, off + idx * vecLen);
+      fv = fv.blend(0.0f, fv.test(VectorOperators.IS_NAN));
+      for (int part = 0; part < nParts; ++part) {
+	DoubleVector v = (DoubleVector)fv.convertShape(VectorOperators.F2D, dspecies, part);
+	DoubleVector y = v.sub(vcomp);
+	DoubleVector t = vsum.add(y);
+	vcomp = t.sub(vsum).sub(y);
+	vsum = t;
+      }
+    }
+    double sum = 0.0;
+    double comp = 0.0;
+    for (int idx = 0; idx < dspecies.length(); ++idx) {
+      double y = vsum.lane(idx) - vcomp.lane(idx) - comp;
+      double t = sum + y;
+      comp = (t - sum) - y;
+      sum = t;
+    }
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx) {
+      double v = data[idx];
+      if (!Double.isNaN(v)) {
+	double y = v - comp;
+	double t = sum + y;
+	comp = (t - sum) - y;
+	sum = t;
+      }
+    }
+    return sum;
+  }
+
+  public static long sum(int[] data, int off, int len) {
+    VectorSpecies<Integer> ispecies = IntVector.SPECIES_PREFERRED;
+    VectorSpecies<Long> lspecies = LongVector.SPECIES_PREFERRED;
+    int vecLen = ispecies.length();
+    int nParts = vecLen / lspecies.length();
+    int nVec = len / vecLen;
+    LongVector vsum = LongVector.zero(lspecies);
+    for (int idx = 0; idx < nVec; ++idx) {
+      IntVector iv = IntVector.fromArray(ispecies, data, off + idx * vecLen);
+      for (int part = 0; part < nParts; ++part)
+	vsum = vsum.add((LongVector)iv.convertShape(VectorOperators.I2L, lspecies, part));
+    }
+    long sum = vsum.reduceLanes(VectorOperators.ADD);
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx)
+      sum += data[idx];
+    return sum;
+  }
+
+  public static long sum(long[] data, int off, int len) {
+    VectorSpecies<Long> species = LongVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    LongVector vsum = LongVector.zero(species);
+    for (int idx = 0; idx < nVec; ++idx)
+      vsum = vsum.add(LongVector.fromArray(species, data, off + idx * vecLen));
+    long sum = vsum.reduceLanes(VectorOperators.ADD);
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx)
+      sum += data[idx];
+    return sum;
+  }
+
+  /** Minimum of the non-NaN values or positive infinity if there are none. */
+  public static double nanMin(double[] data, int off, int len) {
+    VectorSpecies<Double> species = DoubleVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    DoubleVector vmin = DoubleVector.broadcast(species, Double.POSITIVE_INFINITY);
+    for (int idx = 0; idx < nVec; ++idx) {
+      DoubleVector v = DoubleVector.fromArray(species, data, off + idx * vecLen);
+      vmin = vmin.min(v.blend(Double.POSITIVE_INFINITY, v.test(VectorOperators.IS_NAN)));
+    }
+    double rv = vmin.reduceLanes(VectorOperators.MIN);
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx) {
+      double v = data[idx];
+      if (v < rv) rv = v;
+    }
+    return rv;
+  }
+
+  /** Maximum of the non-NaN values or negative infinity if there are none. */
+  public static double nanMax(double[] data, int off, int len) {
+    VectorSpecies<Double> species = DoubleVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    DoubleVector vmax = DoubleVector.broadcast(species, Double.NEGATIVE_INFINITY);
+    for (int idx = 0; idx < nVec; ++idx) {
+      DoubleVector v = DoubleVector.fromArray(species, data, off + idx * vecLen);
+      vmax = vmax.max(v.blend(Double.NEGATIVE_INFINITY, v.test(VectorOperators.IS_NAN)));
+    }
+    double rv = vmax.reduceLanes(VectorOperators.MAX);
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx) {
+      double v = data[idx];
+      if (v > rv) rv = v;
+    }
+    return rv;
+  }
+
+  public static float nanMin(float[] data, int off, int len) {
+    VectorSpecies<Float> species = FloatVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    FloatVector vmin = FloatVector.broadcast(species, Float.POSITIVE_INFINITY);
+    for (int idx = 0; idx < nVec; ++idx) {
+      FloatVector v = FloatVector.fromArray(species, data, off + idx * vecLen);
+      vmin = vmin.min(v.blend(Float.POSITIVE_INFINITY, v.test(VectorOperators.IS_NAN)));
+    }
+    float rv = vmin.reduceLanes(VectorOperators.MIN);
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx) {
+      float v = data[idx];
+      if (v < rv) rv = v;
+    }
+    return rv;
+  }
+
+  public static float nanMax(float[] data, int off, int len) {
+    VectorSpecies<Float> species = FloatVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    FloatVector vmax = FloatVector.broadcast(species, Float.NEGATIVE_INFINITY);
+    for (int idx = 0; idx < nVec; ++idx) {
+      FloatVector v = FloatVector.fromArray(species, data, off + idx * vecLen);
+      vmax = vmax.max(v.blend(Float.NEGATIVE_INFINITY, v.test(VectorOperators.IS_NAN)));
+    }
+    float rv = vmax.reduceLanes(VectorOperators.MAX);
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx) {
+      float v = data[idx];
+      if (v > rv) rv = v;
+    }
+    return rv;
+  }
+
+  public static int min(int[] data, int off, int len) {
+    VectorSpecies<Integer> species = IntVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    IntVector vmin = IntVector.broadcast(species, Integer.MAX_VALUE);
+    for (int idx = 0; idx < nVec; ++idx)
+      vmin = vmin.min(IntVector.fromArray(species, data, off + idx * vecLen));
+    int rv = vmin.reduceLanes(VectorOperators.MIN);
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx)
+      rv = Math.min(rv, data[idx]);
+    return rv;
+  }
+
+  public static int max(int[] data, int off, int len) {
+    VectorSpecies<Integer> species = IntVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    IntVector vmax = IntVector.broadcast(species, Integer.MIN_VALUE);
+    for (int idx = 0; idx < nVec; ++idx)
+      vmax = vmax.max(IntVector.fromArray(species, data, off + idx * vecLen));
+    int rv = vmax.reduceLanes(VectorOperators.MAX);
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx)
+      rv = Math.max(rv, data[idx]);
+    return rv;
+  }
+
+  public static long min(long[] data, int off, int len) {
+    VectorSpecies<Long> species = LongVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    LongVector vmin = LongVector.broadcast(species, Long.MAX_VALUE);
+    for (int idx = 0; idx < nVec; ++idx)
+      vmin = vmin.min(LongVector.fromArray(species, data, off + idx * vecLen));
+    long rv = vmin.reduceLanes(VectorOperators.MIN);
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx)
+      rv = Math.min(rv, data[idx]);
+    return rv;
+  }
+
+  public static long max(long[] data, int off, int len) {
+    VectorSpecies<Long> species = LongVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    LongVector vmax = LongVector.broadcast(species, Long.MIN_VALUE);
+    for (int idx = 0; idx < nVec; ++idx)
+      vmax = vmax.max(LongVector.fromArray(species, data, off + idx * vecLen));
+    long rv = vmax.reduceLanes(VectorOperators.MAX);
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx)
+      rv = Math.max(rv, data[idx]);
+    return rv;
+  }
+
+  public static double dot(float[] d1, int of1, float[] d2, int of2, int len) {
+    VectorSpecies<Float> fspecies = FloatVector.SPECIES_PREFERRED;
+    VectorSpecies<Double> dspecies = DoubleVector.SPECIES_PREFERRED;
+    int vecLen = fspecies.length();
+    int nParts = vecLen / dspecies.length();
+    int nVec = len / vecLen;
+    DoubleVector vsum = DoubleVector.zero(dspecies);
+    for (int idx = 0; idx < nVec; ++idx) {
+      int vecoff = idx * vecLen;
+      FloatVector lhs = FloatVector.fromArray(fspecies, d1, of1 + vecoff);
+      FloatVector rhs = FloatVector.fromArray(fspecies, d2, of2 + vecoff);
+      for (int part = 0; part < nParts; ++part) {
+	DoubleVector l = (DoubleVector)lhs.convertShape(VectorOperators.F2D, dspecies, part);
+	DoubleVector r = (DoubleVector)rhs.convertShape(VectorOperators.F2D, dspecies, part);
+	vsum = l.fma(r, vsum);
+      }
+    }
+    double sum = vsum.reduceLanes(VectorOperators.ADD);
+    for (int idx = nVec * vecLen; idx < len; ++idx)
+      sum += (double)d1[idx + of1] * (double)d2[idx + of2];
+    return sum;
+  }
+
+  public static long dot(int[] d1, int of1, int[] d2, int of2, int len) {
+    VectorSpecies<Integer> ispecies = IntVector.SPECIES_PREFERRED;
+    VectorSpecies<Long> lspecies = LongVector.SPECIES_PREFERRED;
+    int vecLen = ispecies.length();
+    int nParts = vecLen / lspecies.length();
+    int nVec = len / vecLen;
+    LongVector vsum = LongVector.zero(lspecies);
+    for (int idx = 0; idx < nVec; ++idx) {
+      int vecoff = idx * vecLen;
+      IntVector lhs = IntVector.fromArray(ispecies, d1, of1 + vecoff);
+      IntVector rhs = IntVector.fromArray(ispecies, d2, of2 + vecoff);
+      for (int part = 0; part < nParts; ++part) {
+	LongVector l = (LongVector)lhs.convertShape(VectorOperators.I2L, lspecies, part);
+	LongVector r = (LongVector)rhs.convertShape(VectorOperators.I2L, lspecies, part);
+	vsum = vsum.add(l.mul(r));
+      }
+    }
+    long sum = vsum.reduceLanes(VectorOperators.ADD);
+    for (int idx = nVec * vecLen; idx < len; ++idx)
+      sum += (long)d1[idx + of1] * (long)d2[idx + of2];
+    return sum;
+  }
+
+  public static long dot(long[] d1, int of1, long[] d2, int of2, int len) {
+    VectorSpecies<Long> species = LongVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    LongVector vsum = LongVector.zero(species);
+    for (int idx = 0; idx < nVec; ++idx) {
+      int vecoff = idx * vecLen;
+      vsum = vsum.add(LongVector.fromArray(species, d1, of1 + vecoff)
+		      .mul(LongVector.fromArray(species, d2, of2 + vecoff)));
+    }
+    long sum = vsum.reduceLanes(VectorOperators.ADD);
+    for (int idx = nVec * vecLen; idx < len; ++idx)
+      sum += d1[idx + of1] * d2[idx + of2];
+    return sum;
+  }
+
+  public static long countNonZero(double[] data, int off, int len) {
+    VectorSpecies<Double> species = DoubleVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    long count = 0;
+    for (int idx = 0; idx < nVec; ++idx)
+      count += DoubleVector.fromArray(species, data, off + idx * vecLen)
+	.compare(VectorOperators.NE, 0.0).trueCount();
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx)
+      if (data[idx] != 0.0) ++count;
+    return count;
+  }
+
+  public static long countNonZero(float[] data, int off, int len) {
+    VectorSpecies<Float> species = FloatVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    long count = 0;
+    for (int idx = 0; idx < nVec; ++idx)
+      count += FloatVector.fromArray(species, data, off + idx * vecLen)
+	.compare(VectorOperators.NE, 0.0f).trueCount();
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx)
+      if (data[idx] != 0.0f) ++count;
+    return count;
+  }
+
+  public static long countNonZero(int[] data, int off, int len) {
+    VectorSpecies<Integer> species = IntVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    long count = 0;
+    for (int idx = 0; idx < nVec; ++idx)
+      count += IntVector.fromArray(species, data, off + idx * vecLen)
+	.compare(VectorOperators.NE, 0).trueCount();
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx)
+      if (data[idx] != 0) ++count;
+    return count;
+  }
+
+  public static long countNonZero(long[] data, int off, int len) {
+    VectorSpecies<Long> species = LongVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    long count = 0;
+    for (int idx = 0; idx < nVec; ++idx)
+      count += LongVector.fromArray(species, data, off + idx * vecLen)
+	.compare(VectorOperators.NE, 0L).trueCount();
+    for (int idx = off + nVec * vecLen; idx < off + len; ++idx)
+      if (data[idx] != 0L) ++count;
+    return count;
+  }
+
+  //Elementwise binary kernels.  min and max select exactly as the scalar builtin
+  //operators do - (if (> x y) x y) - so NaN handling matches the lazy path.  dst may
+  //alias either argument.
+
+  public static final int ADD = 0;
+  public static final int SUB = 1;
+  public static final int MUL = 2;
+  public static final int DIV = 3;
+  public static final int MIN = 4;
+  public static final int MAX = 5;
+
+  static double binaryScalar(int op, double x, double y) {
+    switch(op) {
+    case ADD: return x + y;
+    case SUB: return x - y;
+    case MUL: return x * y;
+    case DIV: return x / y;
+    case MIN: return x > y ? y : x;
+    case MAX: return x > y ? x : y;
+    default: throw new IllegalArgumentException("Unrecognized binary op: " + op);
+    }
+  }
+
+  static long binaryScalar(int op, long x, long y) {
+    switch(op) {
+    case ADD: return x + y;
+    case SUB: return x - y;
+    case MUL: return x * y;
+    case DIV: return x / y;
+    case MIN: return x > y ? y : x;
+    case MAX: return x > y ? x : y;
+    default: throw new IllegalArgumentException("Unrecognized binary op: " + op);
+    }
+  }
+
+  public static double[] binaryOp(int op, double[] lhs, int loff, double[] rhs, int roff,
+				  double[] dst, int doff, int len) {
+    VectorSpecies<Double> species = DoubleVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    for (int idx = 0; idx < nVec; ++idx) {
+      int vecoff = idx * vecLen;
+      DoubleVector x = DoubleVector.fromArray(species, lhs, loff + vecoff);
+      DoubleVector y = DoubleVector.fromArray(species, rhs, roff + vecoff);
+      DoubleVector r;
+      switch(op) {
+      case ADD: r = x.add(y); break;
+      case SUB: r = x.sub(y); break;
+      case MUL: r = x.mul(y); break;
+      case DIV: r = x.div(y); break;
+      case MIN: r = x.blend(y, x.compare(VectorOperators.GT, y)); break;
+      case MAX: r = y.blend(x, x.compare(VectorOperators.GT, y)); break;
+      default: throw new IllegalArgumentException("Unrecognized binary op: " + op);
+      }
+      r.intoArray(dst, doff + vecoff);
+    }
+    for (int idx = nVec * vecLen; idx < len; ++idx)
+      dst[doff + idx] = binaryScalar(op, lhs[loff + idx], rhs[roff + idx]);
+    return dst;
+  }
+
+  public static long[] binaryOp(int op, long[] lhs, int loff, long[] rhs, int roff,
+				long[] dst, int doff, int len) {
+    VectorSpecies<Long> species = LongVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    for (int idx = 0; idx < nVec; ++idx) {
+      int vecoff = idx * vecLen;
+      LongVector x = LongVector.fromArray(species, lhs, loff + vecoff);
+      LongVector y = LongVector.fromArray(species, rhs, roff + vecoff);
+      LongVector r;
+      switch(op) {
+      case ADD: r = x.add(y); break;
+      case SUB: r = x.sub(y); break;
+      case MUL: r = x.mul(y); break;
+      case DIV: r = x.div(y); break;
+      case MIN: r = x.blend(y, x.compare(VectorOperators.GT, y)); break;
+      case MAX: r = y.blend(x, x.compare(VectorOperators.GT, y)); break;
+      default: throw new IllegalArgumentException("Unrecognized binary op: " + op);
+      }
+      r.intoArray(dst, doff + vecoff);
+    }
+    for (int idx = nVec * vecLen; idx < len; ++idx)
+      dst[doff + idx] = binaryScalar(op, lhs[loff + idx], rhs[roff + idx]);
+    return dst;
+  }
+
+  //Compare-and-compress kernels.  Write idxOff plus the offset of every element where
+  //the comparison holds into dst starting at doff and return the number written.  EQ
+  //on doubles treats NaN as equal to NaN to match the builtin eq predicate.
+
+  public static final int GT = 0;
+  public static final int GE = 1;
+  public static final int LT = 2;
+  public static final int LE = 3;
+  public static final int EQ = 4;
+
+  static boolean compareScalar(int op, double x, double y) {
+    switch(op) {
+    case GT: return x > y;
+    case GE: return x >= y;
+    case LT: return x < y;
+    case LE: return x <= y;
+    case EQ: return Double.isNaN(x) ? Double.isNaN(y) : x == y;
+    default: throw new IllegalArgumentException("Unrecognized compare op: " + op);
+    }
+  }
+
+  static boolean compareScalar(int op, long x, long y) {
+    switch(op) {
+    case GT: return x > y;
+    case GE: return x >= y;
+    case LT: return x < y;
+    case LE: return x <= y;
+    case EQ: return x == y;
+    default: throw new IllegalArgumentException("Unrecognized compare op: " + op);
+    }
+  }
+
+  static VectorMask<Double> compareMask(int op, DoubleVector x, DoubleVector y) {
+    switch(op) {
+    case GT: return x.compare(VectorOperators.GT, y);
+    case GE: return x.compare(VectorOperators.GE, y);
+    case LT: return x.compare(VectorOperators.LT, y);
+    case LE: return x.compare(VectorOperators.LE, y);
+    case EQ: return x.compare(VectorOperators.EQ, y)
+	.or(x.test(VectorOperators.IS_NAN).and(y.test(VectorOperators.IS_NAN)));
+    default: throw new IllegalArgumentException("Unrecognized compare op: " + op);
+    }
+  }
+
+  static VectorMask<Long> compareMask(int op, LongVector x, LongVector y) {
+    switch(op) {
+    case GT: return x.compare(VectorOperators.GT, y);
+    case GE: return x.compare(VectorOperators.GE, y);
+    case LT: return x.compare(VectorOperators.LT, y);
+    case LE: return x.compare(VectorOperators.LE, y);
+    case EQ: return x.compare(VectorOperators.EQ, y);
+    default: throw new IllegalArgumentException("Unrecognized compare op: " + op);
+    }
+  }
+
+  static int compressMask(long bits, int idx, int[] dst, int cnt) {
+    while (bits != 0) {
+      dst[cnt++] = idx + Long.numberOfTrailingZeros(bits);
+      bits &= bits - 1;
+    }
+    return cnt;
+  }
+
+  public static int compareIndexes(int op, double[] lhs, int loff, double[] rhs, int roff,
+				   int len, int[] dst, int doff, int idxOff) {
+    VectorSpecies<Double> species = DoubleVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    int cnt = doff;
+    for (int idx = 0; idx < nVec; ++idx) {
+      int vecoff = idx * vecLen;
+      VectorMask<Double> m = compareMask(op,
+					 DoubleVector.fromArray(species, lhs, loff + vecoff),
+					 DoubleVector.fromArray(species, rhs, roff + vecoff));
+      cnt = compressMask(m.toLong(), idxOff + vecoff, dst, cnt);
+    }
+    for (int idx = nVec * vecLen; idx < len; ++idx)
+      if (compareScalar(op, lhs[loff + idx], rhs[roff + idx]))
+	dst[cnt++] = idxOff + idx;
+    return cnt - doff;
+  }
+
+  public static int compareIndexes(int op, double[] lhs, int loff, double rhs,
+				   int len, int[] dst, int doff, int idxOff) {
+    VectorSpecies<Double> species = DoubleVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    int cnt = doff;
+    DoubleVector y = DoubleVector.broadcast(species, rhs);
+    for (int idx = 0; idx < nVec; ++idx) {
+      int vecoff = idx * vecLen;
+      VectorMask<Double> m = compareMask(op,
+					 DoubleVector.fromArray(species, lhs, loff + vecoff), y);
+      cnt = compressMask(m.toLong(), idxOff + vecoff, dst, cnt);
+    }
+    for (int idx = nVec * vecLen; idx < len; ++idx)
+      if (compareScalar(op, lhs[loff + idx], rhs))
+	dst[cnt++] = idxOff + idx;
+    return cnt - doff;
+  }
+
+  public static int compareIndexes(int op, long[] lhs, int loff, long[] rhs, int roff,
+				   int len, int[] dst, int doff, int idxOff) {
+    VectorSpecies<Long> species = LongVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    int cnt = doff;
+    for (int idx = 0; idx < nVec; ++idx) {
+      int vecoff = idx * vecLen;
+      VectorMask<Long> m = compareMask(op,
+				       LongVector.fromArray(species, lhs, loff + vecoff),
+				       LongVector.fromArray(species, rhs, roff + vecoff));
+      cnt = compressMask(m.toLong(), idxOff + vecoff, dst, cnt);
+    }
+    for (int idx = nVec * vecLen; idx < len; ++idx)
+      if (compareScalar(op, lhs[loff + idx], rhs[roff + idx]))
+	dst[cnt++] = idxOff + idx;
+    return cnt - doff;
+  }
+
+  public static int compareIndexes(int op, long[] lhs, int loff, long rhs,
+				   int len, int[] dst, int doff, int idxOff) {
+    VectorSpecies<Long> species = LongVector.SPECIES_PREFERRED;
+    int vecLen = species.length();
+    int nVec = len / vecLen;
+    int cnt = doff;
+    LongVector y = LongVector.broadcast(species, rhs);
+    for (int idx = 0; idx < nVec; ++idx) {
+      int vecoff = idx * vecLen;
+      VectorMask<Long> m = compareMask(op,
+				       LongVector.fromArray(species, lhs, loff + vecoff), y);
+      cnt = compressMask(m.toLong(), idxOff + vecoff, dst, cnt);
+    }
+    for (int idx = nVec * vecLen; idx < len; ++idx)
+      if (compareScalar(op, lhs[loff + idx], rhs))
+	dst[cnt++] = idxOff + idx;
+    return cnt - doff;
+  }
 }
@@ -18,7 +18,8 @@
 (defn ->array
   "Perform a NaN-aware conversion into an array.  Default
   nan-strategy is :keep.
-  Nan strategies can be: [:keep :remove :exception]"
+  Nan strategies can be: [:keep :remove :exception]
+  Large lazy readers are materialized in parallel unless `:parallel?` is false."
   ([datatype options item]
   (tech.v3.datatype.copy-make-container/->array datatype options item))
   ([datatype item]
@@ -245,6 +246,28 @@
   (tech.v3.datatype.base/as-writer item)))
 
 
+(defn auto-materialize
+  "Wrap a lazily computed reader, such as the result of emap or of chained functional
+  math, so that it is copied into a jvm-heap container once more than `:max-passes`
+  times its length in elements have been read from it.  Later reads come from the
+  container.  Algorithms that read their input many times - sorts, percentiles, joins -
+  then pay for computing each element once instead of once per read.
+
+  Concrete array and native buffers are returned unchanged.  See
+  `materialization-stats` for how often wrapped readers materialize.
+
+  Options:
+
+  * `:max-passes` - Number of full passes over the data to allow before materializing.
+     Defaults to 2.
+  * `:datatype` - Datatype of the materialized container.  Defaults to the reader's
+     elemwise datatype."
+  (^{:tag tech.v3.datatype.Buffer} [item options]
+  (tech.v3.datatype.copy-make-container/auto-materialize item options))
+  (^{:tag tech.v3.datatype.Buffer} [item]
+  (tech.v3.datatype.copy-make-container/auto-materialize item)))
+
+
 (defn cast
   "Perform a checked cast of a value to specific datatype."
   ([value datatype]
@@ -371,7 +394,11 @@
 
 (defn ensure-native
   "If input is already a native buffer and has the same datatype as output,
-  return input.  Else copy input into output and return output."
+  return input.  Else copy input into output and return output.
+
+  If an options map is passed in place of output then input is returned if it is already
+  a native buffer whose address satisfies the `:alignment` (and `:huge-pages?`) options.
+  Else input is copied into a new buffer allocated with options - see [[malloc]]."
   ([input outbuf]
   (tech.v3.datatype.native-buffer/ensure-native input outbuf))
   ([input]
@@ -428,7 +455,11 @@
 (defn make-container
   "Make a container of a given datatype.  Options are container specific
   and in general unused.  Values will be copied into given container using
-  the most efficient pathway possible."
+  the most efficient pathway possible.
+
+  Large lazy readers are materialized into :jvm-heap containers in parallel - see
+  [[tech.v3.datatype.copy/parallel-materialize-min-elems*]].  Pass `{:parallel? false}`
+  or give the reader `{:thread-safe? false}` metadata to materialize serially."
   ([container-type datatype options elem-seq-or-count]
   (tech.v3.datatype.copy-make-container/make-container container-type datatype options elem-seq-or-count))
   ([container-type datatype elem-seq-or-count]
@@ -514,13 +545,29 @@ user> (dtype/make-reader :float32 5 (* idx 2))
   * `:endianness` - Either `:little-endian` or `:big-endian` - defaults to platform.
   * `:log-level` - one of `#{:debug :trace :info :warn :error :fatal}` or nil if no logging
      is desired.  When enabled allocations and frees will be logged in the same manner as
-     `tech.jna`."
+     `tech.jna`.
+  * `:arena` - [[native-arena]] to allocate from - defaults to [[*native-arena*]].  Arena
+     memory is released when the arena is closed so `:resource-type` is ignored.  Pass
+     nil to force the system allocator.
+  * `:alignment` - Byte alignment of the returned address - a power of two, `:cache-line`
+     (64 bytes) or `:page` (the system page size).  Defaults to whatever the allocator
+     returns.  The alignment is recorded on the buffer - see [[alignment]].
+  * `:huge-pages?` - Linux only - advise the kernel via madvise to back the allocation
+     with transparent huge pages.  Implies at least page alignment and is silently
+     ignored where unsupported."
   (^{:tag tech.v3.datatype.native_buffer.NativeBuffer} [n-bytes dtype-or-opts]
   (tech.v3.datatype.native-buffer/malloc n-bytes dtype-or-opts))
   (^{:tag tech.v3.datatype.native_buffer.NativeBuffer} [n-bytes]
   (tech.v3.datatype.native-buffer/malloc n-bytes)))
 
 
+(defn materialization-stats
+  "Process-wide counts of readers wrapped with `auto-materialize`, how many of them
+  materialized and the total number of elements materialized."
+  ([]
+  (tech.v3.datatype.copy-make-container/materialization-stats)))
+
+
 (defn prealloc-list
   "Make an list with preallocated storage.  This function exists to cause
   a compilation error if older versions of dtype-next are included and is
@@ -21,11 +21,14 @@
             [ham-fisted.protocols :as hamf-proto]
             [ham-fisted.lazy-noncaching :as lznc]
             [ham-fisted.iterator :as hamf-iter])
-  (:import [it.unimi.dsi.fastutil.ints IntArrays IntComparator]
+  (:import [it.unimi.dsi.fastutil.ints IntComparator]
            [it.unimi.dsi.fastutil.longs LongArrays LongComparator]
            [it.unimi.dsi.fastutil.doubles DoubleComparator]
            [clojure.lang IFn$OLO]
            [tech.v3.datatype
+            ArgSort
+            TopK
+            PrimitiveGroupBy PrimitiveGroupBy$Result
             Comparators$IntComp
             Comparators$LongComp
             Comparators$DoubleComp
@@ -329,9 +332,61 @@
         compare)))
 
 
+(defonce ^{:doc "Sorts of at least this many elements are split across threads when
+  `:parallel?` is true."}
+  parallel-sort-min-elems* (atom 65536))
+
+
+(defn- natural-order
+  "When comparator orders primitive numeric values by their natural ascending or
+  descending order return a map of the key type the values are sorted by (`:int`,
+  `:long`, `:float` or `:double`), `:descending?` and the ArgSort nan strategy.
+  Returns nil otherwise."
+  [comparator nan-strategy values]
+  (let [op (if (keyword? comparator)
+             comparator
+             (:binary-predicate (meta comparator)))
+        descending? (identical? op :tech.numerics/>)]
+    (when (and (or (nil? comparator) descending? (identical? op :tech.numerics/<))
+               (< (dtype-base/ecount values) Integer/MAX_VALUE))
+      (when-let [key-type (case (casting/un-alias-datatype
+                                 (dtype-base/operational-elemwise-datatype values))
+                            (:int8 :uint8 :int16 :uint16 :int32) :int
+                            (:uint32 :int64) :long
+                            :float32 :float
+                            :float64 :double
+                            nil)]
+        {:key-type key-type
+         :descending? descending?
+         :nan-strategy (case nan-strategy
+                         :first ArgSort/NAN_FIRST
+                         :exception ArgSort/NAN_EXCEPTION
+                         ArgSort/NAN_LAST)}))))
+
+
+(defn- radix-argsort
+  "Stable argsort of primitive numeric values by the order-preserving keys of their
+  natural ascending or descending order.  Returns nil when the datatype or comparator
+  do not allow a key sort."
+  [comparator nan-strategy parallel-min-elems values]
+  (when-let [{:keys [key-type descending? nan-strategy]}
+             (natural-order comparator nan-strategy values)]
+    (let [parallel-min-elems (long parallel-min-elems)
+          ^Buffer rdr (dtype-base/->reader values)]
+      (case key-type
+        :int (ArgSort/argsortInts rdr descending? parallel-min-elems)
+        :long (ArgSort/argsortLongs rdr descending? parallel-min-elems)
+        :float (ArgSort/argsortFloats rdr descending? nan-strategy parallel-min-elems)
+        :double (ArgSort/argsortDoubles rdr descending? nan-strategy
+                                        parallel-min-elems)))))
+
+
 (defn argsort
-  "Sort values in index space returning a buffer of indexes.  By default uses a parallelized
-  quicksort algorithm by default.
+  "Sort values in index space returning a buffer of indexes.  The sort is stable.
+  Integer and floating point values sorted in their natural ascending or descending
+  order are sorted by the same order-preserving keys as [[arg-min-n]], with a radix
+  sort once there are enough of them; everything else uses a merge sort.  Both split large sorts
+  across threads.
 
 
   * `compare-fn` may be one of:
@@ -345,7 +400,8 @@
 
   * `:nan-strategy` - General missing strategy.  Options are `:first`, `:last`, and
     `:exception`.
-  * `:parallel?` - Uses parallel quicksort when true and regular quicksort when false."
+  * `:parallel?` - Split large sorts across threads when true, the default.  Sorts of
+    at least `@parallel-sort-min-elems*` elements are split."
   ([comparator {:keys [parallel?
                        nan-strategy]
                 :or {parallel? true
@@ -353,17 +409,20 @@
                 :as _options}
     values]
    (let [n-elems (dtype-base/ecount values)
+         parallel-min-elems (if parallel? (long @parallel-sort-min-elems*) Long/MAX_VALUE)
+         radix-sorted (radix-argsort comparator nan-strategy parallel-min-elems values)
          val-dtype (dtype-base/operational-elemwise-datatype values)
-         comparator (-> (find-base-comparator comparator val-dtype)
-                        (index-comparator nan-strategy values))]
+         comparator (when-not radix-sorted
+                      (-> (find-base-comparator comparator val-dtype)
+                          (index-comparator nan-strategy values)))]
      (-> (cond
            (== n-elems 0)
            (ArrayLists/toList (int-array 0))
+           radix-sorted
+           (ArrayLists/toList ^ints radix-sorted)
            (instance? IntComparator comparator)
            (let [^ints idx-ary (hamf/iarange n-elems)]
-             (if parallel?
-               (IntArrays/parallelQuickSort idx-ary ^IntComparator comparator)
-               (IntArrays/quickSort idx-ary ^IntComparator comparator))
+             (ArgSort/parallelMergeSort idx-ary ^IntComparator comparator parallel-min-elems)
              (ArrayLists/toList idx-ary))
            :else
            (let [^longs idx-ary (hamf/larange (range n-elems))]
@@ -379,36 +438,62 @@
 
 
 (defn arg-min-n
-  "Return the indexes of the top minimum items.  Values must be countable and random access.
-  Same options,arguments as [[argsort]]."
-  ([N comparator {:keys [nan-strategy]
-                  :or {nan-strategy :last}}
+  "Return the indexes of the top minimum items in order.  Ties are broken by index so
+  the result is the first N indexes of [[argsort]].  Values must be countable and
+  random access.  Same options,arguments as [[argsort]].
+
+  Each partition of the data keeps a bounded heap of its N smallest items and the
+  heaps are merged; when N is a large fraction of the data the N smallest items are
+  found by selection instead.  Primitive values in their natural order compare
+  unboxed."
+  ([N comparator {:keys [nan-strategy parallel?]
+                  :or {nan-strategy :last
+                       parallel? true}}
     values]
    (let [N (long N)
-         val-dtype (dtype-base/operational-elemwise-datatype values)
-         comparator (-> (find-base-comparator comparator val-dtype)
-                        (index-comparator nan-strategy values))
-         queue (PriorityQueue. (int N) (.reversed comparator))
-         n-elems (dtype-base/ecount values)]
-     (if (instance? IntComparator comparator)
-       (dotimes [idx n-elems]
-         (.offer queue (unchecked-int idx))
-         (when (> (.size queue) N)
-           (.poll queue)))
-       (dotimes [idx n-elems]
-         (.add queue idx)
-         (when (> (.size queue) N)
-           (.poll queue))))
-     (reduce (hamf-rf/indexed-accum
-              acc idx v
-              (ArrayHelpers/aset ^ints acc idx (unchecked-int v))
-              acc)
-             (int-array (.size queue))
-             queue)))
+         n-elems (dtype-base/ecount values)
+         parallel-min-elems (if parallel? (long @parallel-sort-min-elems*) Long/MAX_VALUE)
+         k (int (min N n-elems))]
+     (if-let [{:keys [key-type descending? nan-strategy]}
+              (natural-order comparator nan-strategy values)]
+       (let [^Buffer rdr (dtype-base/->reader values)]
+         (case key-type
+           :int (TopK/topKInts rdr k descending? parallel-min-elems)
+           :long (TopK/topKLongs rdr k descending? parallel-min-elems)
+           :float (TopK/topKFloats rdr k descending? nan-strategy parallel-min-elems)
+           :double (TopK/topKDoubles rdr k descending? nan-strategy parallel-min-elems)))
+       (let [val-dtype (dtype-base/operational-elemwise-datatype values)
+             comparator (-> (find-base-comparator comparator val-dtype)
+                            (index-comparator nan-strategy values))]
+         (if (instance? IntComparator comparator)
+           (TopK/topK (int n-elems) k ^IntComparator comparator parallel-min-elems)
+           ;;Index spaces too large for int indexes
+           (let [queue (PriorityQueue. (int (max 1 k)) (.reversed ^Comparator comparator))]
+             (dotimes [idx n-elems]
+               (.add queue idx)
+               (when (> (.size queue) N)
+                 (.poll queue)))
+             ;;the queue polls the largest remaining item first
+             (let [rv (int-array (.size queue))]
+               (loop [idx (dec (alength rv))]
+                 (when (>= idx 0)
+                   (aset rv idx (unchecked-int (.poll queue)))
+                   (recur (dec idx))))
+               rv)))))))
   ([N comparator values] (arg-min-n N comparator nil values))
   ([N values] (arg-min-n N nil nil values)))
 
 
+(defn arg-max-n
+  "Return the indexes of the top maximum items in order.  Ties are broken by index.
+  Same options,arguments as [[arg-min-n]] where comparator defaults to
+  `:tech.numerics/>`."
+  ([N comparator options values]
+   (arg-min-n N (or comparator :tech.numerics/>) options values))
+  ([N comparator values] (arg-max-n N comparator nil values))
+  ([N values] (arg-max-n N nil nil values)))
+
+
 (defmacro ^:private double-compare
   [_comp lhs rhs]
   `(Double/compare ~lhs ~rhs))
@@ -541,6 +626,40 @@
    (binary-argfilter pred nil lhs rhs)))
 
 
+(def ^:private arggroup-min-elems
+  "Groupings of fewer elements than this run on one thread."
+  1000)
+
+
+(defn- primitive-arggroup
+  "Group values in the :int64 or :float64 operation spaces with primitive keyed hash
+  tables or, for integer keys in a small range, by counting sort.  See
+  PrimitiveGroupBy.  Each group's indexes are an ascending slice of a single int array
+  and groups are added to the map in order of first appearance."
+  ^Map [op-space key-range map-fn rdr]
+  (let [double-keys? (identical? op-space :float64)
+        ^Buffer rdr (dtype-base/->reader rdr)
+        [min-key max-key] (cond
+                            key-range key-range
+                            (not double-keys?) (PrimitiveGroupBy/minMax rdr arggroup-min-elems))
+        ^PrimitiveGroupBy$Result result
+        (if (or key-range
+                (and min-key (PrimitiveGroupBy/isDense min-key max-key (.lsize rdr))))
+          (PrimitiveGroupBy/groupByRange rdr (long min-key) (long max-key) arggroup-min-elems)
+          (PrimitiveGroupBy/groupBy rdr double-keys? arggroup-min-elems))
+        group-keys (.-keys result)
+        starts (.-starts result)
+        ends (.-ends result)
+        indexes (.-indexes result)
+        ^Map rv (map-fn)]
+    (dotimes [idx (.size result)]
+      (let [k (aget group-keys idx)]
+        (.put rv
+              (if double-keys? (Double/longBitsToDouble k) k)
+              (ArrayLists/toList indexes (aget starts idx) (aget ends idx) nil))))
+    rv))
+
+
 (defn arggroup
   "Group by elemens in the reader returning a map of value->list of indexes.
 
@@ -557,8 +676,19 @@
     bitmap, unordered reductions are used as the bitmap forces the end results to be
     ordered
   - `:key-fn` - defaults to identity.  In this case the reader's values are used as the
-    keys."
-  (^Map [{:keys [storage-datatype unordered? skip-finalize? map-fn operation-space] :as options} rdr]
+    keys.
+
+  - `:key-range` - `[min max]`, inclusive, of integer keys.  Keys are grouped by a
+    counting sort into preallocated index arrays and keys outside of the range are an
+    error.  Integer keys spanning a small enough range are detected without this
+    option.  Only valid for readers in the `:int64` operation space grouped into
+    `:int32` indexes - other readers or storage datatypes are an error.
+
+  Values in the `:int64` and `:float64` operation spaces grouped into `:int32` indexes
+  use primitive open-addressing hash tables rather than a map of boxed keys.  Double
+  keys then place all NaN values into a single group and group -0.0 with 0.0."
+  (^Map [{:keys [storage-datatype unordered? skip-finalize? map-fn operation-space
+                 key-range] :as options} rdr]
    (when-not (dtype-base/reader? rdr)
      (errors/throwf "Input must be convertible to a reader"))
    ;;This function can be written fairly trivially with hamf/group-by-consumer but
@@ -585,31 +715,43 @@
                          (fn [l r] l)
                          m)
                         m)))
-         map-fn (or map-fn hamf/linked-hashmap)]
-     (->> (hamf/pgroups
-           n-elems
-           (fn [^long sidx ^long eidx]
-             (reduce (case op-space
-                       :int64 (hamf-rf/indexed-long-accum
-                               acc idx v
-                               (let [l (.computeIfAbsent ^Map acc v afn)]
-                                 (.invokePrim rfn l (+ sidx idx))
-                                 acc))
-                       :float64 (hamf-rf/indexed-double-accum
+         map-fn (or map-fn hamf/linked-hashmap)
+         primitive? (and (#{:int64 :float64} op-space)
+                         (identical? storage-datatype :int32)
+                         (not skip-finalize?))]
+     (when key-range
+       (errors/when-not-errorf (identical? op-space :int64)
+                               ":key-range requires integer keys - operation space is %s"
+                               op-space)
+       (errors/when-not-errorf primitive?
+                               ":key-range requires finalized :int32 index storage - storage is %s"
+                               storage-datatype))
+     (if primitive?
+       (primitive-arggroup op-space key-range map-fn rdr)
+       (->> (hamf/pgroups
+             n-elems
+             (fn [^long sidx ^long eidx]
+               (reduce (case op-space
+                         :int64 (hamf-rf/indexed-long-accum
                                  acc idx v
                                  (let [l (.computeIfAbsent ^Map acc v afn)]
                                    (.invokePrim rfn l (+ sidx idx))
                                    acc))
-                       (hamf-rf/indexed-accum
-                        acc idx v
-                        (let [l (.computeIfAbsent ^Map acc v afn)]
-                          (.invokePrim rfn l (+ sidx idx))
-                          acc)))
-                     (map-fn)
-                     (dtype-base/sub-buffer rdr sidx (- eidx sidx))))
-           {:min-n 1000})
-          (Reductions/iterableMerge (hamf-rf/options->parallel-options {:min-n 1000}) map-merge)
-          (fin-fn))))
+                         :float64 (hamf-rf/indexed-double-accum
+                                   acc idx v
+                                   (let [l (.computeIfAbsent ^Map acc v afn)]
+                                     (.invokePrim rfn l (+ sidx idx))
+                                     acc))
+                         (hamf-rf/indexed-accum
+                          acc idx v
+                          (let [l (.computeIfAbsent ^Map acc v afn)]
+                            (.invokePrim rfn l (+ sidx idx))
+                            acc)))
+                       (map-fn)
+                       (dtype-base/sub-buffer rdr sidx (- eidx sidx))))
+             {:min-n 1000})
+            (Reductions/iterableMerge (hamf-rf/options->parallel-options {:min-n 1000}) map-merge)
+            (fin-fn)))))
   (^Map [rdr]
    (arggroup nil rdr)))
 
@@ -823,6 +823,10 @@ tech.v3.tensor.integration-test> (dtype/set-value! (dtype/clone test-tens) [:all
   (constant-time-max [item] (get (meta item) :max))
   dtype-proto/POperator
   (op-name [item] :_unnamed)
+  dtype-proto/PBooleanReaderIndexes
+  (bool-reader-indexes [item _options] nil)
+  dtype-proto/PElemwiseExpression
+  (elemwise-expression [item] nil)
   dtype-proto/PShape
   (shape [item]
     (cond
@@ -4,6 +4,7 @@
             [tech.v3.datatype.base :as dtype-base]
             [tech.v3.datatype.dispatch :as dispatch]
             [tech.v3.datatype.errors :as errors]
+            [tech.v3.datatype.graal-native :as graal-native]
             [clj-commons.primitive-math :as pmath])
   (:import [tech.v3.datatype BinaryPredicate Buffer
             BinaryPredicates$LongBinaryPredicate
@@ -75,12 +76,17 @@
   (^BinaryPredicate [item] (->predicate item :_unnamed)))
 
 
+(declare vectorized-compare-indexes)
+
+
 (defn reader
   ^Buffer [pred lhs-rdr rhs-rdr]
   (let [pred (->predicate pred)
         op-dtype (casting/simple-operation-space
                   (dtype-base/elemwise-datatype lhs-rdr)
                   (dtype-base/elemwise-datatype rhs-rdr))
+        lhs lhs-rdr
+        rhs rhs-rdr
         lhs-rdr (dtype-base/->reader lhs-rdr op-dtype)
         rhs-rdr (dtype-base/->reader rhs-rdr op-dtype)]
     (when-not (== (.lsize lhs-rdr)
@@ -95,14 +101,20 @@
         (readObject [rdr idx]
           (.binaryLong pred
                        (.readLong lhs-rdr idx)
-                       (.readLong rhs-rdr idx))))
+                       (.readLong rhs-rdr idx)))
+        dtype-proto/PBooleanReaderIndexes
+        (bool-reader-indexes [rdr options]
+          (vectorized-compare-indexes pred lhs rhs options)))
       :float64
       (reify BooleanReader
         (lsize [rdr] (.lsize lhs-rdr))
         (readObject [rdr idx]
           (.binaryDouble pred
                        (.readDouble lhs-rdr idx)
-                       (.readDouble rhs-rdr idx))))
+                       (.readDouble rhs-rdr idx)))
+        dtype-proto/PBooleanReaderIndexes
+        (bool-reader-indexes [rdr options]
+          (vectorized-compare-indexes pred lhs rhs options)))
       (reify BooleanReader
         (lsize [rdr] (.lsize lhs-rdr))
         (readObject [rdr idx]
@@ -195,6 +207,33 @@
                              dtype-proto/POperator
                              (op-name [this] :bit-test))})
 
+(def ^:private compare-op-names
+  (->> [:tech.numerics/> :tech.numerics/>= :tech.numerics/< :tech.numerics/<=
+        :tech.numerics/eq]
+       (map (fn [k] [(builtin-ops k) k]))
+       (into {})))
+
+
+(def ^:private vectorized-compare*
+  (delay
+    (graal-native/when-not-defined-graal-native
+     (try
+       (let [compare-fn (requiring-resolve 'tech.v3.datatype.functional.vecopt/compare-indexes)]
+         ;;VecOps only links against the vector module when first used.
+         (compare-fn :tech.numerics/> (double-array 1) (double-array 1) :int32)
+         compare-fn)
+       (catch Throwable _e nil)))))
+
+
+(defn- vectorized-compare-indexes
+  "Indexes where a builtin comparison of dense lhs and rhs holds, computed with
+  vectorized kernels, or nil if unavailable."
+  [pred lhs rhs options]
+  (when-let [op-name (get compare-op-names pred)]
+    (when-let [compare-fn @vectorized-compare*]
+      (compare-fn op-name lhs rhs (get options :storage-type)))))
+
+
 (defn builtin
   "Return the builtin binary predicate for the given keyword or error."
   ^BinaryPredicate [kwd]
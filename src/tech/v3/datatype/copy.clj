@@ -8,9 +8,10 @@
             [ham-fisted.api :as hamf]
             [ham-fisted.reduce :as hamf-rf])
   (:import [sun.misc Unsafe]
-           [ham_fisted ArrayLists$ArrayOwner]
+           [ham_fisted ArrayLists$ArrayOwner ArraySection]
            [tech.v3.datatype UnsafeUtil Buffer]
-           [tech.v3.datatype ArrayHelpers Buffer$CopyingReducer]))
+           [tech.v3.datatype ArrayHelpers Buffer$CopyingReducer]
+           [java.util.concurrent ForkJoinTask]))
 
 
 (set! *warn-on-reflection* true)
@@ -31,46 +32,130 @@
 (def passthrough-long-accum (hamf-rf/long-accumulator acc v acc))
 (def passthrough-double-accum (hamf-rf/double-accumulator acc v acc))
 
+(def ^:private block-read-size 4096)
+
+
+(defonce ^{:doc "Lazy readers with at least this many elements are materialized into
+  arrays in parallel by copy!, make-container, ->array and clone.  Set to
+  Long/MAX_VALUE to always materialize serially."}
+  parallel-materialize-min-elems* (atom 65536))
+
+
+(defn- block-read-copy!
+  "Copy src into a float64, float32, int64 or int32 array section through the block
+  read methods of src.  Lazy readers such as elementwise binary ops implement block
+  reads with vectorized kernels so materializing them this way avoids a virtual call
+  per element.  Large copies split the index space across the fork-join pool when
+  parallel?."
+  [^Buffer src dst-dtype ^ArraySection dst parallel?]
+  (let [ary (.array dst)
+        aoff (.sidx dst)
+        n-elems (.lsize src)
+        copy-fn (fn [^long sidx ^long group-len]
+                  (let [eidx (+ sidx group-len)]
+                    (loop [idx sidx]
+                      (when (< idx eidx)
+                        (let [n-block (min (long block-read-size) (- eidx idx))
+                              dst-off (+ aoff idx)]
+                          (case dst-dtype
+                            :float64 (.readDoubles src idx ^doubles ary dst-off n-block)
+                            :float32 (.readFloats src idx ^floats ary dst-off n-block)
+                            :int64 (.readLongs src idx ^longs ary dst-off n-block)
+                            :int32 (.readInts src idx ^ints ary dst-off n-block))
+                          (recur (+ idx n-block)))))))]
+    (if (and parallel? (>= n-elems (long @parallel-materialize-min-elems*)))
+      (parallel-for/indexed-map-reduce n-elems copy-fn dorun)
+      (copy-fn 0 n-elems))))
+
+
 (defn generic-copy!
-  [src dst]
-  (when @error-on-generic-copy*
-    (errors/throwf "Generic copy detected!"))
-  (let [dst-dtype (packing/unpack-datatype (dtype-base/elemwise-datatype dst))
-        src (dtype-base/->reader src dst-dtype)
-        dst (dtype-base/->writer dst)
-        n-elems (.lsize src)]
-    (when-not (== n-elems (.lsize dst))
-      (throw (Exception. (format "src,dst ecount mismatch: %d-%d"
-                                 n-elems (.lsize dst)))))
-    (if (< n-elems 1024)
-      (.fillRange dst 0 src)
-      (hamf-rf/preduce (constantly nil)
-                       (case (casting/simple-operation-space dst-dtype)
-                         :int64 passthrough-long-accum
-                         :float64 passthrough-double-accum
-                         passthrough-accum)
-                       passthrough-accum
-                       (Buffer$CopyingReducer. src dst)))
-    dst))
+  "Copy src into dst element by element.  Options:
+
+  * `:parallel?` - When false never split the copy across threads.  Use for readers
+     that are not safe to read from multiple threads.  Defaults to true."
+  ([src dst options]
+   (when @error-on-generic-copy*
+     (errors/throwf "Generic copy detected!"))
+   (let [parallel? (get options :parallel? true)
+         dst-dtype (packing/unpack-datatype (dtype-base/elemwise-datatype dst))
+         src (dtype-base/->reader src dst-dtype)
+         dst-section (when (#{:float64 :float32 :int64 :int32} dst-dtype)
+                       (let [dst-buf (dtype-base/as-concrete-buffer dst)]
+                         (when (instance? ArrayLists$ArrayOwner dst-buf)
+                           (.getArraySection ^ArrayLists$ArrayOwner dst-buf))))
+         dst (dtype-base/->writer dst)
+         n-elems (.lsize src)]
+     (when-not (== n-elems (.lsize dst))
+       (throw (Exception. (format "src,dst ecount mismatch: %d-%d"
+                                  n-elems (.lsize dst)))))
+     (cond
+       dst-section
+       (block-read-copy! src dst-dtype dst-section parallel?)
+       (or (< n-elems 1024) (not parallel?))
+       (.fillRange dst 0 src)
+       :else
+       (hamf-rf/preduce (constantly nil)
+                        (case (casting/simple-operation-space dst-dtype)
+                          :int64 passthrough-long-accum
+                          :float64 passthrough-double-accum
+                          passthrough-accum)
+                        passthrough-accum
+                        (Buffer$CopyingReducer. src dst)))
+     dst))
+  ([src dst]
+   (generic-copy! src dst nil)))
+
+
+(defonce ^{:doc "Copies of at least this many bytes between arrays and native buffers
+  are split into chunks copied in parallel on the fork-join common pool.  Set to
+  Long/MAX_VALUE to disable parallel copies."}
+  parallel-copy-min-bytes* (atom (* 4 1024 1024)))
+
+
+(defn- chunked-copy!
+  "Copy n-elems elements of elem-width bytes.  src and dst are Unsafe base objects
+  (nil for native memory) with their byte offsets.  When swap? the byte order of each
+  element is reversed.  Large copies are split into chunks that run in parallel unless
+  we are already running in a fork-join pool."
+  [src ^long src-off dst ^long dst-off ^long n-elems ^long elem-width swap?]
+  (let [copy-fn (fn [^long sidx ^long eidx]
+                  (let [boff (* sidx elem-width)
+                        n-group (- eidx sidx)]
+                    (if swap?
+                      (UnsafeUtil/copySwapMemory src (+ src-off boff)
+                                                 dst (+ dst-off boff)
+                                                 n-group elem-width)
+                      (.copyMemory (unsafe)
+                                   src (+ src-off boff)
+                                   dst (+ dst-off boff)
+                                   (* n-group elem-width)))))]
+    (if (and (>= (* n-elems elem-width) (long @parallel-copy-min-bytes*))
+             (not (ForkJoinTask/inForkJoinPool)))
+      (->> (hamf/upgroups n-elems copy-fn)
+           (dorun))
+      (copy-fn 0 n-elems))))
 
 
 (defn unsafe-copy-memory
   "Only Arrays, arraybuffers, and native buffers implement the memcpy info protocol.
   If you know both sides are arrays it is faster to use System/arraycopy.
-  datatypes, endianness, and ecounts  *must* match, this is not checked in this method.
+  datatypes and ecounts  *must* match, this is not checked in this method.  Endianness
+  must match unless swap? is true in which case the bytes of each element are reversed
+  during the copy.  Copies larger than [[parallel-copy-min-bytes*]] run in parallel.
   If in question, use [[high-perf-copy!]]."
-  ([src-buf dst-buf src-dt ^long n-elems]
+  ([src-buf dst-buf src-dt ^long n-elems swap?]
    (let [[src ^long src-off] (dtype-proto/memcpy-info src-buf)
-         [dst ^long dst-off] (dtype-proto/memcpy-info dst-buf)]
+         [dst ^long dst-off] (dtype-proto/memcpy-info dst-buf)
+         elem-width (casting/numeric-byte-width src-dt)]
      (if (and (nil? src) (nil? dst)
-              (or (identical? :int8 src-dt)
-                  (identical? :uint8 src-dt)))
+              (== 1 elem-width)
+              (< n-elems (long @parallel-copy-min-bytes*)))
        (UnsafeUtil/copyBytes src-off dst-off n-elems)
-       (.copyMemory (unsafe)
-                    src (long src-off)
-                    dst (long dst-off)
-                    (* n-elems (casting/numeric-byte-width src-dt))))
+       (chunked-copy! src src-off dst dst-off n-elems elem-width
+                      (and swap? (> elem-width 1))))
      dst-buf))
+  ([src-buf dst-buf src-dt n-elems]
+   (unsafe-copy-memory src-buf dst-buf src-dt n-elems false))
   ([src-buf dst-buf]
    (unsafe-copy-memory src-buf dst-buf
                        (dtype-proto/elemwise-datatype src-buf)
@@ -82,44 +167,53 @@
   datatype.
   src must either be convertible to an array or to a native buffer.
   dst must either be convertible to an array or to a native buffer.
-  Uses Unsafe/copyMemory under the covers *without* safePointPolling.
+  Uses Unsafe/copyMemory under the covers *without* safePointPolling.  Copies between
+  buffers of differing endianness swap bytes during the copy.  Large copies are
+  chunked and run in parallel - see [[parallel-copy-min-bytes*]].
+  Options are passed to [[generic-copy!]] when neither side is a concrete buffer.
   Returns dst"
-  [src dst]
-  (let [src-dt (casting/host-flatten (dtype-base/elemwise-datatype src))
-        src-ec (dtype-base/ecount src)
-        dst-ec (dtype-base/ecount dst)
-        n-elems src-ec]
-    (when-not (== src-ec dst-ec)
-      (throw (Exception. (format "src ecount (%s) != dst ecount (%s)"
-                                 src-ec dst-ec))))
-    (if (identical? src-dt (casting/host-flatten (dtype-base/elemwise-datatype dst)))
-      (let [src-buf (dtype-base/as-concrete-buffer src)
-            dst-buf (dtype-base/as-concrete-buffer dst)]
-        (cond
-          (and (instance? ArrayLists$ArrayOwner src-buf)
-               (instance? ArrayLists$ArrayOwner dst-buf))
-          (let [src (.getArraySection ^ArrayLists$ArrayOwner src-buf)
-                dst (.getArraySection ^ArrayLists$ArrayOwner dst-buf)]
-            (System/arraycopy (.array src) (.sidx src)
-                              (.array dst) (.sidx dst)
-                              (.size src)))
-          (and src-buf dst-buf
-               (identical? (dtype-proto/endianness src-buf)
-                           (dtype-proto/endianness dst-buf)))
-          (unsafe-copy-memory src-buf dst-buf src-dt n-elems)
-          :else
-          (generic-copy! (or src-buf src)
-                         (or dst-buf dst))))
-
-      (generic-copy! src dst))
-    dst))
+  ([src dst options]
+   (let [src-dt (casting/host-flatten (dtype-base/elemwise-datatype src))
+         src-ec (dtype-base/ecount src)
+         dst-ec (dtype-base/ecount dst)
+         n-elems src-ec]
+     (when-not (== src-ec dst-ec)
+       (throw (Exception. (format "src ecount (%s) != dst ecount (%s)"
+                                  src-ec dst-ec))))
+     (if (identical? src-dt (casting/host-flatten (dtype-base/elemwise-datatype dst)))
+       (let [src-buf (dtype-base/as-concrete-buffer src)
+             dst-buf (dtype-base/as-concrete-buffer dst)]
+         (cond
+           (and (instance? ArrayLists$ArrayOwner src-buf)
+                (instance? ArrayLists$ArrayOwner dst-buf))
+           (let [src (.getArraySection ^ArrayLists$ArrayOwner src-buf)
+                 dst (.getArraySection ^ArrayLists$ArrayOwner dst-buf)]
+             (System/arraycopy (.array src) (.sidx src)
+                               (.array dst) (.sidx dst)
+                               (.size src)))
+           (and src-buf dst-buf
+                (identical? (dtype-proto/endianness src-buf)
+                            (dtype-proto/endianness dst-buf)))
+           (unsafe-copy-memory src-buf dst-buf src-dt n-elems)
+           ;;Mixed endianness - copy with a byte swap per element
+           (and src-buf dst-buf)
+           (unsafe-copy-memory src-buf dst-buf src-dt n-elems true)
+           :else
+           (generic-copy! (or src-buf src)
+                          (or dst-buf dst)
+                          options)))
+
+       (generic-copy! src dst options))
+     dst))
+  ([src dst]
+   (high-perf-copy! src dst nil)))
 
 
 (defn copy!
-  ([src dst _ignored] (copy! src dst))
-  ([src dst]
+  ([src dst] (copy! src dst nil))
+  ([src dst options]
    (if (dtype-proto/convertible-to-reader? src)
-     (high-perf-copy! src dst)
+     (high-perf-copy! src dst options)
      (let [op-space (casting/simple-operation-space (dtype-proto/elemwise-datatype dst))
            ^Buffer dst-buf (dtype-base/->writer dst)
            rfn (case op-space
@@ -10,19 +10,19 @@
             [tech.v3.datatype.const-reader :as const-reader]
             [tech.v3.datatype.reductions :as reductions]
             [tech.v3.datatype.argtypes :as argtypes]
-            [ham-fisted.api :as hamf]
             [ham-fisted.lazy-noncaching :as lznc])
   (:import [tech.v3.datatype.array_buffer ArrayBuffer]
-           [tech.v3.datatype Buffer]
+           [tech.v3.datatype Buffer MaterializingBuffer]
            [org.apache.commons.math3.exception NotANumberException]
            [ham_fisted IMutList]))
 
 
 (defn copy!
   "Mutably copy values from a src container into a destination container.
-  Returns the destination container."
+  Returns the destination container.  See [[tech.v3.datatype.copy/generic-copy!]] for
+  options."
   ([src dst options]
-   (dtype-copy/copy! src dst)
+   (dtype-copy/copy! src dst options)
    dst)
   ([src dst]
    (dtype-copy/copy! src dst)
@@ -36,12 +36,18 @@
    "nil elem-seq-or-count passed into make-container")
   (if (#{:scalar :iterable} (argtypes/arg-type elem-seq-or-count))
     (array-buffer/array-sub-list datatype elem-seq-or-count)
-    (let [rdr (dtype-base/->reader elem-seq-or-count datatype)]
+    (let [rdr (dtype-base/->reader elem-seq-or-count datatype)
+          ;;Readers marked as unsafe to read concurrently are materialized serially
+          options (if (false? (get (meta elem-seq-or-count) :thread-safe?))
+                    (assoc options :parallel? false)
+                    options)]
       (case datatype
-        :float64 (array-buffer/array-buffer (hamf/double-array rdr))
-        :float32 (array-buffer/array-buffer (hamf/float-array rdr))
-        :int64 (array-buffer/array-buffer (hamf/long-array rdr))
-        :int32 (array-buffer/array-buffer (hamf/int-array rdr))
+        ;;copy! materializes readers through their block reads which lazy binary ops
+        ;;implement with vectorized kernels.  Large readers are split across threads.
+        :float64 (array-buffer/array-buffer (copy! rdr (double-array (.lsize rdr)) options))
+        :float32 (array-buffer/array-buffer (copy! rdr (float-array (.lsize rdr)) options))
+        :int64 (array-buffer/array-buffer (copy! rdr (long-array (.lsize rdr)) options))
+        :int32 (array-buffer/array-buffer (copy! rdr (int-array (.lsize rdr)) options))
         (let [data (array-buffer/array-sub-list datatype (.lsize rdr))]
           (copy! elem-seq-or-count data options)
           data)))))
@@ -96,7 +102,11 @@
 (defn make-container
   "Make a container of a given datatype.  Options are container specific
   and in general unused.  Values will be copied into given container using
-  the most efficient pathway possible."
+  the most efficient pathway possible.
+
+  Large lazy readers are materialized into :jvm-heap containers in parallel - see
+  [[tech.v3.datatype.copy/parallel-materialize-min-elems*]].  Pass `{:parallel? false}`
+  or give the reader `{:thread-safe? false}` metadata to materialize serially."
   ([container-type datatype options elem-seq-or-count]
    (dtype-proto/make-container container-type datatype options elem-seq-or-count))
   ([container-type datatype elem-seq-or-count]
@@ -158,7 +168,8 @@
 (defn ->array
   "Perform a NaN-aware conversion into an array.  Default
   nan-strategy is :keep.
-  Nan strategies can be: [:keep :remove :exception]"
+  Nan strategies can be: [:keep :remove :exception]
+  Large lazy readers are materialized in parallel unless `:parallel?` is false."
   ([datatype {:keys [nan-strategy]
               :or {nan-strategy :keep} :as options}
     item]
@@ -174,7 +185,8 @@
                     (dtype-base/ecount (.-ary-data abuf))))
          (.-ary-data abuf)
          (array-buffer/copy-of abuf))
-       (-> (make-container (casting/datatype->safe-host-type datatype) (if abuf abuf item))
+       (-> (make-container :jvm-heap (casting/datatype->safe-host-type datatype) options
+                           (if abuf abuf item))
            (dtype-base/as-array-buffer)
            (->array)))))
   ([datatype item]
@@ -265,3 +277,45 @@
        (dtype-base/->reader item (dtype-base/operational-elemwise-datatype item)))))
   (^Buffer [item]
    (ensure-reader item Long/MAX_VALUE)))
+
+
+(defn auto-materialize
+  "Wrap a lazily computed reader, such as the result of emap or of chained functional
+  math, so that it is copied into a jvm-heap container once more than `:max-passes`
+  times its length in elements have been read from it.  Later reads come from the
+  container.  Algorithms that read their input many times - sorts, percentiles, joins -
+  then pay for computing each element once instead of once per read.
+
+  Concrete array and native buffers are returned unchanged.  See
+  `materialization-stats` for how often wrapped readers materialize.
+
+  Options:
+
+  * `:max-passes` - Number of full passes over the data to allow before materializing.
+     Defaults to 2.
+  * `:datatype` - Datatype of the materialized container.  Defaults to the reader's
+     elemwise datatype."
+  (^Buffer [item {:keys [max-passes datatype]
+                  :or {max-passes 2}}]
+   (if (or (instance? MaterializingBuffer item)
+           (dtype-base/as-array-buffer item)
+           (dtype-base/as-native-buffer item))
+     item
+     (let [rdr (dtype-base/->reader item)
+           datatype (or datatype (dtype-base/elemwise-datatype rdr))]
+       (MaterializingBuffer. rdr
+                             (fn [src]
+                               (dtype-base/->reader (make-container :jvm-heap datatype src)))
+                             (long (* (double max-passes) (.lsize rdr)))
+                             nil))))
+  (^Buffer [item]
+   (auto-materialize item nil)))
+
+
+(defn materialization-stats
+  "Process-wide counts of readers wrapped with `auto-materialize`, how many of them
+  materialized and the total number of elements materialized."
+  []
+  {:n-wrapped (.get MaterializingBuffer/nWrapped)
+   :n-materialized (.get MaterializingBuffer/nMaterialized)
+   :n-elems-materialized (.get MaterializingBuffer/nElemsMaterialized)})
@@ -14,6 +14,8 @@
                                                vectorized-dispatch-2]
              :as dispatch]
             [tech.v3.datatype.const-reader :refer [const-reader]]
+            [tech.v3.datatype.graal-native :as graal-native]
+            [clojure.tools.logging :as log]
             [ham-fisted.protocols :as hamf-proto]
             [ham-fisted.lazy-noncaching :as lznc]
             [ham-fisted.language :refer [cond]]
@@ -21,6 +23,8 @@
             [ham-fisted.datatypes :as hamf-dt]
             [ham-fisted.print :refer [implement-tostring-print]])
   (:import [java.util List]
+           [java.util.function Function]
+           [java.util.concurrent ConcurrentHashMap]
            [tech.v3.datatype BooleanReader LongReader DoubleReader ObjectReader Buffer]
            [ham_fisted Casts])
   (:refer-clojure :exclude [cond]))
@@ -49,6 +53,9 @@
   (elemwiseDatatype [this] reader-dtype)
   (lsize [this] n-elems)
   (readLong [this idx] (.invokePrim read-fn idx))
+  (readLongs [this sidx dst off len]
+    (dotimes [idx len]
+      (aset dst (+ off idx) (.invokePrim read-fn (+ sidx idx)))))
   (subBuffer [this sidx eidx]
     (emap-reader map-fn (hamf-proto/returned-datatype map-fn) reader-dtype cast-fn
                  (mapv #(dtype-proto/sub-buffer % sidx (- eidx sidx)) readers)
@@ -64,6 +71,9 @@
   (elemwiseDatatype [this] reader-dtype)
   (lsize [this] n-elems)
   (readDouble [this idx] (.invokePrim read-fn idx))
+  (readDoubles [this sidx dst off len]
+    (dotimes [idx len]
+      (aset dst (+ off idx) (.invokePrim read-fn (+ sidx idx)))))
   (subBuffer [this sidx eidx]
     (emap-reader map-fn (hamf-proto/returned-datatype map-fn) reader-dtype cast-fn
                  (mapv #(dtype-proto/sub-buffer % sidx (- eidx sidx)) readers)
@@ -216,3 +226,52 @@
          (cond-> (emap-reader map-fn output-space res-dtype cast-fn args arg-input-types)
            (input-types :tensor)
            (dtype-base/reshape (first shapes))))))))
+
+
+(defonce ^:private ^ConcurrentHashMap fused-constructors (ConcurrentHashMap.))
+
+
+(def ^:private fusion-fns*
+  (delay
+    (graal-native/when-not-defined-graal-native
+     (try
+       {:expression (requiring-resolve 'tech.v3.datatype.emap-insn/expression)
+        :generate-constructor (requiring-resolve 'tech.v3.datatype.emap-insn/generate-constructor)}
+       (catch Throwable e
+         (log/warn e "insn unavailable - elementwise expressions will not be fused")
+         nil)))))
+
+
+(defn- absent-expression-fn
+  [generate-constructor]
+  (reify Function
+    (apply [this signature]
+      (try
+        (generate-constructor signature)
+        (catch Throwable e
+          (log/warnf e "Expression fusion failed for signature %s" signature)
+          (constantly nil))))))
+
+
+(defn fuse
+  "Compile a tree of :int64 or :float64 elementwise operations, such as the result of
+  `(dfn/+ (dfn/* a b) (dfn/sqrt c))`, into a single reader.  One class is generated per
+  expression signature - the shape of the tree, its operations and the kind of each
+  leaf - and cached so fusing the same expression over new data only pays for
+  construction.  Builtin arithmetic is inlined and dense array leaves are read directly.
+
+  Only the op readers produced by the builtin elementwise functions take part in
+  fusion.  Readers from `emap` over arbitrary Clojure functions are treated as opaque
+  leaves - they are read through their own call site but their map function is not
+  inlined - and an `emap` reader at the root is returned unchanged, as is anything
+  else that is not a fusable expression."
+  [rdr]
+  (if-let [{:keys [expression generate-constructor]} @fusion-fns*]
+    (if-let [expr (expression rdr)]
+      (let [signature (:signature expr)
+            constructor (or (.get fused-constructors signature)
+                            (.computeIfAbsent fused-constructors signature
+                                              (absent-expression-fn generate-constructor)))]
+        (or (constructor expr) rdr))
+      rdr)
+    rdr))
@@ -0,0 +1,238 @@
+(ns tech.v3.datatype.emap-insn
+  "Compile trees of elementwise op readers into a single reader class.  Chained
+  arithmetic such as `(dfn/+ (dfn/* a b) (dfn/sqrt c))` produces nested op readers
+  whose read calls are megamorphic once more than a few expression shapes are in use.
+  The generated class has its own call site for every operation and leaf so the JIT
+  can inline each of them and builtin arithmetic is emitted as bytecode directly."
+  (:require [tech.v3.datatype.base :as dtype-base]
+            [tech.v3.datatype.protocols :as dtype-proto]
+            [tech.v3.datatype.binary-op :as binary-op]
+            [tech.v3.datatype.unary-op :as unary-op]
+            [tech.v3.datatype.array-buffer]
+            [insn.core :as insn])
+  (:import [java.util List ArrayList]
+           [java.util.concurrent.atomic AtomicLong]
+           [java.lang.reflect Constructor]
+           [tech.v3.datatype Buffer DoubleReader LongReader BinaryOperator UnaryOperator]
+           [tech.v3.datatype.array_buffer ArrayBuffer]))
+
+
+(set! *warn-on-reflection* true)
+
+
+(def ^:private binary-instructions
+  {:float64 {(binary-op/builtin-ops :tech.numerics/+) :dadd
+             (binary-op/builtin-ops :tech.numerics/-) :dsub
+             (binary-op/builtin-ops :tech.numerics/*) :dmul
+             (binary-op/builtin-ops :tech.numerics//) :ddiv}
+   :int64 {(binary-op/builtin-ops :tech.numerics/+) :ladd
+           (binary-op/builtin-ops :tech.numerics/-) :lsub
+           (binary-op/builtin-ops :tech.numerics/*) :lmul}})
+
+
+(def ^:private unary-math-methods
+  {:float64 (->> {:exp "exp" :expm1 "expm1" :log "log" :log10 "log10" :log1p "log1p"
+                  :signum "signum" :sqrt "sqrt" :cbrt "cbrt" :abs "abs" :sin "sin"
+                  :sinh "sinh" :cos "cos" :cosh "cosh" :tan "tan" :tanh "tanh"
+                  :acos "acos" :asin "asin" :atan "atan"}
+                 (map (fn [[op-name method]]
+                        [(unary-op/builtin-ops (keyword "tech.numerics" (name op-name)))
+                         method]))
+                 (into {}))})
+
+
+(defn- fusable-expression
+  "Expression data of rdr when it is an op reader working entirely in space."
+  [rdr space]
+  (when-let [{:keys [input-space output-space] :as expr} (dtype-proto/elemwise-expression rdr)]
+    (when (and (identical? input-space output-space)
+               (identical? output-space space))
+      expr)))
+
+
+(defn- leaf-array-buffer
+  ^ArrayBuffer [rdr space]
+  (when-let [ary-buf (dtype-base/as-array-buffer rdr)]
+    (when (identical? space (dtype-base/elemwise-datatype ary-buf))
+      ary-buf)))
+
+
+(defn- expression-signature!
+  "Walk the op reader tree rooted at rdr returning its signature and appending the
+  values of the fields the signature requires to field-values in field order."
+  [rdr space ^List field-values]
+  (if-let [{:keys [op args]} (fusable-expression rdr space)]
+    (let [binary? (== 2 (count args))
+          inline (get (get (if binary? binary-instructions unary-math-methods) space) op)]
+      (when-not inline
+        (.add field-values op))
+      (into [(if binary? :binary :unary) space (or inline :call)]
+            (map #(expression-signature! % space field-values))
+            args))
+    (if-let [^ArrayBuffer ary-buf (leaf-array-buffer rdr space)]
+      (do
+        (.add field-values (.ary-data ary-buf))
+        (.add field-values (.offset ary-buf))
+        [:array space])
+      (do
+        (.add field-values rdr)
+        [:buffer space]))))
+
+
+(defn expression
+  "If rdr is a tree of :int64 or :float64 op readers return a map of the expression
+  :signature, the :field-values to construct its class with, :n-elems and :datatype.
+  Else nil."
+  [rdr]
+  (when-let [{:keys [input-space output-space]} (dtype-proto/elemwise-expression rdr)]
+    (when (and (identical? input-space output-space)
+               (#{:int64 :float64} output-space))
+      (let [field-values (ArrayList.)]
+        {:signature (expression-signature! rdr output-space field-values)
+         :field-values (.toArray field-values)
+         :n-elems (.lsize ^Buffer rdr)
+         :datatype (dtype-base/elemwise-datatype rdr)}))))
+
+
+(def ^:private double-array-class (Class/forName "[D"))
+(def ^:private long-array-class (Class/forName "[J"))
+
+
+(defn- emit-node!
+  [node ^List fields ^List instructions]
+  (let [[node-type space inline & children] node
+        double? (identical? space :float64)
+        add-field! (fn [ftype]
+                     (let [fname (str "f" (.size fields))]
+                       (.add fields {:flags #{:public :final}
+                                     :name fname
+                                     :type ftype})
+                       fname))
+        load-field! (fn [fname ftype]
+                      (.add instructions [:aload 0])
+                      (.add instructions [:getfield :this fname ftype]))
+        emit-children! #(doseq [child children]
+                          (emit-node! child fields instructions))]
+    (case node-type
+      :binary
+      (if (identical? inline :call)
+        (do
+          (load-field! (add-field! BinaryOperator) BinaryOperator)
+          (emit-children!)
+          (.add instructions (if double?
+                               [:invokeinterface BinaryOperator "binaryDouble"
+                                [:double :double :double]]
+                               [:invokeinterface BinaryOperator "binaryLong"
+                                [:long :long :long]])))
+        (do
+          (emit-children!)
+          (.add instructions [inline])))
+      :unary
+      (if (identical? inline :call)
+        (do
+          (load-field! (add-field! UnaryOperator) UnaryOperator)
+          (emit-children!)
+          (.add instructions (if double?
+                               [:invokeinterface UnaryOperator "unaryDouble" [:double :double]]
+                               [:invokeinterface UnaryOperator "unaryLong" [:long :long]])))
+        (do
+          (emit-children!)
+          (.add instructions [:invokestatic Math inline [:double :double]])))
+      :array
+      (let [ary-type (if double? double-array-class long-array-class)
+            ary-name (add-field! ary-type)
+            off-name (add-field! :long)]
+        (load-field! ary-name ary-type)
+        (.add instructions [:lload 1])
+        (load-field! off-name :long)
+        (.add instructions [:ladd])
+        (.add instructions [:l2i])
+        (.add instructions [(if double? :daload :laload)]))
+      :buffer
+      (do
+        (load-field! (add-field! Buffer) Buffer)
+        (.add instructions [:lload 1])
+        (.add instructions (if double?
+                             [:invokeinterface Buffer "readDouble" [:long :double]]
+                             [:invokeinterface Buffer "readLong" [:long :long]]))))))
+
+
+(defn- load-constructor-arg
+  [field-idx {:keys [name type]}]
+  (concat [[:aload 0]
+           [:aload 1]
+           [:ldc (int field-idx)]
+           [:aaload]]
+          (if (identical? type :long)
+            [[:checkcast Long]
+             [:invokevirtual Long "longValue" [:long]]]
+            [[:checkcast type]])
+          [[:putfield :this name type]]))
+
+
+(defonce ^:private class-counter (AtomicLong.))
+
+
+(defn gen-expression-class-def
+  [signature]
+  (let [double? (identical? :float64 (second signature))
+        fields (ArrayList.)
+        read-instructions (ArrayList.)]
+    (emit-node! signature fields read-instructions)
+    {:name (symbol (format "tech.v3.datatype.FusedExpr%d" (.incrementAndGet ^AtomicLong class-counter)))
+     :interfaces [(if double? DoubleReader LongReader)]
+     :fields (conj (vec fields)
+                   {:flags #{:public :final}
+                    :name "nElems"
+                    :type :long}
+                   {:flags #{:public :final}
+                    :name "datatype"
+                    :type Object})
+     :methods [{:flags #{:public}
+                :name :init
+                :desc [(Class/forName "[Ljava.lang.Object;") :long Object :void]
+                :emit (vec (concat [[:aload 0]
+                                    [:invokespecial :super :init [:void]]]
+                                   (mapcat load-constructor-arg (range) fields)
+                                   [[:aload 0]
+                                    [:lload 2]
+                                    [:putfield :this "nElems" :long]
+                                    [:aload 0]
+                                    [:aload 4]
+                                    [:putfield :this "datatype" Object]
+                                    [:return]]))}
+               {:flags #{:public}
+                :name "lsize"
+                :desc [:long]
+                :emit [[:aload 0]
+                       [:getfield :this "nElems" :long]
+                       [:lreturn]]}
+               {:flags #{:public}
+                :name "elemwiseDatatype"
+                :desc [Object]
+                :emit [[:aload 0]
+                       [:getfield :this "datatype" Object]
+                       [:areturn]]}
+               {:flags #{:public}
+                :name (if double? "readDouble" "readLong")
+                :desc (if double? [:long :double] [:long :long])
+                :emit (conj (vec read-instructions)
+                            [(if double? :dreturn :lreturn)])}]}))
+
+
+(defn generate-constructor
+  "Given an expression signature return a function that, given the result of
+  `expression` for a reader with that signature, returns the fused reader."
+  [signature]
+  (let [class-def (gen-expression-class-def signature)]
+    (try
+      (let [^Class class-obj (insn/define class-def)
+            ^Constructor first-constructor (first (.getDeclaredConstructors class-obj))]
+        (fn [{:keys [field-values n-elems datatype]}]
+          (.newInstance first-constructor
+                        (object-array [field-values (long n-elems) datatype]))))
+      (catch Throwable e
+        (throw (ex-info (format "Error generating fused expression: %s" e)
+                        {:error e
+                         :class-def class-def
+                         :signature signature}))))))
@@ -219,6 +219,23 @@
   (tech.v3.datatype.functional-api/ceil x)))
 
 
+(defn correlation-matrix
+  "Correlation matrix of a sequence of equal length columns.  Returns a vector of
+  rows, each a reader of doubles, matching the pairwise correlation functions.
+
+  Options:
+  * `:correlation-type` - one of `:pearson` (default), `:spearman` or `:kendall`.
+     Pearson and Spearman are computed from one blocked, parallel covariance pass;
+     Spearman ranks each column once beforehand.  Kendall is computed pairwise in
+     parallel from columns copied once.
+
+  Remaining options are passed to the conversion of each column to a double array."
+  ([columns options]
+  (tech.v3.datatype.statistics/correlation-matrix columns options))
+  ([columns]
+  (tech.v3.datatype.statistics/correlation-matrix columns)))
+
+
 (defn cos
   ([x options]
   (tech.v3.datatype.functional-api/cos x options))
@@ -233,6 +250,18 @@
   (tech.v3.datatype.functional-api/cosh x)))
 
 
+(defn covariance-matrix
+  "Sample covariance matrix of a sequence of equal length columns.  Each column is
+  copied and centered once and all cross products are accumulated in one blocked,
+  parallel pass.  Returns a vector of rows, each a reader of doubles.
+
+  Options are passed to the conversion of each column to a double array."
+  ([columns options]
+  (tech.v3.datatype.statistics/covariance-matrix columns options))
+  ([columns]
+  (tech.v3.datatype.statistics/covariance-matrix columns)))
+
+
 (defn cummax
   "Cumulative running max; returns result in double space.
 
@@ -292,7 +321,10 @@
     - `:nan-strategy` - defaults to :remove, one of
     [:keep :remove :exception]. The fastest option is :keep but this
     may result in your results having NaN's in them.  You can also pass
-  in a double predicate to filter custom double values."
+  in a double predicate to filter custom double values.
+    - `:approximate?` - compute :median, :quartile-1 and :quartile-3 from a
+    [[quantile-sketch]] instead of copying and sorting the data.  `:compression`
+    is passed to the sketch."
   ([x stats-names stats-data options]
   (tech.v3.datatype.statistics/descriptive-statistics x stats-names stats-data options))
   ([x stats-names options]
@@ -390,6 +422,24 @@
   off the edge are zero for numeric types or nil for object types or `:clamp` - in
   which case window values off the edge of the data are bound to the first or last
   values respectively.
+  * `:nan-strategy` - Defaults to `:remove` - when window-fn is computed incrementally
+  one of `:remove`, `:keep` or `:exception`.
+  * `:parallel?` - Defaults to true - when window-fn is computed incrementally split
+  the windows into chunks reduced concurrently once there are at least
+  `@tech.v3.datatype.rolling/parallel-rolling-min-elems*` of them.
+
+  window-fn may also be one of `:sum`, `:mean`, `:variance`, `:standard-deviation`,
+  `:min`, `:max`, `:median` or a percentile map such as `{:percentile 95}`.  These are
+  computed eagerly into a float64 buffer by updating the reduction as values enter and
+  leave the window - O(n) time for all but the percentiles which take O(n log w).
+  `dfn/sum`, `dfn/mean`, `dfn/variance`, `dfn/standard-deviation`, `dfn/median`, their
+  `tech.v3.datatype.statistics` equivalents and `stats/min` and `stats/max` are
+  recognized and computed the same way, equal to within floating point rounding.
+  Only these exact functions are recognized - wrapping one in another fn disables it.
+  NaN values are removed from the windows as `dfn/sum` and friends do unless
+  `:nan-strategy` is `:keep` or `:exception`.  See
+  [[tech.v3.datatype.rolling/reduce-window-ranges]].
+  Results of other window-fns are lazy; `dtype/clone` materializes them in parallel.
 
 
   Example (all results are same length):
@@ -407,6 +457,8 @@ user> (rolling/fixed-rolling-window (range 20) 5 dfn/sum {:relative-window-posit
 [3 6 10 15 20 25 30 35 40 45 50 55 60 65 70 75 80 85 89 92]
 user> (rolling/fixed-rolling-window (range 20) 5 dfn/sum {:relative-window-position :right})
 [10 15 20 25 30 35 40 45 50 55 60 65 70 75 80 85 89 92 94 95]
+user> (rolling/fixed-rolling-window (range 20) 5 :max {:relative-window-position :left})
+[0.0 1.0 2.0 3.0 4.0 5.0 6.0 7.0 8.0 9.0 10.0 11.0 12.0 13.0 14.0 15.0 16.0 17.0 18.0 19.0]
 user>
 ```"
   ([x window-size window-fn options]
@@ -422,6 +474,22 @@ user>
   (tech.v3.datatype.functional-api/floor x)))
 
 
+(defn fuse
+  "Compile a tree of :int64 or :float64 elementwise operations, such as the result of
+  `(dfn/+ (dfn/* a b) (dfn/sqrt c))`, into a single reader.  One class is generated per
+  expression signature - the shape of the tree, its operations and the kind of each
+  leaf - and cached so fusing the same expression over new data only pays for
+  construction.  Builtin arithmetic is inlined and dense array leaves are read directly.
+
+  Only the op readers produced by the builtin elementwise functions take part in
+  fusion.  Readers from `emap` over arbitrary Clojure functions are treated as opaque
+  leaves - they are read through their own call site but their map function is not
+  inlined - and an `emap` reader at the root is returned unchanged, as is anything
+  else that is not a fusable expression."
+  ([rdr]
+  (tech.v3.datatype.emap/fuse rdr)))
+
+
 (defn get-significand
   ([x options]
   (tech.v3.datatype.functional-api/get-significand x options))
@@ -663,7 +731,11 @@ tech.v3.datatype.functional> (meta regressor)
   Estimation types are in the set of #{:r1,r2...legacy} and are described
   here: https://commons.apache.org/proper/commons-math/javadocs/api-3.3/index.html.
 
-  nan-strategy can be one of [:keep :remove :exception] and defaults to :exception."
+  nan-strategy can be one of [:keep :remove :exception] and defaults to :exception.
+
+  When `:approximate?` is true the percentiles are estimated from a [[quantile-sketch]]
+  built in one parallel pass without copying the data and the estimation type is
+  ignored."
   (^{:tag tech.v3.datatype.Buffer} [x percentages options]
   (tech.v3.datatype.statistics/percentiles x percentages options))
   (^{:tag tech.v3.datatype.Buffer} [x percentages]
@@ -684,6 +756,23 @@ tech.v3.datatype.functional> (meta regressor)
   (apply tech.v3.datatype.functional-api/pow x y args)))
 
 
+(defn quantile-sketch
+  "Build a mergeable t-digest sketch of x in a single parallel pass.  Works on any
+  reader including native and lazy ones as the data is never copied.  Query the
+  sketch with [[sketch-percentiles]], combine sketches of separate datasets with
+  [[merge-sketches]] and store them with [[sketch->bytes]].
+
+  Options:
+  * `:compression` - accuracy/size tradeoff, defaults to 100.  Larger values keep more
+     centroids and produce more accurate quantiles especially near the median.
+  * `:nan-strategy` - defaults to :remove, one of [:keep :remove :exception].  NaN
+     values are never added to the sketch."
+  (^{:tag tech.v3.datatype.TDigest} [x options]
+  (tech.v3.datatype.statistics/quantile-sketch x options))
+  (^{:tag tech.v3.datatype.TDigest} [x]
+  (tech.v3.datatype.statistics/quantile-sketch x)))
+
+
 (defn quartile-1
   (^{:tag double} [x options]
   (tech.v3.datatype.statistics/quartile-1 x options))
@@ -2,12 +2,18 @@
   "Vectorized operations.  Requires JDK-16 with the vector incubator module added:
   :jvm-opts [\"--add-modules\" \"jdk.incubator.vector\"]"
   (:require [tech.v3.datatype.base :as dt-base]
+            [tech.v3.datatype.protocols :as dtype-proto]
+            [tech.v3.datatype.casting :as casting]
             [tech.v3.datatype.array-buffer]
+            [tech.v3.datatype.native-buffer]
             [tech.v3.datatype.functional.opt :as fn-opt]
             [tech.v3.parallel.for :as pfor])
-  (:import [tech.v3.datatype VecOps]
+  (:import [tech.v3.datatype VecOps Buffer]
            [tech.v3.datatype.array_buffer ArrayBuffer]
-           [java.util.concurrent ForkJoinPool]))
+           [tech.v3.datatype.native_buffer NativeBuffer]
+           [java.util Arrays]
+           [java.util.concurrent ForkJoinPool]
+           [org.roaringbitmap RoaringBitmap]))
 
 
 (set! *warn-on-reflection* true)
@@ -84,6 +90,361 @@ flood the math units."} vecop-pool*
       (fn-opt/distance-squared lhs rhs))))
 
 
+(def ^:private vecop-datatypes #{:float64 :float32 :int64 :int32})
+
+
+(defn as-dense-array-buffer
+  "Array buffer of data if it is non-empty and backed by a float64, float32, int64 or
+  int32 array."
+  ^ArrayBuffer [data]
+  (when-let [ary-buf (dt-base/as-array-buffer data)]
+    (when (and (pos? (.n-elems ary-buf))
+               (vecop-datatypes (.elemwise-datatype ary-buf)))
+      ary-buf)))
+
+
+(defn as-dense-native-buffer
+  "Native buffer of data if it is non-empty and its datatype is float64, float32,
+  int64 or int32.  This includes mmapped files."
+  ^NativeBuffer [data]
+  (when-let [^NativeBuffer nbuf (dt-base/as-native-buffer data)]
+    (when (and (pos? (.-n-elems nbuf))
+               (vecop-datatypes (.-datatype nbuf)))
+      nbuf)))
+
+
+(defn parallelized-vecop
+  [n-elems op-fn reduce-fn]
+  (pfor/indexed-map-reduce
+   n-elems
+   op-fn
+   (partial reduce reduce-fn)
+   {:fork-join-pool @vecop-pool*}))
+
+
+(def ^{:private true
+       :doc "Number of elements of native memory staged into a java array per kernel
+invocation.  Small enough to stay resident in L1/L2 between the copy and the kernel."}
+  native-block-size 2048)
+
+
+(def ^:private staging-fns
+  {:float64 {:alloc #(double-array %)
+             :read #(.readDoubles ^Buffer %1 (long %2) ^doubles %3 0 (int %4))}
+   :float32 {:alloc #(float-array %)
+             :read #(.readFloats ^Buffer %1 (long %2) ^floats %3 0 (int %4))}
+   :int64 {:alloc #(long-array %)
+           :read #(.readLongs ^Buffer %1 (long %2) ^longs %3 0 (int %4))}
+   :int32 {:alloc #(int-array %)
+           :read #(.readInts ^Buffer %1 (long %2) ^ints %3 0 (int %4))}})
+
+
+(defn- array-reduction
+  [^ArrayBuffer ary-buf kernels reduce-fn]
+  (let [kernel (get kernels (.elemwise-datatype ary-buf))
+        ary (.ary-data ary-buf)
+        off (.offset ary-buf)]
+    (parallelized-vecop (.n-elems ary-buf)
+                        #(kernel ary (+ off (long %1)) %2)
+                        reduce-fn)))
+
+
+(defn- native-reduction
+  "Native memory is bulk copied block by block into a per-task java array (swapping
+  bytes if the buffer is not platform-endian) and the array kernel runs over each
+  block."
+  [^NativeBuffer nbuf kernels reduce-fn]
+  (let [dtype (.-datatype nbuf)
+        kernel (get kernels dtype)
+        {alloc-fn :alloc read-fn :read} (get staging-fns dtype)
+        rdr (dt-base/->reader nbuf)]
+    (parallelized-vecop
+     (.-n-elems nbuf)
+     (fn [sidx glen]
+       (let [sidx (long sidx)
+             glen (long glen)
+             ary (alloc-fn (min glen (long native-block-size)))]
+         (loop [idx 0
+                acc nil]
+           (if (< idx glen)
+             (let [n-block (min (long native-block-size) (- glen idx))
+                   _ (read-fn rdr (+ sidx idx) ary n-block)
+                   rv (kernel ary 0 n-block)]
+               (recur (+ idx n-block) (if (nil? acc) rv (reduce-fn acc rv))))
+             acc))))
+     reduce-fn)))
+
+
+(defn- dense-reduce
+  "Run a typed VecOps kernel over dense array or native data.  Returns nil if data is
+  neither."
+  [data kernels reduce-fn]
+  (if-let [ary-buf (as-dense-array-buffer data)]
+    (array-reduction ary-buf kernels reduce-fn)
+    (when-let [nbuf (as-dense-native-buffer data)]
+      (native-reduction nbuf kernels reduce-fn))))
+
+
+(def ^:private sum-kernels
+  {:float64 #(VecOps/nanSum ^doubles %1 (int %2) (int %3))
+   :float32 #(VecOps/nanSum ^floats %1 (int %2) (int %3))
+   :int64 #(VecOps/sum ^longs %1 (int %2) (int %3))
+   :int32 #(VecOps/sum ^ints %1 (int %2) (int %3))})
+
+
+(def ^:private min-kernels
+  {:float64 #(VecOps/nanMin ^doubles %1 (int %2) (int %3))
+   :float32 #(double (VecOps/nanMin ^floats %1 (int %2) (int %3)))
+   :int64 #(VecOps/min ^longs %1 (int %2) (int %3))
+   :int32 #(long (VecOps/min ^ints %1 (int %2) (int %3)))})
+
+
+(def ^:private max-kernels
+  {:float64 #(VecOps/nanMax ^doubles %1 (int %2) (int %3))
+   :float32 #(double (VecOps/nanMax ^floats %1 (int %2) (int %3)))
+   :int64 #(VecOps/max ^longs %1 (int %2) (int %3))
+   :int32 #(long (VecOps/max ^ints %1 (int %2) (int %3)))})
+
+
+(def ^:private count-nonzero-kernels
+  {:float64 #(VecOps/countNonZero ^doubles %1 (int %2) (int %3))
+   :float32 #(VecOps/countNonZero ^floats %1 (int %2) (int %3))
+   :int64 #(VecOps/countNonZero ^longs %1 (int %2) (int %3))
+   :int32 #(VecOps/countNonZero ^ints %1 (int %2) (int %3))})
+
+
+(defn reduce-sum
+  "Vectorized sum of dense array or native data.  Float data is summed in double space
+  with NaN values removed using Kahan compensated summation and int data is summed in
+  long space.  Returns nil if data is not dense."
+  [data]
+  (dense-reduce data sum-kernels +))
+
+
+(defn reduce-min
+  "Vectorized minimum of dense array or native data ignoring NaN values.  Returns nil if
+  data is not dense or if float data has no non-NaN values less than positive
+  infinity."
+  [data]
+  (let [rv (dense-reduce data min-kernels min)]
+    (when-not (and (double? rv) (== (double rv) Double/POSITIVE_INFINITY))
+      rv)))
+
+
+(defn reduce-max
+  "Vectorized maximum of dense array or native data ignoring NaN values.  Returns nil if
+  data is not dense or if float data has no non-NaN values greater than negative
+  infinity."
+  [data]
+  (let [rv (dense-reduce data max-kernels max)]
+    (when-not (and (double? rv) (== (double rv) Double/NEGATIVE_INFINITY))
+      rv)))
+
+
+(defn count-nonzero
+  "Vectorized count of the non-zero values of dense array or native data.  Returns nil
+  if data is not dense."
+  [data]
+  (dense-reduce data count-nonzero-kernels +))
+
+
+(defn typed-dot-product
+  "Vectorized dot product of two dense array buffers of the same datatype.  Float data
+  is accumulated in double space and int data in long space.  Returns nil if the
+  arguments are not dense array buffers of the same datatype."
+  [lhs rhs]
+  (let [lhs-buf (as-dense-array-buffer lhs)
+        rhs-buf (as-dense-array-buffer rhs)]
+    (when (and lhs-buf rhs-buf
+               (identical? (.elemwise-datatype lhs-buf) (.elemwise-datatype rhs-buf)))
+      (fn-opt/ensure-equal-len lhs rhs)
+      (let [loff (.offset lhs-buf)
+            lary (.ary-data lhs-buf)
+            roff (.offset rhs-buf)
+            rary (.ary-data rhs-buf)]
+        (parallelized-vecop
+         (.n-elems lhs-buf)
+         (case (.elemwise-datatype lhs-buf)
+           :float64 #(VecOps/dot ^doubles lary (+ loff (int %1))
+                                 ^doubles rary (+ roff (int %1)) (int %2))
+           :float32 #(VecOps/dot ^floats lary (+ loff (int %1))
+                                 ^floats rary (+ roff (int %1)) (int %2))
+           :int64 #(VecOps/dot ^longs lary (+ loff (int %1))
+                               ^longs rary (+ roff (int %1)) (int %2))
+           :int32 #(VecOps/dot ^ints lary (+ loff (int %1))
+                               ^ints rary (+ roff (int %1)) (int %2)))
+         +)))))
+
+
+(defn reductions
+  "Vectorized reductions of dense array and native data.  Each returns nil when the
+  vectorized path does not apply."
+  []
+  {:sum reduce-sum
+   :min reduce-min
+   :max reduce-max
+   :count-nonzero count-nonzero
+   :dot-product typed-dot-product})
+
+
+(def ^:private binary-op-codes
+  {:tech.numerics/+ VecOps/ADD
+   :tech.numerics/- VecOps/SUB
+   :tech.numerics/* VecOps/MUL
+   :tech.numerics// VecOps/DIV
+   :tech.numerics/min VecOps/MIN
+   :tech.numerics/max VecOps/MAX})
+
+
+(defn binary-kernels
+  "Map of operation space to map of builtin binary op name to an elementwise kernel
+  (fn [lhs loff rhs roff dst doff len]) over double or long arrays.  Long division
+  stays on the scalar path."
+  []
+  {:float64 (->> binary-op-codes
+                 (map (fn [[op-name code]]
+                        (let [code (int code)]
+                          [op-name #(VecOps/binaryOp code ^doubles %1 (int %2) ^doubles %3 (int %4)
+                                                     ^doubles %5 (int %6) (int %7))])))
+                 (into {}))
+   :int64 (->> (dissoc binary-op-codes :tech.numerics//)
+               (map (fn [[op-name code]]
+                      (let [code (int code)]
+                        [op-name #(VecOps/binaryOp code ^longs %1 (int %2) ^longs %3 (int %4)
+                                                   ^longs %5 (int %6) (int %7))])))
+               (into {}))})
+
+
+(def ^:private compare-op-codes
+  {:tech.numerics/> VecOps/GT
+   :tech.numerics/>= VecOps/GE
+   :tech.numerics/< VecOps/LT
+   :tech.numerics/<= VecOps/LE
+   :tech.numerics/eq VecOps/EQ})
+
+
+(def ^:private flipped-compare-ops
+  {:tech.numerics/> :tech.numerics/<
+   :tech.numerics/>= :tech.numerics/<=
+   :tech.numerics/< :tech.numerics/>
+   :tech.numerics/<= :tech.numerics/>=
+   :tech.numerics/eq :tech.numerics/eq})
+
+
+(defn- constant-value
+  "Value of a constant reader such as a broadcast scalar, else nil."
+  [data]
+  (when (dtype-proto/has-constant-time-min-max? data)
+    (let [min-val (dtype-proto/constant-time-min data)]
+      (when (= min-val (dtype-proto/constant-time-max data))
+        min-val))))
+
+
+(defn- block-source
+  "Returns a fn that creates per-task block readers of data in op-space or nil if data
+  is not dense.  A block reader is a fn of [sidx len] that returns [ary off] where ary
+  holds len elements of data starting at sidx.  Arrays of the op space are read in
+  place and other dense data is staged through a per-task scratch block."
+  [data op-space]
+  (let [ary-buf (as-dense-array-buffer data)]
+    (if (and ary-buf (identical? (.elemwise-datatype ary-buf) op-space))
+      (let [ary (.ary-data ary-buf)
+            off (.offset ary-buf)]
+        (constantly (fn [sidx _len] [ary (+ off (long sidx))])))
+      (when (or ary-buf (as-dense-native-buffer data))
+        (let [rdr (dt-base/->reader data op-space)
+              {alloc-fn :alloc read-fn :read} (get staging-fns op-space)]
+          (fn []
+            (let [scratch (alloc-fn native-block-size)]
+              (fn [sidx len]
+                (read-fn rdr sidx scratch len)
+                [scratch 0]))))))))
+
+
+(defn- concat-indexes
+  ^ints [results]
+  (let [rv (int-array (reduce + 0 (map #(alength ^ints %) results)))]
+    (reduce (fn [^long off ^ints indexes]
+              (System/arraycopy indexes 0 rv off (alength indexes))
+              (+ off (alength indexes)))
+            0 results)
+    rv))
+
+
+(defn- ->index-storage
+  [^ints indexes storage-type]
+  (case storage-type
+    :bitmap (RoaringBitmap/bitmapOf indexes)
+    :int64 (let [n-elems (alength indexes)
+                 rv (long-array n-elems)]
+             (dotimes [idx n-elems]
+               (aset rv idx (aget indexes idx)))
+             (dt-base/->reader rv))
+    (dt-base/->reader indexes)))
+
+
+(defn compare-indexes
+  "Indexes where the builtin comparison op-name (> >= < <= or eq) holds between lhs and
+  rhs using vectorized compare-and-compress kernels.  Either side may be a constant
+  reader.  Returns a bitmap, int64 reader or int32 reader depending on storage-type or
+  nil if the data is not dense numeric data."
+  [op-name lhs rhs storage-type]
+  (let [[op-name lhs rhs] (if (and (constant-value lhs) (not (constant-value rhs)))
+                            [(flipped-compare-ops op-name) rhs lhs]
+                            [op-name lhs rhs])
+        code (get compare-op-codes op-name)
+        n-elems (dt-base/ecount lhs)
+        op-space (casting/simple-operation-space (dt-base/elemwise-datatype lhs)
+                                                 (dt-base/elemwise-datatype rhs))
+        scalar (constant-value rhs)
+        lhs-src (when (and code
+                           (pos? n-elems)
+                           (< n-elems Integer/MAX_VALUE)
+                           (#{:float64 :int64} op-space))
+                  (block-source lhs op-space))
+        rhs-src (when (and lhs-src (nil? scalar))
+                  (block-source rhs op-space))]
+    (when (and lhs-src (or scalar rhs-src))
+      (let [code (int code)
+            dscalar (if scalar (double scalar) 0.0)
+            lscalar (if scalar (long scalar) 0)]
+        (-> (pfor/indexed-map-reduce
+             n-elems
+             (fn [sidx glen]
+               (let [sidx (long sidx)
+                     glen (long glen)
+                     lhs-block (lhs-src)
+                     rhs-block (when rhs-src (rhs-src))
+                     dst (int-array glen)]
+                 (loop [idx 0
+                        cnt 0]
+                   (if (< idx glen)
+                     (let [n-block (min (long native-block-size) (- glen idx))
+                           [lary loff] (lhs-block (+ sidx idx) n-block)
+                           [rary roff] (when rhs-block (rhs-block (+ sidx idx) n-block))
+                           n-found
+                           (if (identical? op-space :float64)
+                             (if rhs-block
+                               (VecOps/compareIndexes code ^doubles lary (int loff)
+                                                      ^doubles rary (int roff) (int n-block)
+                                                      dst (int cnt) (int (+ sidx idx)))
+                               (VecOps/compareIndexes code ^doubles lary (int loff) dscalar
+                                                      (int n-block)
+                                                      dst (int cnt) (int (+ sidx idx))))
+                             (if rhs-block
+                               (VecOps/compareIndexes code ^longs lary (int loff)
+                                                      ^longs rary (int roff) (int n-block)
+                                                      dst (int cnt) (int (+ sidx idx)))
+                               (VecOps/compareIndexes code ^longs lary (int loff) lscalar
+                                                      (int n-block)
+                                                      dst (int cnt) (int (+ sidx idx)))))]
+                       (recur (+ idx n-block) (+ cnt n-found)))
+                     (Arrays/copyOf dst (int cnt))))))
+             concat-indexes
+             {:fork-join-pool @vecop-pool*})
+            (->index-storage storage-type))))))
+
+
 (defn optimized-operations
   []
   {:sum sum
@@ -169,8 +169,10 @@
   ```"
   [x]
   ;;There is a fast path specifically for summations
-  (dtype-reductions/commutative-binary-reduce
-   (:tech.numerics/+ binary-op/builtin-ops) x))
+  (clojure.core/or
+   (dtype-reductions/vectorized-reduce :sum x)
+   (dtype-reductions/commutative-binary-reduce
+    (:tech.numerics/+ binary-op/builtin-ops) x)))
 
 
 (defn reduce-*
@@ -201,8 +203,10 @@
   100
   ```"
   [x]
-  (dtype-reductions/commutative-binary-reduce
-   (:tech.numerics/max binary-op/builtin-ops) x))
+  (clojure.core/or
+   (dtype-reductions/vectorized-reduce :max x)
+   (dtype-reductions/commutative-binary-reduce
+    (:tech.numerics/max binary-op/builtin-ops) x)))
 
 
 (defn reduce-min
@@ -217,8 +221,10 @@
   -10
   ```"
   [x]
-  (dtype-reductions/commutative-binary-reduce
-   (:tech.numerics/min binary-op/builtin-ops) x))
+  (clojure.core/or
+   (dtype-reductions/vectorized-reduce :min x)
+   (dtype-reductions/commutative-binary-reduce
+    (:tech.numerics/min binary-op/builtin-ops) x)))
 
 
 (defn- vm-major-version
@@ -404,15 +410,22 @@
                 pearsons-correlation
                 spearmans-correlation
                 kendalls-correlation
+                correlation-matrix
+                covariance-matrix
                 percentiles
                 quartiles
-                quartile-outlier-fn)
+                quartile-outlier-fn
+                quantile-sketch)
 
 
 (export-symbols tech.v3.datatype.rolling
                 fixed-rolling-window)
 
 
+(export-symbols tech.v3.datatype.emap
+                fuse)
+
+
 (defn fill-range
   "Given a reader of numeric data and a max span amount, produce
   a new reader where the difference between any two consecutive elements
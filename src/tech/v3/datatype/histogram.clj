@@ -0,0 +1,228 @@
+(ns tech.v3.datatype.histogram
+  "Histograms and binning of numeric data.
+
+  Bins are described by a sorted double array of n-bins + 1 edges.  Bin i covers
+  `[edges[i], edges[i+1])` and the last bin also includes its upper edge.  Values
+  outside of the edges and NaN values fall in no bin.
+
+  Edges are built with [[bin-edges]] as fixed width bins over the data's range, as
+  quantile bins holding roughly equal numbers of values, or are passed in explicitly
+  via `:edges`.  Counting runs in parallel with each task counting into its own bins
+  which are summed once all tasks complete.
+
+```clojure
+user> (require '[tech.v3.datatype.histogram :as hist])
+nil
+user> (vec (:counts (hist/histogram [1 2 2 3 3 3 4 4 4 4] {:n-bins 4})))
+[1 2 3 4]
+user> (vec (:edges (hist/histogram [1 2 2 3 3 3 4 4 4 4] {:n-bins 4})))
+[1.0 1.75 2.5 3.25 4.0]
+```"
+  (:require [tech.v3.datatype.base :as dt-base]
+            [tech.v3.datatype.array-buffer :as abuf]
+            [tech.v3.datatype.statistics :as stats]
+            [tech.v3.datatype.errors :as errors]
+            [tech.v3.parallel.for :as pfor]
+            [clj-commons.primitive-math :as pmath])
+  (:import [tech.v3.datatype Buffer]
+           [java.util.function DoubleToLongFunction]))
+
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* :warn-on-boxed)
+
+
+(defn- ->edges
+  ^doubles [edges]
+  (let [edges (double-array edges)
+        n-edges (alength edges)]
+    (errors/when-not-errorf
+     (>= n-edges 2)
+     "At least 2 edges are required, got %d" n-edges)
+    (dotimes [idx (dec n-edges)]
+      (errors/when-not-errorf
+       (<= (aget edges idx) (aget edges (inc idx)))
+       "Edges must be sorted: %s" (vec edges)))
+    edges))
+
+
+(defn bin-edges
+  "Return a sorted double array of n-bins + 1 bin edges for data.
+
+  Options:
+  * `:bin-type` - one of:
+     * `:fixed-width` - (default) n-bins equal width bins from `:min` to `:max`, which
+       default to the min and max of the data.
+     * `:quantile` - n-bins bins each holding about the same number of values.  Edges
+       are exact percentiles of the data; `:estimation-type` is passed to
+       [[tech.v3.datatype.statistics/percentiles]].
+     * `:edges` - the edges passed in as `:edges`.
+  * `:n-bins` - number of bins, defaults to 10.
+  * `:edges` - explicit sorted bin edges.  Implies a bin-type of `:edges`."
+  ^doubles [data {:keys [bin-type n-bins edges]
+                  :or {n-bins 10}
+                  :as options}]
+  (let [bin-type (or bin-type (if edges :edges :fixed-width))
+        n-bins (long n-bins)]
+    (errors/when-not-errorf
+     (or (identical? bin-type :edges) (pos? n-bins))
+     "n-bins must be positive, got %d" n-bins)
+    (case bin-type
+      :edges
+      (->edges edges)
+      :fixed-width
+      (let [{dmin :min dmax :max} (when-not (and (:min options) (:max options))
+                                    (stats/descriptive-statistics data [:min :max]))
+            lo (double (or (:min options) dmin))
+            hi (double (or (:max options) dmax))
+            ;;degenerate range still produces n-bins bins
+            width (if (> hi lo) (pmath// (- hi lo) (double n-bins)) 1.0)
+            rv (double-array (inc n-bins))]
+        (dotimes [idx n-bins]
+          (aset rv idx (pmath/+ lo (pmath/* (double idx) width))))
+        (aset rv n-bins (if (> hi lo) hi (pmath/+ lo (pmath/* (double n-bins) width))))
+        rv)
+      :quantile
+      (let [pcts (mapv #(pmath/* 100.0 (pmath// (double %) (double n-bins)))
+                       (range 1 (inc n-bins)))
+            options (merge {:nan-strategy :remove} options)
+            rv (double-array (inc n-bins))]
+        (aset rv 0 (double (:min (stats/descriptive-statistics data [:min] options))))
+        (let [^Buffer edges (stats/percentiles data pcts options)]
+          (dotimes [idx n-bins]
+            (aset rv (inc idx) (.readDouble edges idx))))
+        rv)
+      (errors/throwf "Unrecognized bin type: %s" bin-type))))
+
+
+(defn- fixed-width?
+  "True if edges are evenly spaced so bins can be computed arithmetically."
+  [^doubles edges]
+  (let [n-bins (dec (alength edges))
+        lo (aget edges 0)
+        width (pmath// (- (aget edges n-bins) lo) (double n-bins))]
+    (and (> width 0.0)
+         (loop [idx 0]
+           (if (< idx (alength edges))
+             (if (== (aget edges idx)
+                     (if (== idx n-bins)
+                       (aget edges n-bins)
+                       (pmath/+ lo (pmath/* (double idx) width))))
+               (recur (unchecked-inc idx))
+               false)
+             true)))))
+
+
+(defn- binner
+  "Function from a double value to its bin index or -1 if the value is outside of
+  all bins or NaN."
+  ^DoubleToLongFunction [^doubles edges]
+  (let [n-bins (dec (alength edges))
+        last-bin (dec n-bins)
+        lo (aget edges 0)
+        hi (aget edges n-bins)]
+    (if (fixed-width? edges)
+      (let [scale (pmath// (double n-bins) (- hi lo))]
+        (reify DoubleToLongFunction
+          (applyAsLong [this v]
+            (if (and (>= v lo) (<= v hi))
+              ;;correct rounding so values on an edge land in the bin it starts
+              (let [bin (pmath/min last-bin (long (pmath/* (- v lo) scale)))]
+                (cond
+                  (< v (aget edges bin)) (dec bin)
+                  (and (< bin last-bin) (>= v (aget edges (inc bin)))) (inc bin)
+                  :else bin))
+              -1))))
+      (reify DoubleToLongFunction
+        (applyAsLong [this v]
+          (if (and (>= v lo) (<= v hi))
+            ;;first edge greater than v, less one.  Ties with duplicated edges
+            ;;go to the last, non-empty, bin starting at v.
+            (loop [low 0
+                   high (alength edges)]
+              (if (< low high)
+                (let [mid (unsigned-bit-shift-right (+ low high) 1)]
+                  (if (<= (aget edges mid) v)
+                    (recur (unchecked-inc mid) high)
+                    (recur low mid)))
+                (pmath/min last-bin (dec low))))
+            -1))))))
+
+
+(defn- resolve-edges
+  ^doubles [data options]
+  (if (instance? (Class/forName "[D") options)
+    options
+    (bin-edges data options)))
+
+
+(defn histogram
+  "Count the values of data falling in each bin.  Returns a map of:
+
+  * `:edges` - double array of bin edges.
+  * `:counts` - long array of counts per bin.
+  * `:n-outside` - number of values outside of the edges.
+  * `:n-nan` - number of NaN values.
+
+  options are either a double array of edges or options for [[bin-edges]]."
+  ([data options]
+   (let [edges (resolve-edges data options)
+         ^Buffer rdr (dt-base/->reader data :float64)
+         n-bins (dec (alength edges))
+         binner (binner edges)
+         ;;slots past the bins hold the outside and NaN counts
+         counts
+         (pfor/indexed-map-reduce
+          (.lsize rdr)
+          (fn [^long start-idx ^long group-len]
+            (let [counts (long-array (+ n-bins 2))
+                  end-idx (+ start-idx group-len)]
+              (loop [idx start-idx]
+                (when (< idx end-idx)
+                  (let [v (.readDouble rdr idx)
+                        bin (.applyAsLong binner v)
+                        bin (if (>= bin 0)
+                              bin
+                              (if (Double/isNaN v) (inc n-bins) n-bins))]
+                    (aset counts bin (unchecked-inc (aget counts bin)))
+                    (recur (unchecked-inc idx)))))
+              counts))
+          (fn [counts-seq]
+            (reduce (fn [^longs lhs ^longs rhs]
+                      (dotimes [idx (alength lhs)]
+                        (aset lhs idx (pmath/+ (aget lhs idx) (aget rhs idx))))
+                      lhs)
+                    counts-seq))
+          ;;Fewer, larger, tasks when there are many bins to merge
+          (pmath/max pfor/default-max-batch-size (* 16 n-bins)))]
+     {:edges edges
+      :counts (java.util.Arrays/copyOf ^longs counts n-bins)
+      :n-outside (aget ^longs counts n-bins)
+      :n-nan (aget ^longs counts (inc n-bins))}))
+  ([data]
+   (histogram data nil)))
+
+
+(defn bin-indexes
+  "Return an int32 buffer of the bin index of each value of data, -1 for values
+  outside of the edges and NaN values.
+
+  options are either a double array of edges or options for [[bin-edges]]."
+  ([data options]
+   (let [edges (resolve-edges data options)
+         ^Buffer rdr (dt-base/->reader data :float64)
+         n-elems (.lsize rdr)
+         binner (binner edges)
+         rv (int-array n-elems)]
+     (pfor/indexed-map-reduce
+      n-elems
+      (fn [^long start-idx ^long group-len]
+        (let [end-idx (+ start-idx group-len)]
+          (loop [idx start-idx]
+            (when (< idx end-idx)
+              (aset rv idx (unchecked-int (.applyAsLong binner (.readDouble rdr idx))))
+              (recur (unchecked-inc idx))))))
+      dorun)
+     (abuf/array-buffer rv)))
+  ([data]
+   (bin-indexes data nil)))
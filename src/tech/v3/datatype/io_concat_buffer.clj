@@ -31,6 +31,37 @@
        (~write-method ~rhs (pmath/- ~idx ~n-lhs-elems) ~value))))
 
 
+(defn- as-prim-io ^Buffer [item] item)
+
+
+(defn- concat-block-io!
+  "Split a block read or write of len elements starting at idx across the concatenated
+  buffers.  io-fn receives each buffer with the local index, the array offset and the
+  number of elements to transfer."
+  [^List buffers n-elems idx off len io-fn]
+  (let [idx (long idx)
+        len (long len)]
+    (ChunkedList/checkIndexRange 0 (long n-elems) idx (+ idx len))
+    (loop [buf-idx 0
+           idx idx
+           off (long off)
+           len len]
+      (when (pos? len)
+        (let [buffer (as-prim-io (.get buffers buf-idx))
+              buf-len (.lsize buffer)]
+          (if (>= idx buf-len)
+            (recur (unchecked-inc buf-idx) (- idx buf-len) off len)
+            (let [n (min len (- buf-len idx))]
+              (io-fn buffer idx off n)
+              (recur (unchecked-inc buf-idx) 0 (+ off n) (- len n)))))))))
+
+
+(defmacro ^:private block-io-fn
+  [method ary]
+  `(fn [^Buffer buf# ^long idx# ^long off# ^long n#]
+     (~method buf# idx# ~ary (unchecked-int off#) (unchecked-int n#))))
+
+
 (defn- dual-concat-buffer
   ^Buffer [datatype lhs rhs]
   (let [lhs (dtype-proto/->buffer lhs)
@@ -38,7 +69,8 @@
         n-elems (+ (.lsize lhs) (.lsize rhs))
         lhs-n-elems (.lsize lhs)
         allowsRead (boolean (and (.allowsRead lhs) (.allowsRead rhs)))
-        allowsWrite (boolean (and (.allowsWrite lhs) (.allowsWrite rhs)))]
+        allowsWrite (boolean (and (.allowsWrite lhs) (.allowsWrite rhs)))
+        lhs-rhs [lhs rhs]]
     (reify Buffer
       (elemwiseDatatype [this] datatype)
       (subBuffer [this sidx eidx]
@@ -61,6 +93,22 @@
       (writeLong [this idx val] (dual-write-macro idx n-elems lhs-n-elems .writeLong lhs rhs val))
       (writeDouble [this idx val] (dual-write-macro idx n-elems lhs-n-elems .writeDouble lhs rhs val))
       (writeObject [this idx val] (dual-write-macro idx n-elems lhs-n-elems .writeObject lhs rhs val))
+      (readDoubles [this idx dst off len]
+        (concat-block-io! lhs-rhs n-elems idx off len (block-io-fn .readDoubles dst)))
+      (readFloats [this idx dst off len]
+        (concat-block-io! lhs-rhs n-elems idx off len (block-io-fn .readFloats dst)))
+      (readLongs [this idx dst off len]
+        (concat-block-io! lhs-rhs n-elems idx off len (block-io-fn .readLongs dst)))
+      (readInts [this idx dst off len]
+        (concat-block-io! lhs-rhs n-elems idx off len (block-io-fn .readInts dst)))
+      (writeDoubles [this idx src off len]
+        (concat-block-io! lhs-rhs n-elems idx off len (block-io-fn .writeDoubles src)))
+      (writeFloats [this idx src off len]
+        (concat-block-io! lhs-rhs n-elems idx off len (block-io-fn .writeFloats src)))
+      (writeLongs [this idx src off len]
+        (concat-block-io! lhs-rhs n-elems idx off len (block-io-fn .writeLongs src)))
+      (writeInts [this idx src off len]
+        (concat-block-io! lhs-rhs n-elems idx off len (block-io-fn .writeInts src)))
       (reduce [this rfn init]
         (let [init (.reduce lhs rfn init)]
           (if-not (reduced? init)
@@ -70,8 +118,6 @@
       (elemwise-reader-cast [this new-dtype]
         (concat-buffers new-dtype (map #(dtype-proto/elemwise-reader-cast % new-dtype) [lhs rhs]))))))
 
-(defn- as-prim-io ^Buffer [item] item)
-
 (defmacro ^:private same-len-read-macro
   [idx n-elems buf-len read-method buffers]
   `(do (errors/check-idx ~idx ~n-elems)
@@ -108,6 +154,22 @@
       (writeLong [this idx val] (same-len-write-macro idx n-elems buf-len .writeLong buffers val))
       (writeDouble [this idx val] (same-len-write-macro idx n-elems buf-len .writeDouble buffers val))
       (writeObject [this idx val] (same-len-write-macro idx n-elems buf-len .writeObject buffers val))
+      (readDoubles [this idx dst off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .readDoubles dst)))
+      (readFloats [this idx dst off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .readFloats dst)))
+      (readLongs [this idx dst off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .readLongs dst)))
+      (readInts [this idx dst off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .readInts dst)))
+      (writeDoubles [this idx src off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .writeDoubles src)))
+      (writeFloats [this idx src off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .writeFloats src)))
+      (writeLongs [this idx src off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .writeLongs src)))
+      (writeInts [this idx src off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .writeInts src)))
       dtype-proto/PElemwiseReaderCast
       (elemwise-reader-cast [this new-dtype]
         (concat-buffers new-dtype (map #(dtype-proto/elemwise-reader-cast % new-dtype) buffers))))))
@@ -157,6 +219,22 @@
       (writeLong [this idx val] (gen-write-macro idx n-elems .writeLong n-buffers buffers val))
       (writeDouble [this idx val] (gen-write-macro idx n-elems .writeDouble n-buffers buffers val))
       (writeObject [this idx val] (gen-write-macro idx n-elems .writeObject n-buffers buffers val))
+      (readDoubles [this idx dst off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .readDoubles dst)))
+      (readFloats [this idx dst off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .readFloats dst)))
+      (readLongs [this idx dst off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .readLongs dst)))
+      (readInts [this idx dst off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .readInts dst)))
+      (writeDoubles [this idx src off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .writeDoubles src)))
+      (writeFloats [this idx src off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .writeFloats src)))
+      (writeLongs [this idx src off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .writeLongs src)))
+      (writeInts [this idx src off len]
+        (concat-block-io! buffers n-elems idx off len (block-io-fn .writeInts src)))
       dtype-proto/PElemwiseReaderCast
       (elemwise-reader-cast [this new-dtype]
         (concat-buffers new-dtype (map #(dtype-proto/elemwise-reader-cast % new-dtype) buffers))))))
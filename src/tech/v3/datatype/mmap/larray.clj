@@ -6,7 +6,8 @@
             [tech.v3.datatype.native-buffer :as native-buffer]
             [tech.v3.datatype.protocols :as dtype-proto])
   (:import [xerial.larray.mmap MMapMode]
-           [tech.v3.datatype MMapBuffer]
+           [tech.v3.datatype MMapBuffer NativeMemoryTracker]
+           [java.util.concurrent.atomic AtomicBoolean]
            [tech.v3.datatype.native_buffer NativeBuffer]))
 
 
@@ -34,14 +35,25 @@
                                      :read-only MMapMode/READ_ONLY
                                      :read-write MMapMode/READ_WRITE
                                      :private MMapMode/PRIVATE))
-         endianness (or endianness (dtype-proto/platform-endianness))]
+         endianness (or endianness (dtype-proto/platform-endianness))
+         addr (.address map-buf)
+         map-size (.mapSize map-buf)
+         released (AtomicBoolean.)
+         record-free! #(when (.compareAndSet released false true)
+                         (NativeMemoryTracker/recordFree addr map-size :mmap))]
      ;;the mmap library has it's own gc-based cleanup system that works fine.
      (when (resource-type :stack)
        (resource/track map-buf
                        {:dispose-fn #(do (log/debugf "closing %s" fpath)
+                                         (record-free!)
                                          (.close map-buf))
                         :track-type :stack}))
-     (native-buffer/wrap-address (.address map-buf) (.mapSize map-buf) :int8
+     ;;Mirror larray's gc cleanup in the native memory accounting.  The stack pathway
+     ;;above may record the release first.
+     (NativeMemoryTracker/recordAlloc addr map-size :mmap)
+     (resource/track map-buf {:dispose-fn record-free!
+                              :track-type :gc})
+     (native-buffer/wrap-address addr map-size :int8
                                  endianness map-buf)))
   (^NativeBuffer [fpath]
    (mmap-file fpath {})))
@@ -5,6 +5,7 @@
   (:import [jdk.incubator.foreign MemorySegment ResourceScope]
            [java.nio.channels FileChannel$MapMode]
            [java.nio.file Path Paths]
+           [tech.v3.datatype NativeMemoryTracker]
            [tech.v3.datatype.native_buffer NativeBuffer]))
 
 
@@ -39,9 +40,13 @@
                                        :read-write FileChannel$MapMode/READ_WRITE
                                        :private FileChannel$MapMode/PRIVATE)
                                      rscope)
-         nbuf (nbuf-mmodel/memory-segment->native-buffer mseg options)]
+         nbuf (nbuf-mmodel/memory-segment->native-buffer mseg options)
+         addr (.address nbuf)]
+     ;;Untracked mappings are never released by us so they are not accounted.
      (when resource-type
+       (NativeMemoryTracker/recordAlloc addr flen :mmap)
        (resource/track nbuf {:track-type resource-type
-                             :dispose-fn #(.close rscope)}))
+                             :dispose-fn #(do (NativeMemoryTracker/recordFree addr flen :mmap)
+                                              (.close rscope))}))
      nbuf))
   (^NativeBuffer [fpath] (mmap-file fpath {})))
@@ -5,6 +5,7 @@
   (:import [java.lang.foreign MemorySegment MemorySession]
            [java.nio.channels FileChannel$MapMode FileChannel]
            [java.nio.file Path Paths StandardOpenOption OpenOption]
+           [tech.v3.datatype NativeMemoryTracker]
            [tech.v3.datatype.native_buffer NativeBuffer]))
 
 
@@ -50,10 +51,14 @@
                       :private FileChannel$MapMode/PRIVATE)
                     0 flen
                     rscope)
-         nbuf (nbuf-mmodel/memory-segment->native-buffer mseg options)]
+         nbuf (nbuf-mmodel/memory-segment->native-buffer mseg options)
+         addr (.address nbuf)]
+     ;;Untracked mappings are never released by us so they are not accounted.
      (when resource-type
+       (NativeMemoryTracker/recordAlloc addr flen :mmap)
        (resource/track nbuf {:track-type resource-type
-                             :dispose-fn #(do (.close rscope)
+                             :dispose-fn #(do (NativeMemoryTracker/recordFree addr flen :mmap)
+                                              (.close rscope)
                                               (.close channel))}))
      nbuf))
   (^NativeBuffer [fpath] (mmap-file fpath {})))
@@ -15,12 +15,14 @@
             [clj-commons.primitive-math :as pmath]
             [ham-fisted.api :as hamf]
             [ham-fisted.reduce :as hamf-rf])
-  (:import [tech.v3.datatype UnsafeUtil]
+  (:import [tech.v3.datatype UnsafeUtil NativeArena NativeMemoryTracker
+            NativeMemoryTracker$Allocation NativeMemoryTracker$TypeStats]
            [sun.misc Unsafe]
            [tech.v3.datatype Buffer BufferCollection BinaryBuffer
             LongBuffer DoubleBuffer]
+           [tech.v3.datatype.ffi Pointer]
            [clojure.lang RT IObj Counted Indexed IFn
-            IFn$LL IFn$LD IFn$LO IFn$LLO IFn$LDO IFn$LOO IFn$OLO
+            IFn$LL IFn$LD IFn$LO IFn$LLO IFn$LDO IFn$LOO IFn$OLO IFn$ODO
             IFn$LLL IFn$LLD IFn$LLO IFn$LLLO IFn$LLDO IFn$LLOO]
            [ham_fisted Casts Transformables IMutList ChunkedList Reductions
             ArrayHelpers]))
@@ -232,6 +234,24 @@
        (into {})))
 
 
+;;Reductions over non-platform-endian buffers bulk swap blocks of this many elements
+;;into a platform-endian scratch buffer instead of swapping each element on read.
+(def ^:private ^{:tag 'long} swap-block-size 4096)
+
+
+(defn- swapped-reduction?
+  [buffer ^long n-elems]
+  (and (> n-elems 64)
+       (not (identical? (dtype-proto/endianness buffer)
+                        (dtype-proto/platform-endianness)))
+       (> (casting/numeric-byte-width
+           (casting/un-alias-datatype (dtype-proto/elemwise-datatype buffer)))
+          1)))
+
+
+(declare swapped-reduce native-block-copy!)
+
+
 (deftype ^:private PackedNativeBuf [datatype
                                     buffer
                                     ^long address
@@ -292,13 +312,17 @@
   (fillRange [this sidx eidx v] (dtype-proto/set-constant! buffer sidx (- eidx sidx) v))
   (reduce [rdr rfn acc]
     (let [addr address]
-      (if (instance? IFn$OLO rdr)
+      (cond
+        (swapped-reduction? buffer n-elems)
+        (swapped-reduce buffer rfn acc)
+        (instance? IFn$OLO rdr)
         (loop [idx 0
                acc acc]
           (if (and (< idx n-elems) (not (reduced? acc)))
             (recur (unchecked-inc idx) (.invokePrim ^IFn$OLO rfn acc
                                                     (.invokePrim get-fn addr idx)))
             (Reductions/unreduce acc)))
+        :else
         (loop [idx 0
                acc acc]
           (if (and (< idx n-elems) (not (reduced? acc)))
@@ -357,6 +381,22 @@
   (accumPlusLong [this idx val]
     (errors/check-idx idx n-elems)
     (.invokePrim set-fn address idx (+ val (.invokePrim get-fn address idx))))
+  (readLongs [rdr src-idx dst off len]
+    (when-not (native-block-copy! buffer :int64 src-idx dst off len true)
+      (dotimes [idx len]
+        (aset dst (+ off idx) (.readLong rdr (+ src-idx idx))))))
+  (readInts [rdr src-idx dst off len]
+    (when-not (native-block-copy! buffer :int32 src-idx dst off len true)
+      (dotimes [idx len]
+        (aset dst (+ off idx) (RT/intCast (.readLong rdr (+ src-idx idx)))))))
+  (writeLongs [rdr dst-idx src off len]
+    (when-not (native-block-copy! buffer :int64 dst-idx src off len false)
+      (dotimes [idx len]
+        (.writeLong rdr (+ dst-idx idx) (aget src (+ off idx))))))
+  (writeInts [rdr dst-idx src off len]
+    (when-not (native-block-copy! buffer :int32 dst-idx src off len false)
+      (dotimes [idx len]
+        (.writeLong rdr (+ dst-idx idx) (aget src (+ off idx))))))
   (fillRange [rdr sidx v]
     (ChunkedList/checkIndexRange 0 n-elems sidx (+ sidx (long (dtype-proto/ecount v))))
     (let [addr address]
@@ -366,13 +406,15 @@
               v)))
   (fillRange [this sidx eidx v] (dtype-proto/set-constant! buffer sidx (- eidx sidx) v))
   (reduce [rdr rfn acc]
-    (let [rfn (Transformables/toLongReductionFn rfn)
-          addr address]
-      (loop [idx 0
-             acc acc]
-        (if (and (< idx n-elems) (not (reduced? acc)))
-          (recur (unchecked-inc idx) (.invokePrim rfn acc (.invokePrim get-fn addr idx)))
-          (Reductions/unreduce acc))))))
+    (if (swapped-reduction? buffer n-elems)
+      (swapped-reduce buffer rfn acc)
+      (let [rfn (Transformables/toLongReductionFn rfn)
+            addr address]
+        (loop [idx 0
+               acc acc]
+          (if (and (< idx n-elems) (not (reduced? acc)))
+            (recur (unchecked-inc idx) (.invokePrim rfn acc (.invokePrim get-fn addr idx)))
+            (Reductions/unreduce acc)))))))
 
 
 (dtype-pp/implement-tostring-print LongNativeBuf)
@@ -426,6 +468,22 @@
   (accumPlusDouble [this idx val]
     (errors/check-idx idx n-elems)
     (.invokePrim set-fn address idx (+ val (.invokePrim get-fn address idx))))
+  (readDoubles [rdr src-idx dst off len]
+    (when-not (native-block-copy! buffer :float64 src-idx dst off len true)
+      (dotimes [idx len]
+        (aset dst (+ off idx) (.readDouble rdr (+ src-idx idx))))))
+  (readFloats [rdr src-idx dst off len]
+    (when-not (native-block-copy! buffer :float32 src-idx dst off len true)
+      (dotimes [idx len]
+        (aset dst (+ off idx) (float (.readDouble rdr (+ src-idx idx)))))))
+  (writeDoubles [rdr dst-idx src off len]
+    (when-not (native-block-copy! buffer :float64 dst-idx src off len false)
+      (dotimes [idx len]
+        (.writeDouble rdr (+ dst-idx idx) (aget src (+ off idx))))))
+  (writeFloats [rdr dst-idx src off len]
+    (when-not (native-block-copy! buffer :float32 dst-idx src off len false)
+      (dotimes [idx len]
+        (.writeDouble rdr (+ dst-idx idx) (aget src (+ off idx))))))
   (fillRange [this sidx eidx v] (dtype-proto/set-constant! buffer sidx (- eidx sidx) v))
   (fillRange [rdr sidx v]
     (ChunkedList/checkIndexRange 0 n-elems sidx (+ sidx (Casts/longCast
@@ -436,12 +494,14 @@
               nil
               v)))
   (reduce [rdr rfn acc]
-    (let [rfn (Transformables/toDoubleReductionFn rfn)
-          addr address]
-      (loop [idx 0 acc acc]
-        (if (and (< idx n-elems) (not (reduced? acc)))
-          (recur (unchecked-inc idx) (.invokePrim rfn acc (.invokePrim get-fn addr idx)))
-          (Reductions/unreduce acc))))))
+    (if (swapped-reduction? buffer n-elems)
+      (swapped-reduce buffer rfn acc)
+      (let [rfn (Transformables/toDoubleReductionFn rfn)
+            addr address]
+        (loop [idx 0 acc acc]
+          (if (and (< idx n-elems) (not (reduced? acc)))
+            (recur (unchecked-inc idx) (.invokePrim rfn acc (.invokePrim get-fn addr idx)))
+            (Reductions/unreduce acc)))))))
 
 
 (dtype-pp/implement-tostring-print DoubleNativeBuf)
@@ -530,11 +590,13 @@
        (set! ~'cached-io (native-buffer->buffer ~'this)))
      ~'cached-io))
 
-;;Size is in elements, not in bytes
+;;Size is in elements, not in bytes.  Alignment is the byte alignment guaranteed at
+;;allocation time or 0 if none was requested.
 (deftype NativeBuffer [^long address ^long n-elems datatype endianness
                        resource-type metadata
                        ^:unsynchronized-mutable ^Buffer cached-io
-                       parent]
+                       parent
+                       ^long alignment]
   dtype-proto/PToNativeBuffer
   (convertible-to-native-buffer? [_this] true)
   (->native-buffer [this] this)
@@ -561,7 +623,10 @@
       (NativeBuffer. (+ address (* offset byte-width))
                      length datatype endianness
                      resource-type metadata nil
-                     this)))
+                     this
+                     (if (== 0 offset)
+                       alignment
+                       (min alignment (Long/lowestOneBit (* offset byte-width)))))))
   dtype-proto/PSetConstant
   (set-constant! [this offset element-count value]
     (let [offset (long offset)
@@ -610,7 +675,8 @@
     (NativeBuffer. address n-elems datatype endianness resource-type
                    metadata
                    cached-io
-                   item))
+                   item
+                   alignment))
   (size [_item] (int n-elems))
   (subList [item sidx eidx]
     (.sub-buffer item sidx (- eidx sidx)))
@@ -672,6 +738,80 @@
                                 (get accessor-maps [un-aliased swap?]))))
 
 
+(defn- native-block-copy!
+  "Bulk copy len elements between nbuf starting at element idx and the java array ary
+  starting at element off, swapping bytes for non-platform-endian buffers.  Returns
+  false without copying if the buffer datatype is not ary-dt."
+  [^NativeBuffer nbuf ary-dt idx ary off len read?]
+  (if (identical? (.-datatype nbuf) ary-dt)
+    (let [idx (long idx)
+          off (long off)
+          len (long len)
+          byte-width (casting/numeric-byte-width ary-dt)
+          _ (ChunkedList/checkIndexRange 0 (.-n-elems nbuf) idx (+ idx len))
+          _ (ChunkedList/checkIndexRange 0 (java.lang.reflect.Array/getLength ary)
+                                         off (+ off len))
+          naddr (+ (.-address nbuf) (* idx byte-width))
+          aoff (+ (.arrayBaseOffset (unsafe) (.getClass ^Object ary))
+                  (* off byte-width))
+          swap? (not (identical? (.-endianness nbuf)
+                                 (dtype-proto/platform-endianness)))]
+      (cond
+        (and read? swap?) (UnsafeUtil/copySwapMemory nil naddr ary aoff len byte-width)
+        read? (.copyMemory (unsafe) nil naddr ary aoff (* len byte-width))
+        swap? (UnsafeUtil/copySwapMemory ary aoff nil naddr len byte-width)
+        :else (.copyMemory (unsafe) ary aoff nil naddr (* len byte-width)))
+      true)
+    false))
+
+
+(defn- preserving-reduced
+  "Wrap rfn such that a reduced result survives the inner reduction of a block."
+  [rfn]
+  (cond
+    (instance? IFn$OLO rfn)
+    (hamf-rf/long-accumulator
+     acc v (let [acc (.invokePrim ^IFn$OLO rfn acc v)]
+             (if (reduced? acc) (reduced acc) acc)))
+    (instance? IFn$ODO rfn)
+    (hamf-rf/double-accumulator
+     acc v (let [acc (.invokePrim ^IFn$ODO rfn acc v)]
+             (if (reduced? acc) (reduced acc) acc)))
+    :else
+    (fn [acc v]
+      (let [acc (rfn acc v)]
+        (if (reduced? acc) (reduced acc) acc)))))
+
+
+(defn- swapped-reduce
+  "Reduce a non-platform-endian buffer by swapping blocks of elements into a
+  platform-endian scratch buffer with a bulk kernel and reducing the scratch buffer."
+  [^NativeBuffer nbuf rfn acc]
+  (let [dt (.-datatype nbuf)
+        byte-width (casting/numeric-byte-width (casting/un-alias-datatype dt))
+        n-elems (.-n-elems nbuf)
+        block-size (min n-elems swap-block-size)
+        scratch (.allocateMemory (unsafe) (* block-size byte-width))
+        endianness (dtype-proto/platform-endianness)
+        rfn (preserving-reduced rfn)]
+    (try
+      (loop [sidx 0
+             acc acc]
+        (if (< sidx n-elems)
+          (let [n-block (min block-size (- n-elems sidx))
+                _ (UnsafeUtil/copySwapMemory nil (+ (.-address nbuf) (* sidx byte-width))
+                                             nil scratch n-block byte-width)
+                acc (.reduce ^IMutList (NativeBuffer. scratch n-block dt endianness
+                                                      nil nil nil nil 0)
+                             rfn acc)]
+            (if (reduced? acc)
+              @acc
+              (recur (+ sidx n-block) acc)))
+          acc))
+      (finally
+        (.freeMemory (unsafe) scratch)))))
+
+
 (defn- validate-endianness
   [endianness]
   (when-not (#{:little-endian :big-endian} endianness)
@@ -744,14 +884,14 @@
                           (casting/un-alias-datatype datatype))]
       (NativeBuffer. (.address nb) (quot n-bytes new-byte-width)
                      datatype (.endianness nb)
-                     (.resource-type nb) (meta nb) nil item))))
+                     (.resource-type nb) (meta nb) nil item (.alignment nb)))))
 
 
 (defn set-gc-obj
   ^NativeBuffer [^NativeBuffer nb gc-obj]
   (NativeBuffer. (.address nb) (.n-elems nb)
                  (.elemwise-datatype nb) (.endianness nb)
-                 (.resource-type nb) (meta nb) nil gc-obj))
+                 (.resource-type nb) (meta nb) nil gc-obj (.alignment nb)))
 
 
 (defn set-parent
@@ -760,7 +900,7 @@
   ^NativeBuffer [^NativeBuffer buf new-parent]
   (NativeBuffer. (.address buf) (.n-elems buf) (.elemwise-datatype buf)
                  (.endianness buf)
-                 (.resource-type buf) (meta buf) nil new-parent))
+                 (.resource-type buf) (meta buf) nil new-parent (.alignment buf)))
 
 
 (defn set-endianness
@@ -772,7 +912,28 @@
       nb
       (NativeBuffer. (.address nb) (.n-elems nb)
                      (.elemwise-datatype nb) endianness
-                     (.resource-type nb) (meta nb) nil item))))
+                     (.resource-type nb) (meta nb) nil item (.alignment nb)))))
+
+
+(defn set-endianness!
+  "Convert the data of a native buffer to a new endianness in place by swapping the
+  bytes of every element.  Returns a native buffer of the new endianness sharing the
+  same memory - the input buffer reads swapped values after this call.  Large buffers
+  are converted in parallel.  Converting network-order data once to platform
+  endianness makes subsequent scans as fast as reading native data."
+  ^NativeBuffer [item endianness]
+  (let [nb (as-native-buffer item)]
+    (errors/when-not-errorf
+     nb
+     "set-endianness! swaps in place and requires native memory - got %s"
+     (type item))
+    (validate-endianness endianness)
+    (if (= endianness (.endianness nb))
+      nb
+      (do
+        (copy/unsafe-copy-memory nb nb (casting/un-alias-datatype (.-datatype nb))
+                                 (.-n-elems nb) true)
+        (set-endianness nb endianness)))))
 
 
 (defn native-buffer->map
@@ -785,6 +946,7 @@
    :datatype (.elemwise-datatype buf)
    :resource-type (.resource-type buf)
    :endianness (.endianness buf)
+   :alignment (.alignment buf)
    :metadata (.metadata buf)})
 
 
@@ -866,14 +1028,285 @@
     (.getByte (unsafe) (.address native-buffer)))))
 
 
+(deftype ^:private TrackedAllocation [^long address ^long n-bytes track-type])
+
+
+(defn- allocation-root
+  "Follow native buffer parents to the buffer wrapping the start of the allocation -
+  aligned allocations begin before the aligned address."
+  ^NativeBuffer [^NativeBuffer nbuf]
+  (let [parent (.-parent nbuf)]
+    (if (instance? NativeBuffer parent)
+      (recur parent)
+      nbuf)))
+
+
+(defn- resolve-track-type
+  "The track type memory is accounted under - :auto resolves to :stack or :gc."
+  [resource-type]
+  (when resource-type
+    (let [track-types (resource/normalize-track-type resource-type)]
+      (cond
+        (track-types :stack) :stack
+        (track-types :gc) :gc
+        :else (first track-types)))))
+
+
+(defn- free-allocation
+  [^long addr ^long n-bytes track-type]
+  (NativeMemoryTracker/recordFree addr n-bytes track-type)
+  (.freeMemory (unsafe) addr))
+
+
+(defn- free-address
+  [^long addr]
+  (when-not (== 0 addr)
+    (NativeMemoryTracker/recordFree addr)
+    (.freeMemory (unsafe) addr)))
+
+
 (defn free
-  "Free a long ptr.  Malloc will do this for you.  Calling this is probably a mistake."
+  "Free a long ptr.  Malloc will do this for you.  Calling this is probably a mistake.
+  Buffers returned by [[malloc]] are always subtracted from [[native-memory-stats]].
+  Memory freed by raw address, or through a buffer that merely wraps an address, can
+  only be matched to its allocation when detailed tracking is on - see
+  [[set-detailed-native-memory-tracking!]] - and otherwise stays counted as live."
   [data]
-  (let [addr (long (if (instance? NativeBuffer data)
-                     (.address ^NativeBuffer data)
-                     (long data)))]
-    (when-not (== 0 addr)
-      (.freeMemory (unsafe) addr))))
+  (if (instance? NativeBuffer data)
+    (let [root (allocation-root data)
+          parent (.-parent root)]
+      (errors/when-not-errorf
+       (not (instance? NativeArena parent))
+       "Native buffer was allocated from an arena - see arena-free")
+      (if (instance? TrackedAllocation parent)
+        (let [^TrackedAllocation alloc parent]
+          (free-allocation (.-address alloc) (.-n-bytes alloc) (.-track-type alloc)))
+        (free-address (.address root))))
+    (free-address (long data))))
+
+
+;;Accounting
+(defn native-memory-stats
+  "Return a snapshot of the native memory allocated through [[malloc]], native arenas
+  and `tech.v3.datatype.mmap/mmap-file`:
+
+  * `:live-bytes`, `:live-count` - bytes and number of allocations currently live.
+  * `:peak-bytes` - high water mark of `:live-bytes` - see [[reset-peak-native-memory!]].
+  * `:n-allocations`, `:n-frees` - totals since process start.
+  * `:sample-interval` - see [[set-allocation-sampling!]].
+  * `:by-track-type` - map of track type to `{:live-count :live-bytes :n-allocations}`.
+     Track types are the `:resource-type` passed to malloc with `:auto` resolved to
+     `:stack` or `:gc`, `:untracked` for a nil resource type, `:arena` for arena slabs
+     and `:mmap` for mapped files.  Untracked mapped files are not accounted.
+  * `:detailed?` - see [[set-detailed-native-memory-tracking!]].
+
+  These counters are always kept and cost a few atomic adds per allocation.  Tracking
+  may be disabled for the life of the process with the system property
+  `tech.v3.datatype.native-memory-tracking=false`."
+  []
+  {:live-bytes (NativeMemoryTracker/liveBytes)
+   :live-count (NativeMemoryTracker/liveCount)
+   :peak-bytes (NativeMemoryTracker/peakBytes)
+   :n-allocations (NativeMemoryTracker/nAllocations)
+   :n-frees (NativeMemoryTracker/nFrees)
+   :sample-interval (NativeMemoryTracker/sampleInterval)
+   :detailed? (NativeMemoryTracker/detailed)
+   :by-track-type (->> (NativeMemoryTracker/typeStats)
+                       (map (fn [[k ^NativeMemoryTracker$TypeStats v]]
+                              [k {:live-count (.get (.-liveCount v))
+                                  :live-bytes (.get (.-liveBytes v))
+                                  :n-allocations (.get (.-nAllocations v))}]))
+                       (into {}))})
+
+
+(defn set-detailed-native-memory-tracking!
+  "Keep a record of every live native allocation for [[native-memory-leak-report]].
+  This costs a map insertion per allocation so it is off by default; it can also be
+  enabled from startup with the system property
+  `tech.v3.datatype.native-memory-tracking=detailed`.  Allocations made while detailed
+  tracking is off are counted in [[native-memory-stats]] but never reported."
+  [detailed?]
+  (NativeMemoryTracker/setDetailed (boolean detailed?)))
+
+
+(defn set-allocation-sampling!
+  "Capture the allocation site of every nth native allocation so it is attributed in
+  [[native-memory-leak-report]].  Capturing a stack trace is expensive so use 1 only
+  while debugging.  0 disables sampling.  Only applies while detailed tracking is on -
+  see [[set-detailed-native-memory-tracking!]]."
+  [n]
+  (NativeMemoryTracker/setSampleInterval (long n)))
+
+
+(defn reset-peak-native-memory!
+  "Reset `:peak-bytes` to the current live byte count."
+  []
+  (NativeMemoryTracker/resetPeak))
+
+
+(defn- allocation-site
+  [^NativeMemoryTracker$Allocation alloc]
+  (when-let [site (.-site alloc)]
+    (->> site
+         (drop-while #(let [cname (.getClassName ^StackTraceElement %)]
+                        (or (= cname "java.lang.Thread")
+                            (= cname "tech.v3.datatype.NativeMemoryTracker"))))
+         (mapv str))))
+
+
+(defn native-memory-leak-report
+  "Return the native allocations made while detailed tracking was on - see
+  [[set-detailed-native-memory-tracking!]] - that have not been released sorted
+  largest first.
+  Each entry is a map of `:address`, `:n-bytes`, `:track-type`, `:age-ms` and, for
+  allocations captured by [[set-allocation-sampling!]], `:site` - a vector of stack
+  frame strings.
+
+  Options:
+
+  * `:min-age-ms` - only report allocations at least this old - defaults to 0.
+  * `:track-types` - only report allocations with one of these track types.
+  * `:sampled-only?` - only report allocations with a captured site."
+  ([{:keys [min-age-ms track-types sampled-only?]
+     :or {min-age-ms 0}}]
+   (let [now (System/currentTimeMillis)
+         min-age-ms (long min-age-ms)
+         track-types (when track-types (set track-types))]
+     (->> (NativeMemoryTracker/liveAllocations)
+          (filter (fn [^NativeMemoryTracker$Allocation alloc]
+                    (and (>= (- now (.-timestampMs alloc)) min-age-ms)
+                         (or (nil? track-types) (track-types (.-trackType alloc)))
+                         (or (not sampled-only?) (.-site alloc)))))
+          (sort-by (fn [^NativeMemoryTracker$Allocation alloc] (.-nBytes alloc)) >)
+          (mapv (fn [^NativeMemoryTracker$Allocation alloc]
+                  (cond-> {:address (.-address alloc)
+                           :n-bytes (.-nBytes alloc)
+                           :track-type (.-trackType alloc)
+                           :age-ms (- now (.-timestampMs alloc))}
+                    (.-site alloc) (assoc :site (allocation-site alloc))))))))
+  ([] (native-memory-leak-report nil)))
+
+;;Arena allocation
+(def ^:dynamic *native-arena*
+  "When bound to a tech.v3.datatype.NativeArena, [[malloc]] and friends allocate from
+  the arena unless their options specify `:arena`.  See [[with-native-arena]]."
+  nil)
+
+
+(defn native-arena
+  "Create a size-class arena allocator.  Small allocations are rounded up to a
+  power-of-two size class and carved out of large slabs through per-thread caches.
+  Nothing is tracked by `tech.v3.resource` - all memory is released at once when the
+  arena is closed (it implements java.lang.AutoCloseable).
+
+  Options:
+
+  * `:slab-size` - bytes per slab - defaults to 1MB.
+  * `:max-size-class` - allocations larger than this go straight to the system
+     allocator but are still released with the arena - defaults to 64KB."
+  (^NativeArena [{:keys [slab-size max-size-class]}]
+   (NativeArena. (long (or slab-size NativeArena/DEFAULT_SLAB_SIZE))
+                 (long (or max-size-class NativeArena/DEFAULT_MAX_CLASS_SIZE))))
+  (^NativeArena [] (native-arena nil)))
+
+
+(defmacro with-native-arena
+  "Bind [[*native-arena*]] to a new arena for the dynamic extent of body and release
+  all arena memory when body exits.  Buffers allocated within body must not escape it.
+  See [[native-arena]] for options."
+  [options & body]
+  `(with-open [arena# (native-arena ~options)]
+     (binding [*native-arena* arena#]
+       ~@body)))
+
+
+(defn- arena-root
+  "Find the buffer wrapping the raw arena allocation - the one whose parent is the arena."
+  ^NativeBuffer [^NativeBuffer nbuf]
+  (loop [nbuf nbuf]
+    (let [parent (.-parent nbuf)]
+      (cond
+        (instance? NativeArena parent) nbuf
+        (instance? NativeBuffer parent) (recur parent)
+        :else nil))))
+
+
+(defn arena-free
+  "Return a buffer allocated from an arena to the calling thread's free list for its size
+  class so later allocations can reuse it.  nbuf must be a buffer returned from
+  [[malloc]] and must not be used afterward."
+  [^NativeBuffer nbuf]
+  (if-let [root (arena-root nbuf)]
+    (.free ^NativeArena (.-parent root) (.-address root) (native-buffer-byte-len root))
+    (errors/throwf "Native buffer was not allocated from an arena")))
+
+
+;;Alignment
+(def ^:private MADV_HUGEPAGE 14)
+
+
+(defonce ^:private madvise-fn*
+  (delay
+    (try
+      (when (.startsWith (str (System/getProperty "os.name")) "Linux")
+        (let [define-library (requiring-resolve 'tech.v3.datatype.ffi/define-library)
+              instantiate-library (requiring-resolve 'tech.v3.datatype.ffi/instantiate-library)]
+          (-> (define-library {:madvise {:rettype :int32
+                                         :argtypes [['addr :pointer]
+                                                    ['len :size-t]
+                                                    ['advice :int32]]}}
+                              nil nil)
+              (instantiate-library nil)
+              (deref)
+              (get :madvise))))
+      (catch Throwable e
+        (log/warnf "madvise unavailable - huge page hints disabled: %s" e)
+        nil))))
+
+
+(defn page-size
+  "System page size in bytes."
+  ^long []
+  (long (.pageSize (unsafe))))
+
+
+(defn- requested-alignment
+  "Byte alignment requested by malloc options or 0 if no specific alignment is required."
+  ^long [options]
+  (let [alignment (when (map? options) (get options :alignment))
+        alignment (long (case alignment
+                          nil 0
+                          :cache-line 64
+                          :page (page-size)
+                          alignment))]
+    (errors/when-not-errorf
+     (and (>= alignment 0) (== 0 (bit-and alignment (dec alignment))))
+     "Alignment (%d) must be a power of two" alignment)
+    (if (get options :huge-pages?)
+      (max alignment (page-size))
+      alignment)))
+
+
+(defn- advise-huge-pages!
+  "Hint to the kernel that the page-aligned interior of [addr, addr+n-bytes) should be
+  backed by transparent huge pages.  Returns true if the hint was applied."
+  [^long addr ^long n-bytes]
+  (let [psize (page-size)
+        sidx (bit-and (+ addr (dec psize)) (- psize))
+        eidx (bit-and (+ addr n-bytes) (- psize))]
+    (if-let [madvise @madvise-fn*]
+      (and (> eidx sidx)
+           (== 0 (long (madvise (Pointer. sidx) (- eidx sidx)
+                                MADV_HUGEPAGE))))
+      false)))
+
+
+(defn alignment
+  "Return the byte alignment guaranteed for this native buffer when it was allocated or 0
+  if no alignment was requested.  See the `:alignment` option of [[malloc]]."
+  ^long [item]
+  (.-alignment (as-native-buffer item)))
+
 
 
 (defn malloc
@@ -892,20 +1325,50 @@
   * `:endianness` - Either `:little-endian` or `:big-endian` - defaults to platform.
   * `:log-level` - one of `#{:debug :trace :info :warn :error :fatal}` or nil if no logging
      is desired.  When enabled allocations and frees will be logged in the same manner as
-     `tech.jna`."
+     `tech.jna`.
+  * `:arena` - [[native-arena]] to allocate from - defaults to [[*native-arena*]].  Arena
+     memory is released when the arena is closed so `:resource-type` is ignored.  Pass
+     nil to force the system allocator.
+  * `:alignment` - Byte alignment of the returned address - a power of two, `:cache-line`
+     (64 bytes) or `:page` (the system page size).  Defaults to whatever the allocator
+     returns.  The alignment is recorded on the buffer - see [[alignment]].
+  * `:huge-pages?` - Linux only - advise the kernel via madvise to back the allocation
+     with transparent huge pages.  Implies at least page alignment and is silently
+     ignored where unsupported."
   (^NativeBuffer [^long n-bytes {:keys [resource-type uninitialized?
                                         endianness log-level
-                                        datatype]
+                                        datatype huge-pages?]
                                  :or {resource-type :auto}
                                  :as dtype-or-opts}]
    (let [endianness (-> (or endianness (dtype-proto/platform-endianness))
                         (validate-endianness))
-         retval (NativeBuffer. (.allocateMemory (unsafe) n-bytes)
-                               n-bytes
-                               :int8
-                               endianness
-                               resource-type nil nil nil)
-         addr (.address retval)
+         ^NativeArena arena (get dtype-or-opts :arena *native-arena*)
+         resource-type (when-not arena resource-type)
+         track-type (resolve-track-type resource-type)
+         alignment (requested-alignment dtype-or-opts)
+         ;;Over-allocate so an aligned address always fits within the allocation.
+         alloc-bytes (if (> alignment 1)
+                       (+ n-bytes (dec alignment))
+                       n-bytes)
+         base (if arena
+                (.allocate arena alloc-bytes)
+                (let [base (.allocateMemory (unsafe) alloc-bytes)]
+                  (NativeMemoryTracker/recordAlloc base alloc-bytes track-type)
+                  base))
+         ;;The root of a buffer's parent chain records how its memory was obtained so
+         ;;free only subtracts allocations that were actually accounted.
+         owner (or arena (TrackedAllocation. base alloc-bytes track-type))
+         addr (if (> alignment 1)
+                (bit-and (+ base (dec alignment)) (- alignment))
+                base)
+         ;;Aligned buffers keep the start of the allocation as their parent so it,
+         ;;rather than the aligned address, is what gets freed.
+         parent (if (== addr base)
+                  owner
+                  (NativeBuffer. base alloc-bytes :int8 endianness
+                                 resource-type nil nil owner 0))
+         retval (NativeBuffer. addr n-bytes :int8 endianness
+                               resource-type nil nil parent alignment)
          dtype (or datatype
                    (when (keyword? dtype-or-opts) dtype-or-opts))]
      (when dtype
@@ -917,13 +1380,16 @@
        (log/logf log-level "Malloc - 0x%016X - %016d bytes" (.address retval) n-bytes))
      (when-not uninitialized?
        (.setMemory (unsafe) addr n-bytes 0))
+     (when huge-pages?
+       (advise-huge-pages! addr n-bytes))
      (when resource-type
        (resource/track retval {:dispose-fn #(do
                                               (when log-level
                                                 (log/logf log-level
                                                           "Free   - 0x%016X - %016d bytes"
                                                           addr n-bytes))
-                                              (free addr))
+                                              (free-allocation base alloc-bytes
+                                                               track-type))
                                :track-type resource-type}))
      (if dtype
        (set-native-datatype retval dtype)
@@ -945,7 +1411,7 @@
       "Attempt to wrap 0 as an address for a native buffer")
      (let [byte-width (casting/numeric-byte-width datatype)]
        (NativeBuffer. address (quot n-bytes byte-width)
-                      datatype endianness #{:gc} nil nil gc-obj))))
+                      datatype endianness #{:gc} nil nil gc-obj 0))))
   (^NativeBuffer [address n-bytes gc-obj]
    (wrap-address address n-bytes :int8 (dtype-proto/platform-endianness)
                  gc-obj))
@@ -1021,13 +1487,9 @@
 
 (defn- unsafe-copy-memory
   [^NativeBuffer src-buf ^NativeBuffer dst-buf]
-  (let [byte-width (casting/numeric-byte-width
-                    (casting/un-alias-datatype (.-datatype src-buf)))]
-    (.copyMemory (unsafe)
-                 nil (.-address src-buf)
-                 nil (.-address dst-buf)
-                 (* (.-n-elems src-buf) byte-width))
-    dst-buf))
+  (copy/unsafe-copy-memory src-buf dst-buf
+                           (casting/un-alias-datatype (.-datatype src-buf))
+                           (.-n-elems src-buf)))
 
 
 (defn alloc-uninitialized
@@ -1049,37 +1511,48 @@
 
 (defn ensure-native
   "If input is already a native buffer and has the same datatype as output,
-  return input.  Else copy input into output and return output."
+  return input.  Else copy input into output and return output.
+
+  If an options map is passed in place of output then input is returned if it is already
+  a native buffer whose address satisfies the `:alignment` (and `:huge-pages?`) options.
+  Else input is copied into a new buffer allocated with options - see [[malloc]]."
   ([input outbuf]
-   (let [inb (when (dtype-proto/convertible-to-native-buffer? input)
-               (dtype-proto/->native-buffer input))
-         ec (long (dtype-proto/ecount outbuf))]
-     (if (and (identical? (dtype-proto/elemwise-datatype input)
-                          (dtype-proto/elemwise-datatype outbuf))
-              (>= (long (dtype-proto/ecount input)) ec)
-              inb)
-       inb
-       (do
-         (if (dtype-proto/convertible-to-reader? input)
-           (hamf/pgroups
-            (dtype-proto/ecount outbuf)
-            (fn [^long sidx ^long eidx]
-              (if (and (== sidx 0) (== eidx ec))
-                (.fillRange ^IMutList outbuf sidx input)
-                (.fillRange ^IMutList outbuf sidx
-                            (dtype-proto/sub-buffer input sidx (- eidx sidx))))))
-           (reduce (hamf-rf/indexed-accum
-                    acc idx v
-                    (.set ^IMutList acc idx v)
-                    acc)
-                   outbuf
-                   input))
-         outbuf))))
+   (if (map? outbuf)
+     (let [inb (as-native-buffer input)
+           req-alignment (requested-alignment outbuf)]
+       (if (and inb
+                (or (== 0 req-alignment)
+                    (== 0 (rem (.-address inb) req-alignment))))
+         inb
+         (copy/copy! input (alloc-uninitialized (dtype-proto/elemwise-datatype input)
+                                                (Casts/longCast (dtype-proto/ecount input))
+                                                outbuf))))
+     (let [inb (when (dtype-proto/convertible-to-native-buffer? input)
+                 (dtype-proto/->native-buffer input))
+           ec (long (dtype-proto/ecount outbuf))]
+       (if (and (identical? (dtype-proto/elemwise-datatype input)
+                            (dtype-proto/elemwise-datatype outbuf))
+                (>= (long (dtype-proto/ecount input)) ec)
+                inb)
+         inb
+         (do
+           (if (dtype-proto/convertible-to-reader? input)
+             (hamf/pgroups
+              (dtype-proto/ecount outbuf)
+              (fn [^long sidx ^long eidx]
+                (if (and (== sidx 0) (== eidx ec))
+                  (.fillRange ^IMutList outbuf sidx input)
+                  (.fillRange ^IMutList outbuf sidx
+                              (dtype-proto/sub-buffer input sidx (- eidx sidx))))))
+             (reduce (hamf-rf/indexed-accum
+                      acc idx v
+                      (.set ^IMutList acc idx v)
+                      acc)
+                     outbuf
+                     input))
+           outbuf)))))
   ([input]
-   (if-let [inb (as-native-buffer input)]
-     inb
-     (copy/copy! input (alloc-uninitialized (dtype-proto/elemwise-datatype input)
-                                            (Casts/longCast (dtype-proto/ecount input)))))))
+   (ensure-native input {})))
 
 
 (defn clone-native
@@ -1109,24 +1582,21 @@
 
 
 (defn ->jvm-array
-  "Returns a java array from a native buffer"
+  "Returns a java array from a native buffer.  Buffers that are not in platform
+  endianness are byte swapped in bulk during the copy."
   [^NativeBuffer nbuf ^long off ^long n-elems]
-  (let [[src ^long src-off] (tech.v3.datatype.protocols/memcpy-info nbuf)
-        src-off (+ src-off off)
-        src-dt (.-datatype nbuf)
+  (let [src-dt (.-datatype nbuf)
         dst-buf   (case src-dt
                     :int8 (hamf/byte-array n-elems)
                     :int16 (hamf/short-array n-elems)
                     :int32 (hamf/int-array n-elems)
                     :int64 (hamf/long-array n-elems)
                     :float32 (hamf/float-array n-elems)
-                    :float64 (hamf/double-array n-elems))
-        [dst ^long dst-off] (tech.v3.datatype.protocols/memcpy-info dst-buf)]
-    (.copyMemory (tech.v3.datatype.copy/unsafe)
-                 src (long src-off)
-                 dst (long dst-off)
-                 (* n-elems (casting/numeric-byte-width src-dt)))
-    dst-buf))
+                    :float64 (hamf/double-array n-elems))]
+    (copy/unsafe-copy-memory (dtype-proto/sub-buffer nbuf off n-elems)
+                             dst-buf src-dt n-elems
+                             (not (identical? (.-endianness nbuf)
+                                              (dtype-proto/platform-endianness))))))
 
 
 (comment
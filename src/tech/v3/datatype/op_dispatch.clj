@@ -4,6 +4,7 @@
             [tech.v3.datatype.binary-op :as binary-op]
             [tech.v3.datatype.casting :as casting]
             [tech.v3.datatype.argtypes :refer [arg-type]]
+            [tech.v3.datatype.graal-native :as graal-native]
             [ham-fisted.lazy-noncaching :as lznc]
             [ham-fisted.language :refer [cond constantly]]
             [ham-fisted.protocols :as hamf-proto]
@@ -14,7 +15,8 @@
             UnaryOperators$LongUnaryOperator UnaryOperators$DoubleUnaryOperator
             UnaryOperators$ObjLongUnaryOperator UnaryOperators$ObjDoubleUnaryOperator]
            [ham_fisted Casts ITypedReduce Transformables$IterableSeq]
-           [java.util Iterator])
+           [java.util Iterator ArrayDeque]
+           [java.util.function Supplier])
   (:refer-clojure :exclude [cond constantly extend extend-protocol extend-type]))
 
 (set! *warn-on-reflection* true)
@@ -108,14 +110,33 @@
           :else ['.readObject (cond (identical? out-dtype :int64) '.unaryObjLong
                                     (identical? out-dtype :float64) '.unaryObjDouble
                                     :else '.unaryObject)
-                 nil])]
+                 nil])
+        ;;Block reads map the op over a block read from the source reader in place
+        block-read (cond
+                     (and (identical? in-dtype :float64) (identical? out-dtype :float64))
+                     `((~'readDoubles [~'rdr ~'sidx ~'dst ~'off ~'len]
+                        (.readDoubles ~'arg-rdr ~'sidx ~'dst ~'off ~'len)
+                        (dotimes [~'i ~'len]
+                          (let [~'j (+ ~'off ~'i)]
+                            (aset ~'dst ~'j (.unaryDouble ~'un-op (aget ~'dst ~'j)))))))
+                     (and (identical? in-dtype :int64) (identical? out-dtype :int64))
+                     `((~'readLongs [~'rdr ~'sidx ~'dst ~'off ~'len]
+                        (.readLongs ~'arg-rdr ~'sidx ~'dst ~'off ~'len)
+                        (dotimes [~'i ~'len]
+                          (let [~'j (+ ~'off ~'i)]
+                            (aset ~'dst ~'j (.unaryLong ~'un-op (aget ~'dst ~'j)))))))
+                     :else nil)]
     `(reify
        dt-proto/POperationalElemwiseDatatype
        (operational-elemwise-datatype [~'this] ~reported-dtype)
+       dt-proto/PElemwiseExpression
+       (elemwise-expression [~'this]
+         {:op ~'un-op :input-space ~in-dtype :output-space ~out-dtype :args [~'arg-rdr]})
        ~basecls
        (elemwiseDatatype [~'rdr] ~reported-dtype)
        (lsize [~'rdr] (.lsize ~'arg-rdr))
        (~read-op [~'rdr ~'idx] (~unary-op ~'un-op (~dot-read-op ~'arg-rdr ~'idx)))
+       ~@block-read
        (reduce [~'rdr ~'rfn ~'acc]
          (let [~'rfn (~rfn-cast ~'rfn)]
            (reduce (fn [~'acc ~(with-meta 'v {:tag rf-v-tag})]
@@ -259,13 +280,84 @@
     (reify UnaryOperator
       (unaryObject [this a] (.binaryObject binary-op a scalar)))))
 
+(def ^:private vectorized-binary-kernels*
+  (delay
+    (graal-native/when-not-defined-graal-native
+     (try
+       (let [kernels ((requiring-resolve 'tech.v3.datatype.functional.vecopt/binary-kernels))
+             scratch (double-array 1)]
+         ;;VecOps only links against the vector module when first used.
+         ((get-in kernels [:float64 :tech.numerics/+]) scratch 0 scratch 0 scratch 0 1)
+         (->> kernels
+              (map (fn [[space op-kernels]]
+                     [space (->> op-kernels
+                                 (map (fn [[op-name kernel]]
+                                        [(get binary-op/builtin-ops op-name) kernel]))
+                                 (into {}))]))
+              (into {})))
+       (catch Throwable _e nil)))))
+
+(defn- vectorized-binary-kernel
+  "Elementwise array kernel for builtin op in op-space :float64 or :int64 or nil."
+  [op op-space]
+  (get (get @vectorized-binary-kernels* op-space) op))
+
+(def ^:private ^:const scratch-block-len 1024)
+
+(defn- scratch-pool
+  ^ThreadLocal []
+  (ThreadLocal/withInitial (reify Supplier (get [_this] (ArrayDeque.)))))
+
+;;Per-thread pools of fixed size scratch blocks for binary block reads.  A pool rather
+;;than a single block as reading the right hand side of a nested binary reader needs a
+;;block of its own while the outer read still holds one.
+(defonce ^:private ^ThreadLocal double-scratch-blocks (scratch-pool))
+(defonce ^:private ^ThreadLocal long-scratch-blocks (scratch-pool))
+
+(defn- binary-block-read
+  "Block read method of binary-op-reader - reads the left side into dst and the right
+  side into a pooled scratch block, a block at a time, then combines them in place
+  with a vectorized kernel for builtin ops when one is available."
+  [method pool ary-fn ary-tag bin-op]
+  (let [tmp (with-meta 'tmp {:tag ary-tag})
+        pool-sym (with-meta 'pool {:tag 'java.util.ArrayDeque})]
+    `((~method [~'this ~'sidx ~'dst ~'off ~'len]
+       (let [~pool-sym (.get ~pool)
+             ~tmp (or (.poll ~'pool) (~ary-fn scratch-block-len))]
+         (try
+           (loop [~'done 0]
+             (when (< ~'done ~'len)
+               (let [~'n (min scratch-block-len (- ~'len ~'done))
+                     ~'o (+ ~'off ~'done)]
+                 (. ~'l ~method (+ ~'sidx ~'done) ~'dst (unchecked-int ~'o) (unchecked-int ~'n))
+                 (. ~'r ~method (+ ~'sidx ~'done) ~'tmp 0 (unchecked-int ~'n))
+                 (if ~'kernel
+                   (~'kernel ~'dst ~'o ~'tmp 0 ~'dst ~'o ~'n)
+                   (dotimes [~'i ~'n]
+                     (let [~'j (+ ~'o ~'i)]
+                       (aset ~'dst ~'j (~bin-op ~'op (aget ~'dst ~'j) (aget ~'tmp ~'i))))))
+                 (recur (+ ~'done ~'n)))))
+           (finally
+             (.push ~'pool ~'tmp))))))))
+
 (defmacro ^:private binary-op-reader
   ([dtype basecls bin-op read-op]
-   (let [dot-read-op (symbol (str "." read-op))]
-     `(reify ~basecls
+   (let [dot-read-op (symbol (str "." read-op))
+         block-read (case read-op
+                      readDouble (binary-block-read 'readDoubles `double-scratch-blocks
+                                                    `double-array 'doubles bin-op)
+                      readLong (binary-block-read 'readLongs `long-scratch-blocks
+                                                  `long-array 'longs bin-op)
+                      nil)]
+     `(reify
+        dt-proto/PElemwiseExpression
+        (elemwise-expression [~'this]
+          {:op ~'op :input-space ~'in-space :output-space ~'out-space :args [~'l ~'r]})
+        ~basecls
         (elemwiseDatatype [~'this] ~dtype)
         (lsize [~'this] ~'ne)
         (~read-op [~'this ~'idx] (~bin-op ~'op (~dot-read-op ~'l ~'idx) (~dot-read-op ~'r ~'idx)))
+        ~@block-read
         (subBuffer [~'this ~'sidx ~'eidx]
           (if (and (== ~'sidx 0) (== ~'eidx (.lsize ~'this)))
             ~'this
@@ -280,6 +372,8 @@
         ^Buffer l (dt-proto/elemwise-reader-cast pl in-space)
         ^Buffer r (dt-proto/elemwise-reader-cast pr in-space)
         ne (min (.lsize l) (.lsize r))
+        kernel (when (casting/numeric-type? in-space)
+                 (vectorized-binary-kernel op out-space))
         rv (cond
              (and (casting/numeric-type? in-space) (identical? out-space :int64))
              (binary-op-reader reader-dtype LongReader .binaryLong readLong)
@@ -188,6 +188,22 @@ Note that this makes no mention of indianness; buffers are in the format of the
   (op-name [item]))
 
 
+(defprotocol PBooleanReaderIndexes
+  "Boolean readers that can produce the indexes of their true values faster than
+  testing each element, such as comparisons of dense numeric data."
+  (bool-reader-indexes [rdr options]
+    "Indexes of the true values of rdr in the :storage-type of options or nil if the
+    generic pathway should be used."))
+
+
+(defprotocol PElemwiseExpression
+  "Elementwise op readers expose the operation they apply so chains of them can be
+  compiled into a single reader."
+  (elemwise-expression [rdr]
+    "Map of :op, :input-space, :output-space and the argument readers :args or nil if
+    rdr is not an elementwise operation."))
+
+
 (defprotocol PConstantTimeMinMax
   (has-constant-time-min-max? [item])
   (constant-time-min [item])
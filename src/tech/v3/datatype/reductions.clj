@@ -5,6 +5,7 @@
             [tech.v3.parallel.for :as parallel-for]
             [tech.v3.datatype.casting :as casting]
             [tech.v3.datatype.errors :as errors]
+            [tech.v3.datatype.graal-native :as graal-native]
             [ham-fisted.lazy-noncaching :as lznc]
             [ham-fisted.api :as hamf]
             [ham-fisted.reduce :as hamf-rf]
@@ -187,6 +188,30 @@
        (Casts/longCast)))
 
 
+(def ^:private vectorized-reductions*
+  (delay
+    (graal-native/when-not-defined-graal-native
+     (try
+       (let [reductions ((requiring-resolve
+                          'tech.v3.datatype.functional.vecopt/reductions))]
+         ;;VecOps only links against the vector module when first used.
+         ((:sum reductions) (float-array 1))
+         reductions)
+       (catch Throwable _e nil)))))
+
+
+(defn vectorized-reduce
+  "Reduce dense float64, float32, int64 or int32 array or native data using the jdk
+  vector api kernels in tech.v3.datatype.VecOps.  reduction is one of :sum, :min, :max
+  or :count-nonzero.  Float data is reduced in double space ignoring NaN values and
+  int data is reduced in long space.  Returns nil if the vector module is unavailable
+  or the data is neither a dense array nor a native buffer so callers can fall back to
+  the generic path."
+  [reduction data]
+  (when-let [reduce-fn (get @vectorized-reductions* reduction)]
+    (reduce-fn data)))
+
+
 (defn commutative-binary-reduce
   [^BinaryOperator op data]
   (let [op-dtype (casting/simple-operation-space (dtype-base/elemwise-datatype data)
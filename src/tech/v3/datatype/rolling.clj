@@ -5,10 +5,17 @@
             [tech.v3.datatype.casting :as casting]
             [tech.v3.datatype.packing :as packing]
             [tech.v3.datatype.binary-op :as binary-op]
-            [tech.v3.datatype.emap :as emap])
+            [tech.v3.datatype.emap :as emap]
+            [tech.v3.datatype.array-buffer :as abuf]
+            [tech.v3.datatype.statistics :as stats]
+            [tech.v3.datatype.errors :as errors])
   (:import [tech.v3.datatype Buffer LongReader DoubleReader ObjectReader
-            VariableRollingIterBase]
-           [java.util Iterator]))
+            VariableRollingIterBase RollingWindows RollingWindows$Padded
+            RollingWindows$FixedBounds RollingWindows$Moments RollingWindows$Extreme
+            RollingWindows$Quantile RollingWindows$RangeBounds]
+           [it.unimi.dsi.fastutil.longs LongArrayList]
+           [java.util Iterator]
+           [java.util.function Supplier]))
 
 
 (set! *warn-on-reflection* true)
@@ -108,6 +115,16 @@ tech.v3.datatype.rolling> (window-ranges->window-reader
                                left-pad-val right-pad-val .readObject))))))))))
 
 
+(defn- window-padding
+  "Offset of a fixed window's first element from the index it is positioned at."
+  ^long [window-size relative-window-position]
+  (let [window-size (long window-size)]
+    (case relative-window-position
+      :center (- (quot window-size 2))
+      :left (- (dec window-size))
+      :right 0)))
+
+
 (defn fixed-rolling-window-ranges
   "Return a reader of window-ranges of n-elems length.
 
@@ -124,24 +141,139 @@ tech.v3.datatype.rolling> (fixed-rolling-window-ranges 10 3 :right)
   [n-elems window-size relative-window-position]
   (let [n-elems (long n-elems)
         window-size (long window-size)
-        padding (long (case relative-window-position
-                        :center (- (quot (long window-size) 2))
-                        :left (- (dec window-size))
-                        :right 0))]
+        padding (window-padding window-size relative-window-position)]
     (reify ObjectReader
       (lsize [this] n-elems)
       (readObject [this idx]
         (WindowRange. (+ idx padding) window-size)))))
 
 
+(defonce ^{:doc "Incremental rolling reductions over at least this many windows are split
+  across threads when `:parallel?` is true."}
+  parallel-rolling-min-elems* (atom 65536))
+
+
+(def ^:private incremental-reducers
+  {:sum #(RollingWindows$Moments. RollingWindows/SUM)
+   :mean #(RollingWindows$Moments. RollingWindows/MEAN)
+   :variance #(RollingWindows$Moments. RollingWindows/VARIANCE)
+   :standard-deviation #(RollingWindows$Moments. RollingWindows/STANDARD_DEVIATION)
+   :min #(RollingWindows$Extreme. false)
+   :max #(RollingWindows$Extreme. true)
+   ;;upper middle value without interpolation as stats/median
+   :median #(RollingWindows$Quantile. 50.0 nil)})
+
+
+(def ^:private reduction-fn->reducer
+  "Reduction fns that compute the same value as an incremental reducer.  Resolved on
+  first use as the functional namespace requires this one.  dfn/min and dfn/max are
+  elementwise so only the statistics versions are included."
+  (delay
+    (->> '{tech.v3.datatype.statistics/sum :sum
+           tech.v3.datatype.statistics/mean :mean
+           tech.v3.datatype.statistics/variance :variance
+           tech.v3.datatype.statistics/standard-deviation :standard-deviation
+           tech.v3.datatype.statistics/min :min
+           tech.v3.datatype.statistics/max :max
+           tech.v3.datatype.statistics/median :median
+           tech.v3.datatype.functional/sum :sum
+           tech.v3.datatype.functional/mean :mean
+           tech.v3.datatype.functional/variance :variance
+           tech.v3.datatype.functional/standard-deviation :standard-deviation
+           tech.v3.datatype.functional/median :median}
+         (into {} (map (fn [[fn-sym reducer]]
+                         [(deref (requiring-resolve fn-sym)) reducer]))))))
+
+
+(defn- incremental-reducer
+  "The keyword or percentile map reducer window-fn is or computes, else nil."
+  [window-fn]
+  (if (or (keyword? window-fn) (map? window-fn))
+    window-fn
+    (get @reduction-fn->reducer window-fn)))
+
+
+(defn- ->reducer-fn
+  "Reducers are named by keyword, are one of the reduction fns of
+  `reduction-fn->reducer` or are a percentile given as a map of `:percentile`, in
+  (0,100], and an optional `:estimation-type`.  Returns a fn creating new reducers."
+  [reducer]
+  (if (map? reducer)
+    (let [pct (double (:percentile reducer))
+          estimation-type (stats/options->percentile-estimation-strategy reducer)]
+      ;;validate eagerly
+      (RollingWindows$Quantile. pct estimation-type)
+      #(RollingWindows$Quantile. pct estimation-type))
+    (if-let [reducer-fn (get incremental-reducers (incremental-reducer reducer))]
+      reducer-fn
+      (errors/throwf "Unrecognized rolling reducer %s - expected a percentile map or one of %s"
+                     reducer (vec (keys incremental-reducers))))))
+
+
+(defn- ->nan-strategy
+  "NaN strategies as for [[tech.v3.datatype.statistics/descriptive-statistics]]."
+  ^long [nan-strategy]
+  (case (or nan-strategy :remove)
+    :remove RollingWindows/NAN_REMOVE
+    :keep RollingWindows/NAN_KEEP
+    :exception RollingWindows/NAN_EXCEPTION
+    (errors/throwf "Unrecognized nan-strategy %s - expected one of %s"
+                   nan-strategy [:remove :keep :exception])))
+
+
+(defn- reduce-windows
+  "Reduce n-windows windows of bounds into a float64 buffer."
+  [^RollingWindows$Padded padded bounds n-windows reducer-fn {:keys [parallel?
+                                                                     nan-strategy]
+                                                              :or {parallel? true}}]
+  (let [rv (double-array n-windows)]
+    (RollingWindows/parallelReduce padded bounds (int n-windows)
+                                   (reify Supplier
+                                     (get [_this] (reducer-fn)))
+                                   (int (->nan-strategy nan-strategy))
+                                   rv
+                                   (if parallel?
+                                     (long @parallel-rolling-min-elems*)
+                                     Long/MAX_VALUE))
+    (abuf/array-buffer rv)))
+
+
+(defn- ->padded
+  "Source data as doubles padded according to edge-mode."
+  ^RollingWindows$Padded [item edge-mode]
+  (let [^Buffer src (dtype-base/->reader item :float64)
+        n-elems (.lsize src)]
+    (case edge-mode
+      :zero (RollingWindows$Padded. src 0.0 0.0)
+      :clamp (RollingWindows$Padded. src
+                                     (if (pos? n-elems) (.readDouble src 0) 0.0)
+                                     (if (pos? n-elems) (.readDouble src (dec n-elems)) 0.0)))))
+
+
+(defn- incremental-rolling-window
+  [item window-size relative-window-position edge-mode reducer options]
+  (let [window-size (long window-size)
+        _ (errors/when-not-errorf (pos? window-size)
+                                  "Window size must be positive, got %d" window-size)
+        reducer-fn (->reducer-fn reducer)
+        padded (->padded item edge-mode)]
+    (reduce-windows padded
+                    (RollingWindows$FixedBounds.
+                     window-size (window-padding window-size relative-window-position))
+                    (.-nElems padded) reducer-fn options)))
+
+
 (defn- fixed-reader-rolling-window
   [item window-size relative-window-position edge-mode window-fn options]
-  (let [n-elems (dtype-base/ecount item)]
-    (->> (window-ranges->window-reader
-          item (fixed-rolling-window-ranges n-elems window-size
-                                            relative-window-position)
-          edge-mode)
-         (emap/emap window-fn (:datatype options)))))
+  (if-let [reducer (incremental-reducer window-fn)]
+    (incremental-rolling-window item window-size relative-window-position edge-mode
+                                reducer options)
+    (let [n-elems (dtype-base/ecount item)]
+      (->> (window-ranges->window-reader
+            item (fixed-rolling-window-ranges n-elems window-size
+                                              relative-window-position)
+            edge-mode)
+           (emap/emap window-fn (:datatype options))))))
 
 
 (defn fixed-rolling-window
@@ -160,6 +292,24 @@ tech.v3.datatype.rolling> (fixed-rolling-window-ranges 10 3 :right)
   off the edge are zero for numeric types or nil for object types or `:clamp` - in
   which case window values off the edge of the data are bound to the first or last
   values respectively.
+  * `:nan-strategy` - Defaults to `:remove` - when window-fn is computed incrementally
+  one of `:remove`, `:keep` or `:exception`.
+  * `:parallel?` - Defaults to true - when window-fn is computed incrementally split
+  the windows into chunks reduced concurrently once there are at least
+  `@parallel-rolling-min-elems*` of them.
+
+  window-fn may also be one of `:sum`, `:mean`, `:variance`, `:standard-deviation`,
+  `:min`, `:max`, `:median` or a percentile map such as `{:percentile 95}`.  These are
+  computed eagerly into a float64 buffer by updating the reduction as values enter and
+  leave the window - O(n) time for all but the percentiles which take O(n log w).
+  `dfn/sum`, `dfn/mean`, `dfn/variance`, `dfn/standard-deviation`, `dfn/median`, their
+  `tech.v3.datatype.statistics` equivalents and `stats/min` and `stats/max` are
+  recognized and computed the same way, equal to within floating point rounding.
+  Only these exact functions are recognized - wrapping one in another fn disables it.
+  NaN values are removed from the windows as `dfn/sum` and friends do unless
+  `:nan-strategy` is `:keep` or `:exception`.  See
+  [[tech.v3.datatype.rolling/reduce-window-ranges]].
+  Results of other window-fns are lazy; `dtype/clone` materializes them in parallel.
 
 
   Example (all results are same length):
@@ -177,6 +327,8 @@ user> (rolling/fixed-rolling-window (range 20) 5 dfn/sum {:relative-window-posit
 [3 6 10 15 20 25 30 35 40 45 50 55 60 65 70 75 80 85 89 92]
 user> (rolling/fixed-rolling-window (range 20) 5 dfn/sum {:relative-window-position :right})
 [10 15 20 25 30 35 40 45 50 55 60 65 70 75 80 85 89 92 94 95]
+user> (rolling/fixed-rolling-window (range 20) 5 :max {:relative-window-position :left})
+[0.0 1.0 2.0 3.0 4.0 5.0 6.0 7.0 8.0 9.0 10.0 11.0 12.0 13.0 14.0 15.0 16.0 17.0 18.0 19.0]
 user>
 ```"
   ([x window-size window-fn {:keys [relative-window-position
@@ -347,3 +499,71 @@ tech.v3.datatype.rolling> (vec (variable-rolling-window-ranges
       (lsize [this] n-elems)
       (readObject [this idx]
         (WindowRange. 0 (inc idx))))))
+
+
+(defn- window-ranges->bounds
+  ^RollingWindows$RangeBounds [win-ranges]
+  (let [starts (LongArrayList.)
+        ends (LongArrayList.)]
+    (doseq [win-range (dtype-base/->iterable win-ranges)]
+      (if (instance? WindowRange win-range)
+        (let [^WindowRange win-range win-range
+              start-idx (.-start-idx win-range)]
+          (.add starts start-idx)
+          (.add ends (+ start-idx (.-n-elems win-range))))
+        (let [rdr (dtype-base/->reader win-range)
+              n-elems (.lsize rdr)
+              ;;empty windows sit at the end of the previous window
+              start-idx (if (pos? n-elems)
+                          (.readLong rdr 0)
+                          (if (.isEmpty ends) 0 (.getLong ends (dec (.size ends)))))]
+          (.add starts start-idx)
+          (.add ends (+ start-idx n-elems)))))
+    (RollingWindows$RangeBounds. (.toLongArray starts) (.toLongArray ends))))
+
+
+(defn reduce-window-ranges
+  "Reduce src-data over each window of win-ranges returning a float64 buffer with one
+  value per window.  Window ranges are those of [[fixed-rolling-window-ranges]] or
+  [[variable-rolling-window-ranges]]; successive windows must not start or end before
+  the previous one.  Rather than reducing every window the reducer is updated as
+  values enter and leave the window so the cost is independent of window size.
+
+  reducer is one of `:sum`, `:mean`, `:variance`, `:standard-deviation`, `:min`,
+  `:max`, `:median` or a map of `:percentile`, in (0,100], and optionally
+  `:estimation-type` as in [[tech.v3.datatype.statistics/percentiles]].  `:median` is
+  the upper middle value as returned by [[tech.v3.datatype.statistics/median]].  Min and max
+  updates are O(1) amortized and percentile updates are O(log w) for windows of w
+  values.
+
+  Options:
+
+  * `:edge-mode` - Defaults to `:clamp` - either `:zero` or `:clamp`.  Controls the
+    value of window positions off the edge of the data as
+    in [[window-ranges->window-reader]].
+  * `:parallel?` - Defaults to true - reduce contiguous chunks of windows concurrently
+    once there are at least `@parallel-rolling-min-elems*` windows.  Each chunk
+    re-reads its first window in full.  The window ranges themselves are still
+    realized on the calling thread.
+  * `:nan-strategy` - Defaults to `:remove` - one of `:remove`, `:keep` or
+    `:exception`.  With `:keep` windows containing NaN produce NaN.
+
+  Example:
+
+```clojure
+tech.v3.datatype.rolling> (reduce-window-ranges [1 5 2 8 3 9 4]
+                                                (variable-rolling-window-ranges
+                                                 [0 1 2 5 6 7 10] 3)
+                                                :median)
+#array-buffer<float64>[7]
+[2.000, 5.000, 2.000, 8.000, 9.000, 9.000, 4.000]
+```"
+  ([src-data win-ranges reducer {:keys [edge-mode]
+                                 :or {edge-mode :clamp}
+                                 :as options}]
+   (let [reducer-fn (->reducer-fn reducer)
+         bounds (window-ranges->bounds win-ranges)]
+     (reduce-windows (->padded src-data edge-mode) bounds (.size bounds) reducer-fn
+                     options)))
+  ([src-data win-ranges reducer]
+   (reduce-window-ranges src-data win-ranges reducer nil)))
@@ -18,9 +18,13 @@
             Buffer
             DoubleConsumers$MinMaxSum
             DoubleConsumers$Moments
+            DoubleConsumers$WelfordMoments
+            Covariance
+            QuickSelect
+            TDigest
             UnaryPredicates$DoubleUnaryPredicate]
-           [org.apache.commons.math3.stat.descriptive.rank Percentile
-            Percentile$EstimationType]
+           [tech.v3.datatype.array_buffer ArrayBuffer]
+           [org.apache.commons.math3.stat.descriptive.rank Percentile$EstimationType]
            [org.apache.commons.math3.stat.ranking NaNStrategy]
            [org.apache.commons.math3.stat.correlation
             KendallsCorrelation PearsonsCorrelation SpearmansCorrelation]
@@ -161,6 +165,97 @@
   (hamf/mode (or (dtype-base/as-reader data) data)))
 
 
+(defn options->percentile-estimation-strategy
+  "The commons-math percentile estimation type named by the `:estimation-type` option,
+  `:r1` through `:r9` or `:legacy`, the default."
+  ^Percentile$EstimationType [{:keys [estimation-type]}]
+  (case estimation-type
+    :r1 Percentile$EstimationType/R_1
+    :r2 Percentile$EstimationType/R_2
+    :r3 Percentile$EstimationType/R_3
+    :r4 Percentile$EstimationType/R_4
+    :r5 Percentile$EstimationType/R_5
+    :r6 Percentile$EstimationType/R_6
+    :r7 Percentile$EstimationType/R_7
+    :r8 Percentile$EstimationType/R_8
+    :r9 Percentile$EstimationType/R_9
+    Percentile$EstimationType/LEGACY))
+
+
+(defonce ^{:doc "Partitions of at least this many elements are partitioned in parallel
+  when computing exact percentiles."}
+  parallel-select-min-elems* (atom (* 1024 1024)))
+
+
+(defn- parallel-select-min-elems
+  ^long [options]
+  (if (and (get options :parallel? true)
+           (> (.availableProcessors (Runtime/getRuntime)) 1))
+    (long @parallel-select-min-elems*)
+    Long/MAX_VALUE))
+
+
+(defn- selection-array-buffer
+  "Array buffer of x that may be reordered - selection partitions its input in place."
+  ^ArrayBuffer [x options]
+  (let [ary-buf (dtype-cmc/->array-buffer :float64 options x)
+        src-buf (abuf/as-array-buffer x)]
+    (if (and src-buf (identical? (.ary-data ary-buf) (.ary-data src-buf)))
+      (abuf/array-buffer (Arrays/copyOfRange ^doubles (.ary-data ary-buf)
+                                             (.offset ary-buf)
+                                             (+ (.offset ary-buf) (.n-elems ary-buf))))
+      ary-buf)))
+
+
+(defn quantile-sketch
+  "Build a mergeable t-digest sketch of x in a single parallel pass.  Works on any
+  reader including native and lazy ones as the data is never copied.  Query the
+  sketch with [[sketch-percentiles]], combine sketches of separate datasets with
+  [[merge-sketches]] and store them with [[sketch->bytes]].  Sketches are not
+  thread-safe - even queries compact the sketch in place - so don't share one between
+  threads without locking.
+
+  Options:
+  * `:compression` - accuracy/size tradeoff, defaults to 100.  Larger values keep more
+     centroids and produce more accurate quantiles especially near the median.
+  * `:nan-strategy` - defaults to :remove, one of [:keep :remove :exception].  NaN
+     values are never added to the sketch."
+  (^TDigest [x {:keys [compression] :as options}]
+   (let [compression (double (or compression TDigest/DEFAULT_COMPRESSION))
+         rdr (->> (or (dtype-base/as-reader x :float64) x)
+                  (hamf/apply-nan-strategy options))]
+     (hamf-rf/preduce-reducer
+      (hamf-rf/double-consumer-reducer #(TDigest. compression))
+      rdr)))
+  (^TDigest [x]
+   (quantile-sketch x nil)))
+
+
+(defn sketch-percentiles
+  "Reader of approximate percentile values, one for each percentage (0-100) passed in."
+  ^Buffer [^TDigest sketch percentages]
+  (dtype-base/->reader (mapv #(.quantile sketch (/ (double %) 100.0)) percentages)))
+
+
+(defn merge-sketches
+  "Merge quantile sketches into a new sketch describing all of their data."
+  ^TDigest [sketches]
+  (reduce (fn [^TDigest lhs ^TDigest rhs] (.merge lhs rhs)) sketches))
+
+
+(defn sketch->bytes
+  "Serialize a quantile sketch into a byte array."
+  ^bytes [^TDigest sketch]
+  (.toBytes sketch))
+
+
+(defn bytes->sketch
+  "Deserialize a quantile sketch serialized with [[sketch->bytes]].  Throws
+  IllegalArgumentException when data is truncated or corrupt."
+  ^TDigest [^bytes data]
+  (TDigest/fromBytes data))
+
+
 (defn descriptive-statistics
   "Calculate a set of descriptive statistics on a single reader.
 
@@ -172,8 +267,11 @@
     - `:nan-strategy` - defaults to :remove, one of
     [:keep :remove :exception]. The fastest option is :keep but this
     may result in your results having NaN's in them.  You can also pass
-  in a double predicate to filter custom double values."
-  ([x stats-names stats-data {:keys [nan-strategy]
+  in a double predicate to filter custom double values.
+    - `:approximate?` - compute :median, :quartile-1 and :quartile-3 from a
+    [[quantile-sketch]] instead of copying and sorting the data.  `:compression`
+    is passed to the sketch."
+  ([x stats-names stats-data {:keys [nan-strategy approximate?]
                               :or {nan-strategy :remove}
                               :as options}]
    (let [stats-set (hamf/immut-set stats-names)
@@ -188,16 +286,12 @@
                   (hamf/apply-nan-strategy options))
          ;;update options to reflect filtering
          options (assoc options :nan-strategy :keep)
-         rdr (->> (if (or median? percentile?)
-                    (let [darray (dtype-cmc/->array-buffer :float64 rdr)]
-                      ;;arrays/sort is blindingly fast.
-                      (when median?
-                        (Arrays/sort ^doubles (.ary-data darray)
-                                     (.offset darray)
-                                     (+ (.offset darray)
-                                        (.n-elems darray))))
-                      darray)
-                    rdr))
+         sketch (when (and approximate? (or median? percentile?))
+                  (quantile-sketch rdr options))
+         ;;order statistics are selected in O(n) which partitions the data in place.
+         rdr (if (and (or median? percentile?) (not sketch))
+               (selection-array-buffer rdr nil)
+               rdr)
          stats-data (merge
                      (cond
                        (or (hamf/empty? x)
@@ -207,16 +301,30 @@
                         :max ##NaN
                         :median ##NaN
                         :mode nil}
+                       sketch
+                       (let [^TDigest sketch sketch]
+                         (merge {:min (.min sketch)
+                                 :max (.max sketch)
+                                 :n-elems (long (.totalWeight sketch))}
+                                (when median?
+                                  {:median (.quantile sketch 0.5)})
+                                (when (:quartile-1 percentile-set)
+                                  {:quartile-1 (.quantile sketch 0.25)})
+                                (when (:quartile-3 percentile-set)
+                                  {:quartile-3 (.quantile sketch 0.75)})))
                        (and (or median? percentile?) (not (hamf/empty? rdr)))
-                       (let [n-elems (dtype-base/ecount rdr)]
-                         (if median?
-                           {:min (rdr 0)
-                            :max (rdr -1)
-                            :median (rdr (quot n-elems 2))
-                            :n-elems n-elems}
-                           {:min (rdr 0)
-                            :max (rdr -1)
-                            :n-elems n-elems})))
+                       (let [^ArrayBuffer ary-buf rdr
+                             n-elems (.n-elems ary-buf)
+                             [min-val max-val median-val]
+                             (QuickSelect/orderStatistics
+                              ^doubles (.ary-data ary-buf) (.offset ary-buf) n-elems
+                              (int-array [0 (dec n-elems) (quot n-elems 2)])
+                              (parallel-select-min-elems options))]
+                         (merge {:min min-val
+                                 :max max-val
+                                 :n-elems n-elems}
+                                (when median?
+                                  {:median median-val}))))
                      stats-data)
          stats-data (if mode?
                       (assoc stats-data :mode (mode x))
@@ -225,17 +333,28 @@
          calculate-stats-set (set/difference stats-set provided-keys)
          dependency-set (apply set/reduce-union (map node-dependencies calculate-stats-set))
          required-dependency-set (set/difference dependency-set provided-keys)
-         stats-data (if (not (empty? (set/intersection required-dependency-set
-                                                       #{:sum :min :max :n-elems})))
+         moments? (not (empty? (set/intersection required-dependency-set
+                                                 #{:moment-2 :moment-3 :moment-4})))
+         stats-data (cond
+                      ;;Moments without a known mean are accumulated in the same parallel
+                      ;;pass as the sum, min and max.
+                      (and moments? (not (contains? stats-data :mean)))
+                      (merge stats-data (hamf-rf/preduce-reducer
+                                         (hamf-rf/double-consumer-reducer
+                                          #(DoubleConsumers$WelfordMoments.))
+                                         rdr))
+                      (not (empty? (set/intersection required-dependency-set
+                                                     #{:sum :min :max :n-elems})))
                       (merge stats-data (hamf-rf/preduce-reducer (DoubleConsumers$MinMaxSum.)
                                                               rdr))
+                      :else
                       stats-data)
-         stats-data (if (required-dependency-set :mean)
+         stats-data (if (and (required-dependency-set :mean)
+                             (not (contains? stats-data :mean)))
                       (assoc stats-data :mean (/ (double (stats-data :sum))
                                                  (double (stats-data :n-elems))))
                       stats-data)
-         stats-data (if (not (empty? (set/intersection required-dependency-set
-                                                       #{:moment-2 :moment-3 :moment-4})))
+         stats-data (if (and moments? (not (contains? stats-data :moment-2)))
                       (merge stats-data (hamf-rf/preduce-reducer
                                          (hamf-rf/double-consumer-reducer
                                           #(DoubleConsumers$Moments. (:mean stats-data)))
@@ -249,16 +368,18 @@
                             ;;precalculated stats.
                             (set/intersection (hamf-map/keyset stats-tower)
                                               required-dependency-set))
-         stats-data (if percentile?
-                      (let [p (Percentile.)
-                            ary-buf (abuf/as-array-buffer rdr)]
-                        (.setData p ^doubles (.ary-data ary-buf) (.offset ary-buf)
-                                  (.n-elems ary-buf))
+         stats-data (if (and percentile? (not sketch))
+                      (let [^ArrayBuffer ary-buf rdr
+                            [q1 q3] (QuickSelect/percentiles
+                                     ^doubles (.ary-data ary-buf) (.offset ary-buf)
+                                     (.n-elems ary-buf) (double-array [25.0 75.0])
+                                     (options->percentile-estimation-strategy options)
+                                     (parallel-select-min-elems options))]
                         (merge stats-data
                                (when (:quartile-1 percentile-set)
-                                 {:quartile-1 (.evaluate p 25.0)})
+                                 {:quartile-1 q1})
                                (when (:quartile-3 percentile-set)
-                                 {:quartile-3 (.evaluate p 75.0)})))
+                                 {:quartile-3 q3})))
                       stats-data)]
      (select-keys stats-data (-> (set/union stats-set percentile-set)
                                  (set/union (when mode? #{:mode}))))))
@@ -302,7 +423,10 @@
   "Double sum of data using
   [Kahan compensated summation](https://en.wikipedia.org/wiki/Kahan_summation_algorithm)."
   (^double [x options]
-   (dtype-reductions/double-summation options x))
+   (if-let [rv (when (contains? #{nil :remove} (get options :nan-strategy))
+                 (dtype-reductions/vectorized-reduce :sum x))]
+     (double rv)
+     (dtype-reductions/double-summation options x)))
   (^double [x]
    (sum x nil)))
 
@@ -391,36 +515,109 @@
    (kendalls-correlation x y nil)))
 
 
-(defn- options->percentile-estimation-strategy
-  ""
-  ^Percentile$EstimationType [{:keys [estimation-type]}]
-  (case estimation-type
-    :r1 Percentile$EstimationType/R_1
-    :r2 Percentile$EstimationType/R_2
-    :r3 Percentile$EstimationType/R_3
-    :r4 Percentile$EstimationType/R_4
-    :r5 Percentile$EstimationType/R_5
-    :r6 Percentile$EstimationType/R_6
-    :r7 Percentile$EstimationType/R_7
-    :r8 Percentile$EstimationType/R_8
-    :r9 Percentile$EstimationType/R_9
-    Percentile$EstimationType/LEGACY))
+(defn- column-arrays
+  "Double array copies of columns that may be modified in place."
+  [columns options]
+  (->> columns
+       (hamf/pmap (fn [col]
+                    (let [ary (dtype-cmc/->double-array options col)
+                          src-buf (abuf/as-array-buffer col)]
+                      (if (or (identical? ary col)
+                              (and src-buf (identical? ary (.ary-data src-buf))))
+                        (aclone ary)
+                        ary))))
+       (into-array (Class/forName "[D"))))
+
+
+(defn- matrix->rows
+  [^"[[D" matrix]
+  (mapv dtype-base/->reader matrix))
+
+
+(defn covariance-matrix
+  "Sample covariance matrix of a sequence of equal length columns.  Each column is
+  copied and centered once and all cross products are accumulated in one blocked,
+  parallel pass.  Returns a vector of rows, each a reader of doubles.
+
+  Options are passed to the conversion of each column to a double array."
+  ([columns options]
+   (let [cols (column-arrays columns options)]
+     (Covariance/center cols)
+     (matrix->rows (Covariance/covariance cols))))
+  ([columns]
+   (covariance-matrix columns nil)))
+
+
+(defn correlation-matrix
+  "Correlation matrix of a sequence of equal length columns.  Returns a vector of
+  rows, each a reader of doubles, matching the pairwise correlation functions.
+
+  Options:
+  * `:correlation-type` - one of `:pearson` (default), `:spearman` or `:kendall`.
+     Pearson and Spearman are computed from one blocked, parallel covariance pass;
+     Spearman ranks each column once beforehand.  Kendall is computed pairwise in
+     parallel from columns copied once.
+
+  Remaining options are passed to the conversion of each column to a double array."
+  ([columns {:keys [correlation-type]
+             :or {correlation-type :pearson}
+             :as options}]
+   (let [^"[[D" cols (column-arrays columns options)]
+     (case correlation-type
+       :pearson
+       (do (Covariance/center cols)
+           (matrix->rows (Covariance/correlation (Covariance/covariance cols))))
+       :spearman
+       (do (Covariance/rank cols)
+           (Covariance/center cols)
+           (matrix->rows (Covariance/correlation (Covariance/covariance cols))))
+       :kendall
+       (let [n-cols (alength cols)
+             rv (make-array Double/TYPE n-cols n-cols)
+             kendall (KendallsCorrelation.)]
+         (->> (for [i (range n-cols)
+                    j (range i n-cols)]
+                [i j])
+              (hamf/pmap (fn [[i j]]
+                           (let [i (long i)
+                                 j (long j)
+                                 corr (.correlation kendall
+                                                    ^doubles (aget cols i)
+                                                    ^doubles (aget cols j))]
+                             (aset ^doubles (aget ^"[[D" rv i) j corr)
+                             (aset ^doubles (aget ^"[[D" rv j) i corr))))
+              (dorun))
+         (matrix->rows rv))
+       (throw (Exception. (format "Unrecognized correlation type: %s"
+                                  correlation-type))))))
+  ([columns]
+   (correlation-matrix columns nil)))
 
 
 (defn percentiles
   "Create a reader of percentile values, one for each percentage passed in.
   Estimation types are in the set of #{:r1,r2...legacy} and are described
   here: https://commons.apache.org/proper/commons-math/javadocs/api-3.3/index.html.
+  Exact percentiles are found by selection in O(n) rather than by sorting; pass
+  `:parallel? false` to keep the selection on the calling thread.
+
+  NaN values are removed before estimation as commons-math's Percentile does by
+  default.  nan-strategy can be one of [:keep :remove :exception]; :exception throws
+  on NaN instead.
 
-  nan-strategy can be one of [:keep :remove :exception] and defaults to :exception."
+  When `:approximate?` is true the percentiles are estimated from a [[quantile-sketch]]
+  built in one parallel pass without copying the data and the estimation type is
+  ignored."
   (^Buffer [x percentages options]
-   (let [ary-buf (dtype-cmc/->array-buffer :float64 options x)
-         p (doto (.withEstimationType
-                  (Percentile.)
-                  (options->percentile-estimation-strategy options))
-             (.setData ^doubles (.ary-data ary-buf) (.offset ary-buf)
-                       (.n-elems ary-buf)))]
-     (dtype-base/->reader (mapv #(.evaluate p (double %)) percentages))))
+   (if (:approximate? options)
+     (sketch-percentiles (quantile-sketch x options) percentages)
+     (let [ary-buf (selection-array-buffer x options)]
+       (-> (QuickSelect/percentiles ^doubles (.ary-data ary-buf) (.offset ary-buf)
+                                    (.n-elems ary-buf)
+                                    (double-array percentages)
+                                    (options->percentile-estimation-strategy options)
+                                    (parallel-select-min-elems options))
+           (dtype-base/->reader)))))
   (^Buffer [x percentages]
    (percentiles x percentages nil)))
 
@@ -330,16 +330,22 @@
 
 
 (defn bool-reader->indexes
-  "Given a reader, produce a filtered list of indexes filtering out 'false' values."
-  (^Buffer [{:keys [storage-type] :as _options} x]
-   (let [n-elems (dtype-base/ecount x)
-         reader (dtype-base/->reader x)
-         storage-type (or storage-type (reader-index-space x))]
-     (->> (hamf/range n-elems)
-          (lznc/filter (hamf-fn/long-predicate
-                        idx
-                        (Casts/booleanCast (.readObject reader idx))))
-          (hamf-rf/preduce-reducer (index-reducer storage-type)
-                                {:ordered? true}))))
+  "Given a reader, produce a filtered list of indexes filtering out 'false' values.
+  Comparisons of dense numeric data produce their indexes with vectorized
+  compare-and-compress kernels when available."
+  (^Buffer [{:keys [storage-type] :as options} x]
+   (let [storage-type (or storage-type (reader-index-space x))]
+     (if-let [indexes (when x
+                        (dtype-proto/bool-reader-indexes
+                         x (assoc options :storage-type storage-type)))]
+       indexes
+       (let [n-elems (dtype-base/ecount x)
+             reader (dtype-base/->reader x)]
+         (->> (hamf/range n-elems)
+              (lznc/filter (hamf-fn/long-predicate
+                            idx
+                            (Casts/booleanCast (.readObject reader idx))))
+              (hamf-rf/preduce-reducer (index-reducer storage-type)
+                                       {:ordered? true}))))))
   (^Buffer [x]
    (bool-reader->indexes nil x)))
@@ -276,7 +276,9 @@ user> (dtype/make-reader :float32 5 (* idx 2))
                 ->long-array
                 ->float-array
                 ->double-array
-                ensure-reader)
+                ensure-reader
+                auto-materialize
+                materialization-stats)
 
 
 (defn make-list
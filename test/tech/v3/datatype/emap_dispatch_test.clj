@@ -1,13 +1,15 @@
 (ns tech.v3.datatype.emap-dispatch-test
-  (:require [tech.v3.datatype.emap :refer [emap]]
+  (:require [tech.v3.datatype.emap :refer [emap fuse]]
             [tech.v3.datatype.unary-op :as unary-op]
             [tech.v3.datatype.binary-op :as binary-op]
             [tech.v3.datatype.op-dispatch :refer [dispatch-binary-op dispatch-unary-op]]
             [tech.v3.datatype.array-buffer :as abuf]
             [tech.v3.datatype.protocols :refer [elemwise-datatype] :as dt-proto]
             [tech.v3.datatype.primitive]
+            [tech.v3.datatype.copy-make-container :as cmc]
             [ham-fisted.api :as hamf]
-            [clojure.test :refer [deftest is]]))
+            [clojure.test :refer [deftest is]])
+  (:import [tech.v3.datatype BinaryOperator]))
 
 (deftest unary-emap-types
   (let [odata [1 2 3 4]
@@ -72,3 +74,47 @@
   (is (= 95.0 (hamf/sum (emap binary-op/+ nil (LongDouble. (range 10)) 5))))
   (is (= 95.0 (hamf/sum (emap binary-op/+ :float64 (LongDouble. (range 10)) 5))))
   (is (= 95.0 (hamf/sum (emap binary-op/+ :float64 (LongDouble. (range 10)) (long-array (repeat 10 5)))))))
+
+
+(deftest materialized-binary-ops
+  ;;Materializing goes through block reads which use vectorized kernels for builtin
+  ;;ops when available - results must match the elementwise path exactly.
+  (let [n 5003
+        lhs (double-array (map #(if (== 0 (rem (long %) 17)) Double/NaN (- (rem (* 7 (long %)) 23) 11)) (range n)))
+        rhs (double-array (map #(if (== 0 (rem (long %) 13)) Double/NaN (- (rem (* 5 (long %)) 19) 9)) (range n)))
+        llhs (long-array (map #(- (rem (* 7 (long %)) 23) 11) (range n)))
+        lrhs (long-array (map #(- (rem (* 5 (long %)) 19) 9) (range n)))
+        same? (fn [a b] (every? true? (map #(or (= %1 %2) (and (Double/isNaN %1) (Double/isNaN %2))) a b)))]
+    (doseq [op [binary-op/+ binary-op/- binary-op/* binary-op// binary-op/min binary-op/max]]
+      (let [rdr (dispatch-binary-op op lhs rhs)]
+        (is (same? (mapv #(.binaryDouble ^BinaryOperator op %1 %2) lhs rhs)
+                   (vec (cmc/->array :float64 rdr))))
+        (is (same? (->> (vec rdr) (drop 7) (take 4000))
+                   (vec (cmc/->array :float64 (dt-proto/sub-buffer rdr 7 4000)))))))
+    (doseq [op [binary-op/+ binary-op/- binary-op/* binary-op/min binary-op/max]]
+      (is (= (mapv #(.binaryLong ^BinaryOperator op %1 %2) llhs lrhs)
+             (vec (cmc/->array :int64 (dispatch-binary-op op llhs lrhs))))))))
+
+
+(deftest fused-expressions
+  (let [a (double-array (range 100))
+        b (double-array (map #(- 50.0 (double %)) (range 100)))
+        c (dt-proto/sub-buffer (double-array (map #(* 0.5 (double %)) (range 110))) 10 100)
+        make-expr #(dispatch-binary-op binary-op/+
+                                       (dispatch-binary-op binary-op/* %1 %2)
+                                       (dispatch-unary-op unary-op/sqrt %3))
+        expr (make-expr a b c)
+        fused (fuse expr)]
+    (is (not (identical? expr fused)))
+    (is (= (vec expr) (vec fused)))
+    ;;Expressions with the same signature share the generated class
+    (is (identical? (class fused) (class (fuse (make-expr b a c)))))
+    (is (identical? a (fuse a))))
+  (let [a (long-array (range 100))
+        b (long-array (map #(- 50 (long %)) (range 100)))
+        expr (dispatch-binary-op binary-op/max
+                                 (dispatch-binary-op binary-op/- a 3)
+                                 (dispatch-unary-op unary-op/- (hamf/range 100)))
+        expr (dispatch-binary-op binary-op/* expr b)]
+    (is (= :int64 (elemwise-datatype (fuse expr))))
+    (is (= (vec expr) (vec (fuse expr))))))
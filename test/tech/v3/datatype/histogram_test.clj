@@ -0,0 +1,37 @@
+(ns tech.v3.datatype.histogram-test
+  (:require [tech.v3.datatype :as dtype]
+            [tech.v3.datatype.histogram :as hist]
+            [clojure.test :refer [deftest is]]))
+
+
+(deftest fixed-width-histogram
+  (let [{:keys [edges counts n-outside n-nan]}
+        (hist/histogram [1 2 2 3 3 3 4 4 4 4] {:n-bins 4})]
+    (is (= [1.0 1.75 2.5 3.25 4.0] (vec edges)))
+    (is (= [1 2 3 4] (vec counts)))
+    (is (= [0 0] [n-outside n-nan])))
+  ;;large enough for several parallel tasks
+  (let [n 1000000
+        data (dtype/make-reader :float64 n (double (rem idx 100)))
+        {:keys [counts]} (hist/histogram data {:n-bins 10 :min 0 :max 100})]
+    (is (= (vec (repeat 10 (quot n 10))) (vec counts)))
+    (is (= (mapv #(quot (rem (long %) 100) 10) (range 1000))
+           (vec (dtype/sub-buffer (hist/bin-indexes data {:n-bins 10 :min 0 :max 100})
+                                  0 1000))))))
+
+
+(deftest explicit-edges
+  (let [data [-1.0 0.0 0.5 1.0 9.99 10.0 100.0 ##NaN 10.0]
+        edges (double-array [0 1 10])
+        {:keys [counts n-outside n-nan]} (hist/histogram data edges)]
+    (is (= [2 4] (vec counts)))
+    (is (= [2 1] [n-outside n-nan]))
+    (is (= [-1 0 0 1 1 1 -1 -1 1] (vec (hist/bin-indexes data {:edges [0 1 10]}))))))
+
+
+(deftest quantile-bins
+  (let [data (shuffle (range 1000))
+        {:keys [edges counts]} (hist/histogram data {:bin-type :quantile :n-bins 4})]
+    (is (= 5 (count edges)))
+    (is (every? #(<= 249 (long %) 251) counts))
+    (is (= 1000 (reduce + counts)))))
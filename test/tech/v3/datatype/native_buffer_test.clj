@@ -0,0 +1,154 @@
+(ns tech.v3.datatype.native-buffer-test
+  (:require [tech.v3.datatype :as dtype]
+            [tech.v3.datatype.native-buffer :as native-buffer]
+            [tech.v3.datatype.copy :as copy]
+            [tech.v3.datatype.test-utils :refer [with-threshold]]
+            [clojure.test :refer [deftest is]])
+  (:import [tech.v3.datatype NativeArena]))
+
+
+(deftest arena-malloc
+  (let [arena-ref (atom nil)]
+    (native-buffer/with-native-arena
+      {:slab-size 4096 :max-size-class 256}
+      (let [arena native-buffer/*native-arena*
+            a (native-buffer/alloc-zeros :float64 10)
+            b (native-buffer/alloc-uninitialized :int32 5)
+            big (native-buffer/malloc 10000)]
+        (reset! arena-ref arena)
+        (is (= (vec (repeat 10 0.0)) (vec (dtype/->double-array a))))
+        (dtype/copy! (range 5) b)
+        (is (= [0 1 2 3 4] (vec (dtype/->int-array b))))
+        (is (= 10000 (dtype/ecount big)))
+        (is (= (+ 4096 10000) (.reservedBytes ^NativeArena arena)))
+        ;;freed blocks are reused by the next allocation of the same size class
+        (let [addr (.address b)]
+          (native-buffer/arena-free b)
+          (is (= addr (.address (native-buffer/malloc 20 {:uninitialized? true})))))
+        ;;explicit nil arena uses the system allocator
+        (is (= 1 (dtype/ecount (native-buffer/malloc 1 {:arena nil}))))))
+    (is (.isClosed ^NativeArena @arena-ref))
+    (is (= 0 (.reservedBytes ^NativeArena @arena-ref)))))
+
+
+(deftest aligned-malloc
+  (doseq [alignment [64 :cache-line 4096 :page]]
+    (let [nbuf (native-buffer/alloc-zeros :float64 100 {:alignment alignment})
+          n-align (native-buffer/alignment nbuf)]
+      (is (== 0 (rem (.address nbuf) n-align)))
+      (is (>= n-align 64))
+      (is (= (vec (repeat 100 0.0)) (vec (dtype/->double-array nbuf))))))
+  (let [nbuf (native-buffer/malloc 10000 {:alignment :page
+                                          :huge-pages? true})]
+    (is (== 0 (rem (.address nbuf) (native-buffer/page-size)))))
+  (let [nbuf (native-buffer/alloc-zeros :float64 100 {:alignment 64})]
+    (is (= 64 (native-buffer/alignment (dtype/sub-buffer nbuf 8 10))))
+    (is (= 8 (native-buffer/alignment (dtype/sub-buffer nbuf 1 10)))))
+  (let [src (native-buffer/alloc-zeros :float64 10 {:alignment 64})
+        unaligned (dtype/sub-buffer src 1 9)]
+    (is (identical? src (native-buffer/ensure-native src {:alignment 64})))
+    (let [aligned (native-buffer/ensure-native unaligned {:alignment 64})]
+      (is (not (identical? unaligned aligned)))
+      (is (== 0 (rem (.address aligned) 64)))
+      (is (= (vec (dtype/->double-array unaligned))
+             (vec (dtype/->double-array aligned))))))
+  (is (thrown? Exception (native-buffer/malloc 10 {:alignment 24}))))
+
+
+(deftest aligned-malloc-free
+  ;;the allocation begins before the aligned address - free must release the former
+  (let [live-untracked #(long (get-in (native-buffer/native-memory-stats)
+                                      [:by-track-type :untracked :live-bytes] 0))
+        before (live-untracked)
+        nbuf (native-buffer/malloc 1000 {:alignment :page :resource-type nil
+                                         :datatype :int32})]
+    (is (> (live-untracked) before))
+    (native-buffer/free nbuf)
+    (is (== before (live-untracked)))))
+
+
+(deftest aligned-arena-malloc
+  (native-buffer/with-native-arena
+    nil
+    (let [nbuf (native-buffer/alloc-zeros :float32 10 {:alignment 256})]
+      (is (== 0 (rem (.address nbuf) 256)))
+      (native-buffer/arena-free nbuf))))
+
+
+(deftest native-memory-accounting
+  ;;gc-based frees from other tests may land at any time so only check allocations
+  ;;made here.
+  (let [leaked? (fn [addr]
+                  (some #(= addr (:address %))
+                        (native-buffer/native-memory-leak-report {:track-types [:untracked]})))]
+    (let [nbuf (native-buffer/malloc 1000 {:resource-type nil})
+          addr (.address nbuf)
+          stats (native-buffer/native-memory-stats)]
+      (is (not (:detailed? stats)))
+      (is (>= (long (:peak-bytes stats)) (long (:live-bytes stats))))
+      (is (>= (long (get-in stats [:by-track-type :untracked :live-bytes])) 1000))
+      ;;only counters are kept by default
+      (is (not (leaked? addr)))
+      (native-buffer/free nbuf))
+    (native-buffer/malloc 10)
+    (is (not (contains? (:by-track-type (native-buffer/native-memory-stats)) :auto))
+        ":auto is accounted under the track type it resolves to")
+    (try
+      (native-buffer/set-detailed-native-memory-tracking! true)
+      (let [nbuf (native-buffer/malloc 1000 {:resource-type nil})
+            addr (.address nbuf)]
+        (is (leaked? addr))
+        (native-buffer/free nbuf)
+        (is (not (leaked? addr))))
+      (finally
+        (native-buffer/set-detailed-native-memory-tracking! false)))))
+
+
+(deftest native-memory-sampling
+  (try
+    (native-buffer/set-detailed-native-memory-tracking! true)
+    (native-buffer/set-allocation-sampling! 1)
+    (let [nbuf (native-buffer/malloc 64 {:resource-type nil})
+          entry (->> (native-buffer/native-memory-leak-report {:sampled-only? true})
+                     (filter #(= (.address nbuf) (:address %)))
+                     (first))]
+      (is (seq (:site entry)))
+      (native-buffer/free nbuf))
+    (finally
+      (native-buffer/set-allocation-sampling! 0)
+      (native-buffer/set-detailed-native-memory-tracking! false))))
+
+
+(deftest parallel-copy
+  (with-threshold [copy/parallel-copy-min-bytes* 64]
+    (let [src (double-array (range 10000))
+          nbuf (native-buffer/alloc-uninitialized :float64 10000)
+          big-endian (native-buffer/set-endianness
+                      (native-buffer/alloc-uninitialized :float64 10000)
+                      :big-endian)]
+      (dtype/copy! src nbuf)
+      (is (= (vec src) (vec (dtype/->double-array nbuf))))
+      (is (= (vec src) (vec (dtype/->double-array (dtype/clone nbuf)))))
+      ;;mixed endianness copies swap bytes in flight
+      (dtype/copy! nbuf big-endian)
+      (is (= (vec src) (vec (dtype/->reader big-endian))))
+      (is (= (vec src) (vec (dtype/copy! big-endian (double-array 10000)))))
+      (is (= (mapv double (range 10 20))
+             (vec (native-buffer/->jvm-array nbuf 10 10)))))))
+
+
+(deftest non-native-endianness
+  (let [n 10000
+        src (long-array (range n))
+        big-endian (native-buffer/set-endianness
+                    (native-buffer/alloc-uninitialized :int64 n)
+                    :big-endian)]
+    (dtype/copy! src big-endian)
+    ;;reductions bulk swap blocks into platform order
+    (is (= (reduce + (range n)) (reduce + 0 big-endian)))
+    (is (= 100 (reduce (fn [acc v] (if (== v 100) (reduced v) acc)) 0 big-endian)))
+    (is (= (vec src) (vec (native-buffer/->jvm-array big-endian 0 n))))
+    (let [platform (native-buffer/set-endianness! big-endian :little-endian)]
+      (is (= :little-endian (:endianness (native-buffer/native-buffer->map platform))))
+      (is (= (vec src) (vec (dtype/->long-array platform)))))
+    (is (thrown? Exception (native-buffer/set-endianness! src :big-endian)))))
@@ -2,6 +2,8 @@
   (:require [tech.v3.datatype :as dtype]
             [tech.v3.datatype.statistics :as stats]
             [tech.v3.datatype.functional :as dfn]
+            [tech.v3.datatype.native-buffer :as native-buffer]
+            [tech.v3.datatype.test-utils :refer [with-threshold]]
             [clojure.test :refer [deftest is testing]]
             [clojure.data :as cdata]
             [clojure.pprint :as pp]
@@ -26,6 +28,27 @@
                     [(stats/variance test-data)]))))
 
 
+(deftest single-pass-moments
+  ;;Large offset to exercise numerical stability and enough data for the accumulators
+  ;;of several partitions to be merged.
+  (let [n 200000
+        data (double-array (map #(+ 1.0e6 (Math/sin (double %)) (* 1.0e-3 (rem (long %) 97)))
+                                (range n)))
+        apache (org.apache.commons.math3.stat.descriptive.DescriptiveStatistics. ^doubles data)
+        stats-names [:mean :variance :standard-deviation :skew :kurtosis :min :max :n-elems]
+        {:keys [mean variance standard-deviation skew kurtosis min max n-elems]}
+        (stats/descriptive-statistics data stats-names)]
+    (is (== n n-elems))
+    (is (dfn/equals [(.getMean apache) (.getMin apache) (.getMax apache)]
+                    [mean min max]))
+    (is (dfn/equals [(.getVariance apache) (.getStandardDeviation apache)]
+                    [variance standard-deviation]
+                    1e-8))
+    (is (dfn/equals [(.getSkewness apache) (.getKurtosis apache)]
+                    [skew kurtosis]
+                    1e-6))))
+
+
 (deftest percentiles
   (let [test-data (range 50)]
     (is (dfn/equals
@@ -45,6 +68,91 @@
              (stats/percentiles data percentiles {:estimation-type :r1}))))))
 
 
+(deftest selection-percentiles
+  (let [data (double-array (map #(Math/sin (* 7.0 (double %))) (range 100000)))
+        orig (vec data)
+        nan-data (double-array (map-indexed #(if (zero? (rem (long %1) 7)) ##NaN %2) data))
+        percentages [0.1 1 25 50 75 95 99 100]]
+    (with-threshold [stats/parallel-select-min-elems* 1000]
+      (doseq [etype [:legacy :r1 :r2 :r3 :r4 :r5 :r6 :r7 :r8 :r9]
+              parallel? [true false]]
+        (let [p (.withEstimationType
+                 (org.apache.commons.math3.stat.descriptive.rank.Percentile.)
+                 (case etype
+                   :legacy org.apache.commons.math3.stat.descriptive.rank.Percentile$EstimationType/LEGACY
+                   (org.apache.commons.math3.stat.descriptive.rank.Percentile$EstimationType/valueOf
+                    (.toUpperCase (str "R_" (subs (name etype) 1))))))]
+          (.setData p ^doubles (aclone data))
+          (is (= (mapv #(.evaluate p (double %)) percentages)
+                 (vec (stats/percentiles data percentages {:estimation-type etype
+                                                           :parallel? parallel?})))
+              (str etype))
+          ;;NaN is removed as Percentile's default NaNStrategy/REMOVED does
+          (is (= (mapv #(.evaluate p ^doubles (aclone nan-data) (double %)) percentages)
+                 (vec (stats/percentiles nan-data percentages {:estimation-type etype
+                                                               :parallel? parallel?})))
+              (str etype " with NaN"))))
+      ;;selection reorders a copy, never the caller's data
+      (is (= orig (vec data)))
+      (is (== (stats/median data) (nth (sort orig) 50000))))))
+
+
+(deftest approximate-percentiles
+  (let [n 100000
+        data (double-array (map #(* 100.0 (Math/sin (double %))) (range n)))
+        exact (stats/percentiles data [1 25 50 75 99])
+        ;;rank error of the sketch is well under a percent
+        tol 2.0]
+    (is (dfn/equals exact (stats/percentiles data [1 25 50 75 99] {:approximate? true})
+                    tol))
+    (let [{:keys [median quartile-1 quartile-3 n-elems]}
+          (stats/descriptive-statistics data [:median :quartile-1 :quartile-3 :n-elems]
+                                        {:approximate? true})]
+      (is (== n n-elems))
+      (is (dfn/equals [(exact 1) (exact 2) (exact 3)] [quartile-1 median quartile-3] tol)))
+    (testing "sketches merge and round trip through bytes"
+      (let [lhs (stats/quantile-sketch (dtype/sub-buffer data 0 30000))
+            rhs (stats/quantile-sketch (dtype/sub-buffer data 30000 70000))
+            merged (stats/bytes->sketch
+                    (stats/sketch->bytes (stats/merge-sketches [lhs rhs])))]
+        (is (== n (.totalWeight merged)))
+        (is (dfn/equals exact (stats/sketch-percentiles merged [1 25 50 75 99]) tol))
+        (let [serialized (stats/sketch->bytes lhs)]
+          (is (thrown? IllegalArgumentException
+                       (stats/bytes->sketch (java.util.Arrays/copyOf serialized
+                                                                     (dec (alength serialized)))))))))
+    (testing "native data"
+      (let [nbuf (native-buffer/alloc-uninitialized :float64 n)]
+        (dtype/copy! data nbuf)
+        (is (dfn/equals exact (stats/percentiles nbuf [1 25 50 75 99] {:approximate? true})
+                        tol))))))
+
+
+(deftest correlation-matrix
+  (let [n 1000
+        cols (->> (range 6)
+                  (mapv (fn [c]
+                          (double-array (map #(+ (* c (Math/sin (double %)))
+                                                 (rem (* (long %) (inc c)) 13))
+                                             (range n))))))
+        ;;arrays are copied so the caller's data is not centered or ranked
+        orig (mapv vec cols)
+        pairwise (fn [corr-fn]
+                   (mapv (fn [x] (mapv #(corr-fn x %) cols)) cols))]
+    (doseq [[ctype corr-fn] [[:pearson stats/pearsons-correlation]
+                             [:spearman stats/spearmans-correlation]
+                             [:kendall stats/kendalls-correlation]]]
+      (let [expected (pairwise corr-fn)
+            actual (stats/correlation-matrix cols {:correlation-type ctype})]
+        (is (dfn/equals (flatten expected) (flatten (map vec actual)) 1e-9)
+            (str ctype))))
+    (let [cov (org.apache.commons.math3.stat.correlation.Covariance.)]
+      (is (dfn/equals (flatten (mapv (fn [x] (mapv #(.covariance cov x %) cols)) cols))
+                      (flatten (map vec (stats/covariance-matrix cols)))
+                      1e-9)))
+    (is (= orig (mapv vec cols)))))
+
+
 (deftest nan-min-max
   (let [test-data (double-array (edn/read-string (slurp "test/data/double-data.edn")))
         {dmin :min dmax :max :as data} (stats/descriptive-statistics test-data [:min :max])]
@@ -57,3 +165,39 @@
                    (:mode))))
   (is (nil? (-> (stats/descriptive-statistics nil [:mode])
                 (:mode)))))
+
+
+(deftest dense-array-reductions
+  ;;results must agree whether or not the vector module is available
+  (let [n 1000
+        fdata (float-array (map #(- (rem (* 7 (long %)) 100) 50) (range n)))
+        _ (aset fdata 10 Float/NaN)
+        idata (int-array (map #(- (rem (* 7 (long %)) 100) 50) (range n)))
+        ldata (long-array idata)
+        expected-sum (- (reduce + (map long idata)) (aget idata 10))]
+    (is (== expected-sum (dfn/reduce-+ fdata)))
+    (is (== expected-sum (stats/sum fdata)))
+    (is (== -50.0 (dfn/reduce-min fdata)))
+    (is (== 49.0 (dfn/reduce-max fdata)))
+    (is (== (reduce + (map long idata)) (dfn/reduce-+ idata) (dfn/reduce-+ ldata)))
+    (is (== -50 (dfn/reduce-min idata) (dfn/reduce-min ldata)))
+    (is (== 49 (dfn/reduce-max idata) (dfn/reduce-max ldata)))
+    (is (== (reduce + (map long (range 10 20)))
+            (dfn/reduce-+ (dtype/sub-buffer (int-array (range 100)) 10 10))))
+    (is (Double/isNaN (stats/sum fdata {:nan-strategy :keep})))))
+
+
+(deftest native-reductions
+  (let [n 10000
+        data (map #(- (rem (* 7 (long %)) 1000) 500) (range n))
+        expected-sum (reduce + data)]
+    (doseq [dtype [:float64 :float32 :int64 :int32]
+            endianness [:little-endian :big-endian]]
+      (let [nbuf (native-buffer/set-endianness
+                  (native-buffer/alloc-uninitialized dtype n)
+                  endianness)]
+        (dtype/copy! (dtype/make-container :jvm-heap dtype data) nbuf)
+        (is (== expected-sum (dfn/reduce-+ nbuf)) [dtype endianness])
+        (is (== expected-sum (stats/sum nbuf)) [dtype endianness])
+        (is (== -500 (dfn/reduce-min nbuf)) [dtype endianness])
+        (is (== 499 (dfn/reduce-max nbuf)) [dtype endianness])))))
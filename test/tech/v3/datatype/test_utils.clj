@@ -0,0 +1,21 @@
+(ns tech.v3.datatype.test-utils
+  "Helpers shared between test namespaces.")
+
+
+(defmacro with-threshold
+  "Evaluate body with the threshold atom, such as
+  `argops/parallel-sort-min-elems*`, reset to value.  The previous value is restored
+  afterward even if body throws.
+
+```clojure
+(with-threshold [argops/parallel-sort-min-elems* 1000]
+  (argops/argsort data))
+```"
+  [[threshold* value] & body]
+  `(let [threshold# ~threshold*
+         prev-value# @threshold#]
+     (try
+       (reset! threshold# ~value)
+       ~@body
+       (finally
+         (reset! threshold# prev-value#)))))
@@ -9,10 +9,13 @@
             [tech.v3.datatype.argops :as argops]
             [tech.v3.datatype.unary-pred :as unary-pred]
             [tech.v3.datatype.rolling :as rolling]
+            [tech.v3.datatype.statistics :as stats]
             [tech.v3.datatype.gradient :as dt-grad]
             [tech.v3.datatype.wavelet]
             [tech.v3.datatype.datetime]
             [tech.v3.datatype.io-indexed-buffer :as idxbuf]
+            [tech.v3.datatype.copy :as dt-copy]
+            [tech.v3.datatype.test-utils :refer [with-threshold]]
             [ham-fisted.lazy-noncaching :as lznc]
             [ham-fisted.api :as hamf]
             [ham-fisted.protocols :as hamf-proto]
@@ -20,7 +23,7 @@
   (:import [java.nio FloatBuffer]
            [java.util ArrayList]
            [ham_fisted Casts]
-           [tech.v3.datatype FastStruct]))
+           [tech.v3.datatype FastStruct Buffer]))
 
 
 (defn basic-copy
@@ -491,6 +494,65 @@
     (is (thrown? Exception (argops/argsort nil {:nan-strategy :exception} data)))))
 
 
+(deftest argsort-radix-and-merge
+  ;;large enough that ArgSort splits the data into several chunks
+  (let [n 50000
+        base (mapv #(- (rem (* 7919 (long %)) 2003) 1000) (range n))
+        ;;stable reference - ties stay in index order
+        reference (fn [compare-fn data]
+                    (mapv first (sort-by second compare-fn (map-indexed vector data))))]
+    (doseq [min-elems [1000 Long/MAX_VALUE]]
+      (with-threshold [argops/parallel-sort-min-elems* min-elems]
+        (doseq [dtype [:int16 :int32 :uint32 :int64 :float32 :float64]]
+          (let [data (dtype/make-container :jvm-heap dtype
+                                           (if (= dtype :uint32)
+                                             (map #(+ 1000 (long %)) base)
+                                             base))
+                jvm-data (vec data)]
+            (is (= (reference compare jvm-data) (vec (argops/argsort data)))
+                (str dtype))
+            (is (= (reference #(compare %2 %1) jvm-data)
+                   (vec (argops/argsort :tech.numerics/> data)))
+                (str dtype))))
+        (let [data (dtype/make-container :float64 (map #(if (zero? (rem (long %) 5)) ##NaN %)
+                                                       base))
+              idx-first (argops/argsort nil {:nan-strategy :first} data)
+              idx-last (argops/argsort nil {:nan-strategy :last} data)
+              n-nan (count (filter #(Double/isNaN %) data))]
+          (is (every? #(Double/isNaN (data %)) (take n-nan idx-first)))
+          (is (every? #(Double/isNaN (data %)) (take-last n-nan idx-last)))
+          (is (apply <= (map data (drop-last n-nan idx-last)))))
+        ;;generic comparators use a stable merge sort
+        (let [strs (mapv #(str (rem (long %) 97)) base)]
+          (is (= (reference compare strs) (vec (argops/argsort compare strs)))))))))
+
+
+(deftest arg-min-max-n
+  ;;large enough that the heap path uses several partition heaps
+  (let [base (mapv #(- (rem (* 7919 (long %)) 2003) 1000) (range 50000))]
+    (doseq [min-elems [1000 Long/MAX_VALUE]]
+      (with-threshold [argops/parallel-sort-min-elems* min-elems]
+        (doseq [dtype [:int32 :int64 :float32 :float64]
+                ;;heap and selection paths
+                k [0 1 100 1000 5000 30000]]
+          (let [data (dtype/make-container :jvm-heap dtype base)]
+            (is (= (take k (argops/argsort data)) (vec (argops/arg-min-n k data)))
+                [dtype k])
+            (is (= (take k (argops/argsort :tech.numerics/> data))
+                   (vec (argops/arg-max-n k data)))
+                [dtype k])))
+        (let [small (double-array [0.0 -0.0 1.0 ##NaN -0.0 0.0 -1.0 ##NaN])]
+          ;;short inputs sort on the same keys so signed zero and NaN ties agree
+          (is (= [6 0 1 4 5 2 3 7]
+                 (vec (argops/argsort small))
+                 (vec (argops/arg-min-n 8 small))))
+          (is (= (vec (argops/argsort :tech.numerics/> small))
+                 (vec (argops/arg-max-n 8 small)))))
+        (let [strs (mapv #(str (rem (long %) 97)) base)]
+          (is (= (take 50 (argops/argsort compare strs))
+                 (vec (argops/arg-min-n 50 compare strs)))))))))
+
+
 (deftest reader-as-persistent-vector-test
   (let [src-data (range 20)
         ldata (long-array src-data)
@@ -641,6 +703,89 @@
                                                 {:relative-window-position :left}))))
 
 
+(deftest rolling-incremental-reducers
+  (let [data (mapv #(+ 1000.0 (* 10.0 (Math/sin (* 3.7 (double %))))) (range 500))]
+    (doseq [[kwd window-fn] [[:sum dfn/sum] [:mean dfn/mean] [:variance dfn/variance]
+                             [:standard-deviation dfn/standard-deviation]
+                             [:min dfn/reduce-min] [:max dfn/reduce-max]]
+            window-size [1 4 25]
+            position [:left :center :right]
+            edge-mode [:clamp :zero]]
+      (let [options {:relative-window-position position :edge-mode edge-mode}]
+        ;;wrapped so the reference is the generic per-window evaluation
+        (is (dfn/equals (rolling/fixed-rolling-window data window-size
+                                                      #(window-fn %) options)
+                        (rolling/fixed-rolling-window data window-size kwd options)
+                        1e-8)
+            [kwd window-size position edge-mode]))))
+  (doseq [window-fn [dfn/sum dfn/mean dfn/variance dfn/standard-deviation dfn/median
+                     stats/min stats/max]]
+    (is (dtype/as-array-buffer (rolling/fixed-rolling-window (range 100) 5 window-fn))
+        "reduction fns with an incremental equivalent are computed eagerly"))
+  (let [data [1 2 ##NaN 4 5 6]]
+    (is (= [1.0 2.0 2.0 4.0 5.0 6.0]
+           (vec (rolling/fixed-rolling-window data 2 :max
+                                              {:relative-window-position :left})))
+        "NaN is removed by default")
+    (is (dfn/equals (rolling/fixed-rolling-window data 3 #(dfn/sum %))
+                    (rolling/fixed-rolling-window data 3 :sum)))
+    (is (= [1.0 2.0 :nan :nan 5.0 6.0]
+           (mapv #(if (Double/isNaN %) :nan %)
+                 (rolling/fixed-rolling-window data 2 :max
+                                               {:relative-window-position :left
+                                                :nan-strategy :keep})))
+        "windows containing NaN are NaN when kept")
+    (is (thrown? Exception (rolling/fixed-rolling-window data 2 :max
+                                                         {:nan-strategy :exception}))))
+  (is (thrown? Exception (rolling/fixed-rolling-window (range 10) 3 :not-a-reducer))))
+
+
+(deftest rolling-quantiles
+  (let [data (mapv #(Math/floor (* 10.0 (Math/sin (* 3.7 (double %))))) (range 300))]
+    (doseq [window-size [1 4 25]
+            position [:left :center :right]
+            edge-mode [:clamp :zero]]
+      (let [options {:relative-window-position position :edge-mode edge-mode}]
+        (is (dfn/equals (rolling/fixed-rolling-window data window-size #(dfn/median %) options)
+                        (rolling/fixed-rolling-window data window-size :median options))
+            [:median window-size position edge-mode])
+        (is (dfn/equals (rolling/fixed-rolling-window
+                         data window-size
+                         #(first (dfn/percentiles % [90] {:estimation-type :r7}))
+                         options)
+                        (rolling/fixed-rolling-window data window-size
+                                                      {:percentile 90 :estimation-type :r7}
+                                                      options))
+            [90 window-size position edge-mode])))
+    (let [times (vec (reductions + (map #(inc (rem (* 7 (long %)) 5)) (range 300))))
+          ranges (rolling/variable-rolling-window-ranges times 12)]
+      (is (dfn/equals (mapv dfn/median (rolling/window-ranges->window-reader data ranges :clamp))
+                      (rolling/reduce-window-ranges data ranges :median)))))
+  (is (= [2.0 5.0 2.0 8.0 9.0 9.0 4.0]
+         (vec (rolling/reduce-window-ranges
+               [1 5 2 8 3 9 4]
+               (rolling/variable-rolling-window-ranges [0 1 2 5 6 7 10] 3)
+               :median))))
+  (is (thrown? Exception (rolling/fixed-rolling-window (range 10) 3 {:percentile 0}))))
+
+
+(deftest rolling-parallel-chunks
+  (let [n 50000
+        data (dtype/make-container :float64 (map #(Math/sin (* 0.37 (double %))) (range n)))
+        times (vec (reductions + (map #(inc (rem (* 7 (long %)) 5)) (range n))))
+        ranges (rolling/variable-rolling-window-ranges times 40)]
+    (with-threshold [rolling/parallel-rolling-min-elems* 1000]
+      (doseq [reducer [:mean :variance :max {:percentile 75}]]
+        (is (dfn/equals (rolling/fixed-rolling-window data 31 reducer {:parallel? false})
+                        (rolling/fixed-rolling-window data 31 reducer)
+                        1e-8)
+            (str reducer))
+        (is (dfn/equals (rolling/reduce-window-ranges data ranges reducer {:parallel? false})
+                        (rolling/reduce-window-ranges data ranges reducer)
+                        1e-8)
+            (str reducer))))))
+
+
 (deftest binary-search
   (is (= [0 0 5 9 10]
          (mapv #(argops/binary-search (double-array (range 10)) %)
@@ -859,6 +1004,52 @@
                                      (shuffle (take 1000 (cycle (range 6))))]))
                       (int 0))))))
 
+(deftest arggroup-primitive-keys
+  ;;enough data to be chunked and merged across hash partitions
+  (let [n 100000
+        ids (mapv #(- (rem (* 7919 (long %)) 30011) 15000) (range n))
+        expected (->> (group-by ids (range n))
+                      (sort-by (comp first val))
+                      (mapv (fn [[k v]] [k (vec v)])))]
+    (doseq [dtype [:int32 :int64]]
+      (is (= expected
+             (mapv (fn [[k v]] [k (vec v)])
+                   (argops/arggroup (dtype/make-container dtype ids))))
+          (str dtype)))
+    (is (= (mapv (fn [[k v]] [(double k) v]) expected)
+           (mapv (fn [[k v]] [k (vec v)])
+                 (argops/arggroup (dtype/make-container :float64 ids))))))
+  ;;NaN values form a single group and -0.0 groups with 0.0
+  (let [groups (mapv (fn [[k v]] [k (vec v)])
+                     (argops/arggroup (double-array [1.0 ##NaN -0.0 0.0 ##NaN 1.0])))]
+    (is (= [[1.0 [0 5]] [0.0 [2 3]]] (mapv groups [0 2])))
+    (is (Double/isNaN (first (groups 1))))
+    (is (= [1 4] (second (groups 1))))))
+
+
+(deftest arggroup-dense-keys
+  (let [n 100000
+        codes (mapv #(rem (* 7919 (long %)) 5003) (range n))
+        expected (->> (group-by codes (range n))
+                      (sort-by (comp first val))
+                      (mapv (fn [[k v]] [k (vec v)])))
+        ->vecs #(mapv (fn [[k v]] [k (vec v)]) %)]
+    (doseq [dtype [:int16 :int32 :int64]]
+      ;;detected range
+      (is (= expected (->vecs (argops/arggroup (dtype/make-container dtype codes))))
+          (str dtype))
+      (is (= expected (->vecs (argops/arggroup {:key-range [-10 6000]}
+                                               (dtype/make-container dtype codes))))
+          (str dtype)))
+    (is (= (->vecs (argops/arggroup-by #(mod % 7) (range 20)))
+           (->vecs (argops/arggroup-by #(mod % 7) {:key-range [0 6]} (range 20)))))
+    (is (thrown? Exception (argops/arggroup {:key-range [0 100]} (long-array [1 2 300]))))
+    ;;float keys would be truncated by a counting sort
+    (is (thrown? Exception (argops/arggroup {:key-range [0 10]} (double-array [1.2 1.7]))))
+    (is (thrown? Exception (argops/arggroup {:key-range [0 10] :storage-datatype :int64}
+                                            (long-array [1 2 3]))))))
+
+
 (deftest double-long-comparison
   (is (dfn/> 4.0 2))
   (is (dfn/> 4 2.0))
@@ -906,6 +1097,100 @@
     (is (= [true true true] (dfn/eq vector-of-long vector-of-int)))
     (is (= [false false false] (dfn/not-eq vector-of-long vector-of-int)))))
 
+
+(deftest block-read-write
+  (let [block-read (fn [rdr sidx n]
+                     (let [dst (double-array (+ (long n) 2))]
+                       (.readDoubles ^Buffer (dtype/->reader rdr) (long sidx) dst 1 (int n))
+                       (vec dst)))
+        expected (fn [sidx n]
+                   (vec (concat [0.0] (map double (range sidx (+ (long sidx) (long n)))) [0.0])))]
+    (doseq [src [(double-array (range 100))
+                 (float-array (range 100))
+                 (dtype/make-container :native-heap :float64 (range 100))
+                 (dtype/make-container :native-heap :float32 (range 100))
+                 (dtype/sub-buffer (double-array (range -10 100)) 10 100)
+                 (dtype/concat-buffers [(double-array (range 30)) (double-array (range 30 100))])
+                 (dtype/concat-buffers [(double-array (range 30)) (double-array (range 30 60))
+                                        (double-array (range 60 100))])
+                 (dfn/+ (double-array (range 100)) 0.0)
+                 (dfn/+ (double-array (range 100)) (double-array 100))]]
+      (is (= (expected 25 50) (block-read src 25 50)))))
+  (let [dst (long-array 10)]
+    (.readLongs ^Buffer (dtype/->reader (dfn/+ (long-array (range 100)) (long-array 100)))
+                5 dst 0 10)
+    (is (= (vec (range 5 15)) (vec dst))))
+  (doseq [container-type [:jvm-heap :native-heap]]
+    (let [buf (dtype/make-container container-type :float64 10)]
+      (.writeDoubles ^Buffer (dtype/->writer buf) 2 (double-array [1 2 3]) 0 3)
+      (is (= [0.0 0.0 1.0 2.0 3.0 0.0 0.0 0.0 0.0 0.0] (vec (dtype/->double-array buf)))))))
+
+
+(deftest compare-indexes
+  ;;Comparisons of dense data go straight to indexes - results must match testing
+  ;;each element.
+  (let [n 5003
+        data (map #(if (== 0 (rem (long %) 11)) Double/NaN (double (rem (* 7 (long %)) 13))) (range n))
+        ddata (double-array data)
+        fdata (float-array data)
+        ldata (long-array (map #(rem (* 7 (long %)) 13) (range n)))
+        idata (int-array ldata)
+        other (double-array (map #(double (rem (* 3 (long %)) 13)) (range n)))
+        expected (fn [pred lhs rhs]
+                   (->> (map (fn [idx l r] (when (pred l r) idx))
+                             (range) (dtype/->reader lhs) (dtype/->reader rhs))
+                        (remove nil?)
+                        (vec)))
+        nan-eq (fn [l r] (if (Double/isNaN (double l)) (Double/isNaN (double r)) (== l r)))]
+    (doseq [[dfn-op op-kwd pred] [[dfn/> :tech.numerics/> >]
+                                  [dfn/>= :tech.numerics/>= >=]
+                                  [dfn/< :tech.numerics/< <]
+                                  [dfn/<= :tech.numerics/<= <=]
+                                  [dfn/eq :tech.numerics/eq nan-eq]]
+            lhs [ddata fdata ldata idata (dtype/make-container :native-heap :float64 ddata)]]
+      (is (= (expected pred lhs (dtype/const-reader 6 n))
+             (vec (dfn/bool-reader->indexes (dfn-op lhs 6)))))
+      (is (= (expected pred (dtype/const-reader 6 n) lhs)
+             (vec (dfn/bool-reader->indexes (dfn-op 6 lhs)))))
+      (is (= (expected pred lhs other)
+             (vec (dfn/bool-reader->indexes (dfn-op lhs other)))))
+      (is (= (expected pred lhs other)
+             (vec (dfn/bool-reader->indexes {:storage-type :bitmap}
+                                            (dfn-op lhs other)))))
+      (is (= (expected pred lhs other)
+             (vec (argops/binary-argfilter op-kwd lhs other)))))))
+
+
+(deftest auto-materialize
+  (let [n-calls (java.util.concurrent.atomic.AtomicLong.)
+        lazy (dtype/emap (fn ^double [^double v]
+                           (.incrementAndGet n-calls)
+                           (* 2.0 v))
+                         :float64
+                         (double-array (range 100)))
+        n-materialized (:n-materialized (dtype/materialization-stats))
+        rdr (dtype/auto-materialize lazy)]
+    (dotimes [_ 5]
+      (is (= (mapv #(* 2.0 %) (range 100)) (vec rdr))))
+    ;;two passes plus the materializing copy
+    (is (= 300 (.get n-calls)))
+    (is (= :float64 (dtype/elemwise-datatype rdr)))
+    (is (= (inc (long n-materialized))
+           (:n-materialized (dtype/materialization-stats))))
+    (let [ary (double-array 5)]
+      (is (identical? ary (dtype/auto-materialize ary))))))
+
+
+(deftest parallel-materialize
+  (with-threshold [dt-copy/parallel-materialize-min-elems* 100]
+    (doseq [dt [:float64 :float32 :int64 :int32]]
+      (let [lazy (dfn/+ (dtype/make-container dt (range 10000)) 1)
+            expected (mapv #(+ 1 (long %)) (range 10000))]
+        (is (= expected (mapv long (dtype/make-container :jvm-heap dt lazy))))
+        (is (= expected (mapv long (dtype/->array dt lazy))))
+        (is (= expected (mapv long (dtype/make-container :jvm-heap dt {:parallel? false} lazy))))
+        (is (= expected (mapv long (dtype/clone (with-meta lazy {:thread-safe? false})))))))))
+
 (comment
   (defn bench-sum
     []